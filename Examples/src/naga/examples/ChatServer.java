@@ -42,10 +42,13 @@ public class ChatServer implements ServerSocketObserver
 {
     private final EventMachine m_eventMachine;
     private final List<User> m_users;
+    private final SocketGroup m_loggedInUsers;
 	ChatServer(final EventMachine machine)
 	{
         m_eventMachine = machine;
         m_users = new ArrayList<User>();
+        // Broadcasts are converted to lines once, using the same writer as the users.
+        m_loggedInUsers = new SocketGroup(new AsciiLinePacketWriter());
     }
 
     @Override
@@ -78,12 +81,8 @@ public class ChatServer implements ServerSocketObserver
 
     public void broadcast(final User sender, final String string)
     {
-        // We convert the packet, then send it to all users except the sender.
-        final byte[] bytesToSend = string.getBytes();
-        for (final User user : m_users)
-        {
-            if (user != sender) user.sendBroadcast(bytesToSend);
-        }
+        // We convert the packet, then send it to all logged in users except the sender.
+        m_loggedInUsers.broadcast(string.getBytes(), sender.m_socket);
     }
 
     /**
@@ -160,6 +159,7 @@ public class ChatServer implements ServerSocketObserver
             // Inform the other users if the user was logged in.
             if (m_name != null)
             {
+                m_server.m_loggedInUsers.remove(m_socket);
                 m_server.broadcast(this, m_name + " left the chat.");
             }
             // Remove the user.
@@ -200,6 +200,7 @@ public class ChatServer implements ServerSocketObserver
                 m_name = message;
                 System.out.println(this + " logged in.");
                 m_server.broadcast(this, m_name + " has joined the chat.");
+                m_server.m_loggedInUsers.add(m_socket);
                 m_socket.write(("Welcome " + m_name + ". There are " + m_server.m_users.size() + " user(s) currently logged in.").getBytes());
                 return;
             }
@@ -212,14 +213,16 @@ public class ChatServer implements ServerSocketObserver
             // No need to handle this case.
         }
 
-        public void sendBroadcast(final byte[] bytesToSend)
+        @Override
+        public void socketIdle(final NIOSocket socket, final IdleState state)
         {
-            // Only send broadcast to users logged in.
-            if (m_name != null)
-            {
-                m_socket.write(bytesToSend);
-            }
+            // Inactivity is handled by the disconnect event.
+        }
 
+        @Override
+        public void writabilityChanged(final NIOSocket socket, final boolean writable)
+        {
+            // Chat messages are small, so the write queue is not monitored.
         }
     }
 
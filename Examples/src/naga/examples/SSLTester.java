@@ -21,6 +21,7 @@ SOFTWARE.
 */
 package naga.examples;
 
+import naga.IdleState;
 import naga.NIOService;
 import naga.NIOSocket;
 import naga.NIOSocketSSL;
@@ -51,6 +52,18 @@ public class SSLTester
                     System.out.println("Packet sent");
                 }
 
+                @Override
+                public void socketIdle(final NIOSocket socket, final IdleState state)
+                {
+                    System.out.println("Socket idle: " + state);
+                }
+
+                @Override
+                public void writabilityChanged(final NIOSocket socket, final boolean writable)
+                {
+                    System.out.println("Socket writable: " + writable);
+                }
+
                 @Override
                 public void connectionOpened(final NIOSocket nioSocket)
                 {
@@ -0,0 +1,63 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Interface for classes handing out temporary buffers.
+ * <p>
+ * The NIOService uses its allocator for the buffers it needs beyond its shared read buffer,
+ * such as buffers holding partial packets between reads and the encrypted records of SSL sockets.
+ * <p>
+ * A buffer obtained using {@link #allocate(int)} is owned by the caller until it is passed to
+ * {@link #release(java.nio.ByteBuffer)}, after which it may not be used again. Releasing a buffer
+ * is optional, a buffer that is never released is simply left to the garbage collector.
+ * <p>
+ * <em>Implementations must be thread-safe.</em>
+ *
+ * @see naga.HeapBufferAllocator
+ * @see naga.PooledBufferAllocator
+ * @author Christoffer Lerno
+ */
+public interface BufferAllocator
+{
+    /**
+     * Returns a cleared buffer with at least the given capacity.
+     * <p>
+     * The limit of the buffer is set to its capacity, which may be larger than requested.
+     *
+     * @param capacity the minimum capacity of the buffer.
+     * @return a cleared buffer.
+     */
+    ByteBuffer allocate(int capacity);
+
+    /**
+     * Returns a buffer to the allocator.
+     * <p>
+     * Only buffers owned by the caller may be released, and only once. Buffers the
+     * allocator cannot reuse are ignored.
+     *
+     * @param buffer the buffer to release, may be null.
+     */
+    void release(ByteBuffer buffer);
+}
@@ -0,0 +1,134 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import naga.exception.BufferLeakException;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks a sample of the NagaBuffers to detect buffers that are garbage collected without being released.
+ * <p>
+ * Each tracked buffer gets a phantom reference remembering where the buffer was created.
+ * Releasing the buffer drops the reference, so any reference that the garbage collector
+ * enqueues belongs to a leaked buffer.
+ * <p>
+ * <em>This class is thread-safe.</em>
+ *
+ * @author Christoffer Lerno
+ */
+class BufferLeakDetector
+{
+    private final ReferenceQueue<NagaBuffer> m_collected;
+    private final Set<Tracker> m_trackers;
+    private final AtomicLong m_created;
+    private volatile int m_sampleRate;
+    private volatile ExceptionObserver m_observer;
+
+    BufferLeakDetector()
+    {
+        m_collected = new ReferenceQueue<NagaBuffer>();
+        m_trackers = Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+        m_created = new AtomicLong(0);
+        m_sampleRate = 0;
+        m_observer = ExceptionObserver.DEFAULT;
+    }
+
+    public void setSampleRate(final int sampleRate, final ExceptionObserver observer)
+    {
+        if (sampleRate < 0) throw new IllegalArgumentException("Negative sample rate: " + sampleRate);
+        m_observer = observer;
+        m_sampleRate = sampleRate;
+    }
+
+    public int getSampleRate()
+    {
+        return m_sampleRate;
+    }
+
+    /**
+     * Starts tracking a new buffer, if it is part of the sample.
+     *
+     * @param buffer the buffer just created.
+     * @return the tracker of the buffer, or null if the buffer is not tracked.
+     */
+    public Tracker track(final NagaBuffer buffer)
+    {
+        final int sampleRate = m_sampleRate;
+        if (sampleRate == 0 || m_created.incrementAndGet() % sampleRate != 0) return null;
+        reportLeaks();
+        final Tracker tracker = new Tracker(buffer, m_collected);
+        m_trackers.add(tracker);
+        return tracker;
+    }
+
+    /**
+     * Stops tracking a buffer that has been released.
+     *
+     * @param tracker the tracker of the buffer.
+     */
+    public void untrack(final Tracker tracker)
+    {
+        m_trackers.remove(tracker);
+        tracker.clear();
+    }
+
+    /**
+     * Reports all tracked buffers that have been collected since the last check.
+     *
+     * @return the number of leaks reported.
+     */
+    public int reportLeaks()
+    {
+        int leaks = 0;
+        Tracker tracker;
+        while ((tracker = (Tracker) m_collected.poll()) != null)
+        {
+            // A buffer released while the reference was being enqueued is not a leak.
+            if (!m_trackers.remove(tracker)) continue;
+            leaks++;
+            final BufferLeakException leak = new BufferLeakException("NagaBuffer was garbage collected without being released, see stack trace for where it was created");
+            leak.setStackTrace(tracker.m_creationSite.getStackTrace());
+            m_observer.notifyExceptionThrown(leak);
+        }
+        return leaks;
+    }
+
+    /**
+     * The phantom reference of a tracked buffer.
+     */
+    static class Tracker extends PhantomReference<NagaBuffer>
+    {
+        private final Throwable m_creationSite;
+
+        private Tracker(final NagaBuffer buffer, final ReferenceQueue<NagaBuffer> queue)
+        {
+            super(buffer, queue);
+            m_creationSite = new Throwable();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import naga.exception.ProtocolViolationException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A PacketReader that can return packets as views of the read buffer,
+ * instead of copying each packet to a new byte array.
+ * <p>
+ * These packets are delivered to a {@link naga.BufferSocketObserver}.
+ *
+ * @author Christoffer Lerno
+ */
+public interface BufferPacketReader extends PacketReader
+{
+    /**
+     * Create a new packet as a view of the ByteBuffer given.
+     * <p>
+     * The packet consists of the remaining bytes of the returned buffer, which
+     * shares its content with the byteBuffer given. The byteBuffer is advanced past the packet.
+     * <p>
+     * If there isn't sufficient data to construct a packet, return null.
+     *
+     * @param byteBuffer the byte buffer to use.
+     * @return a read-only view of the packet, or null if no packet could be created.
+     * The method will continously be called until nextPacketBuffer returns null.
+     * @throws ProtocolViolationException is there was an error constructing the packet.
+     */
+    ByteBuffer nextPacketBuffer(ByteBuffer byteBuffer) throws ProtocolViolationException;
+}
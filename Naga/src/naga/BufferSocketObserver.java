@@ -0,0 +1,57 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A SocketObserver receiving packets as ByteBuffers.
+ * <p>
+ * When a socket's observer implements this interface, all packets are delivered to
+ * {@link #packetReceived(NIOSocket, java.nio.ByteBuffer)} instead of
+ * {@link naga.SocketObserver#packetReceived(NIOSocket, byte[])}.
+ * If the socket's PacketReader is a {@link naga.BufferPacketReader},
+ * the packets are read-only views of the socket's read buffer, so no byte array is allocated
+ * or copied per packet.
+ *
+ * @author Christoffer Lerno
+ */
+public interface BufferSocketObserver extends SocketObserver
+{
+    /**
+     * Called by the NIOService on the NIO thread when a packet is finished reading.
+     * The packet is the remaining bytes of the buffer.
+     * <p>
+     * <b>The buffer is only valid until this method returns</b>, since its
+     * content may be overwritten by the next read. To keep the packet, copy it using
+     * {@link naga.NIOUtils#copy(java.nio.ByteBuffer)}, or using
+     * {@link naga.NagaBuffer#copyOf(java.nio.ByteBuffer, BufferAllocator)} with the allocator of the service.
+     * <p>
+     * <b>Note: Since this is a direct callback on the NIO thread, this method will suspend IO on
+     * all other connections until the method returns. It is therefore strongly recommended
+     * that the implementation of this method returns as quickly as possible to avoid blocking IO.</b>
+     *
+     * @param socket the socket we received a packet on.
+     * @param packet a read-only buffer containing the packet.
+     */
+    void packetReceived(NIOSocket socket, ByteBuffer packet);
+}
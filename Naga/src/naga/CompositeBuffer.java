@@ -0,0 +1,344 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable sequence of ByteBuffers forming a single packet.
+ * <p>
+ * Buffers are kept in an array with room at both ends, so that appending a trailer
+ * or prepending a header is usually done without copying anything. The content can be
+ * passed directly to gathering writes using {@link #array()}, {@link #arrayOffset()} and
+ * {@link #size()}, or converted to a plain array using {@link #toArray()}.
+ * <p>
+ * This is the packet format used by a {@link naga.CompositePacketWriter}.
+ * <p>
+ * <em>This class is not thread-safe.</em>
+ *
+ * @author Christoffer Lerno
+ */
+public class CompositeBuffer
+{
+    private final static int DEFAULT_CAPACITY = 8;
+    private final static int HEADROOM = 2;
+    private final static ByteBuffer[] EMPTY = new ByteBuffer[0];
+
+    private ByteBuffer[] m_buffers;
+    private int m_start;
+    private int m_end;
+    private boolean m_shared;
+
+    /**
+     * Creates an empty composite buffer.
+     */
+    public CompositeBuffer()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty composite buffer.
+     *
+     * @param capacity the number of buffers to make room for.
+     */
+    public CompositeBuffer(final int capacity)
+    {
+        m_buffers = new ByteBuffer[Math.max(capacity, 0) + HEADROOM];
+        m_start = HEADROOM;
+        m_end = HEADROOM;
+        m_shared = false;
+    }
+
+    private CompositeBuffer(final ByteBuffer[] buffers)
+    {
+        m_buffers = buffers;
+        m_start = 0;
+        m_end = buffers.length;
+        m_shared = true;
+    }
+
+    /**
+     * Creates a composite buffer backed by an array of buffers.
+     * <p>
+     * The array is not copied unless the composite buffer is modified, in which
+     * case the changes are made to a copy of the array.
+     *
+     * @param buffers the buffers, may be null.
+     * @return a composite buffer with the given buffers.
+     */
+    public static CompositeBuffer wrap(final ByteBuffer... buffers)
+    {
+        return new CompositeBuffer(buffers == null ? EMPTY : buffers);
+    }
+
+    /**
+     * Adds a buffer at the end.
+     *
+     * @param buffer the buffer to add, ignored if null.
+     * @return this composite buffer.
+     */
+    public CompositeBuffer append(final ByteBuffer buffer)
+    {
+        if (buffer == null) return this;
+        if (m_shared || m_end == m_buffers.length) reallocate(1, 0);
+        m_buffers[m_end++] = buffer;
+        return this;
+    }
+
+    /**
+     * Adds buffers at the end.
+     *
+     * @param buffers the buffers to add, null buffers are ignored.
+     * @return this composite buffer.
+     */
+    public CompositeBuffer append(final ByteBuffer[] buffers)
+    {
+        if (buffers == null) return this;
+        return append(buffers, 0, buffers.length);
+    }
+
+    /**
+     * Adds the buffers of another composite buffer at the end.
+     *
+     * @param buffers the composite buffer to add.
+     * @return this composite buffer.
+     */
+    public CompositeBuffer append(final CompositeBuffer buffers)
+    {
+        return append(buffers.m_buffers, buffers.m_start, buffers.size());
+    }
+
+    private CompositeBuffer append(final ByteBuffer[] buffers, final int offset, final int length)
+    {
+        if (m_shared || m_end + length > m_buffers.length) reallocate(length, 0);
+        for (int i = offset; i < offset + length; i++)
+        {
+            if (buffers[i] != null) m_buffers[m_end++] = buffers[i];
+        }
+        return this;
+    }
+
+    /**
+     * Adds a buffer at the start.
+     *
+     * @param buffer the buffer to add, ignored if null.
+     * @return this composite buffer.
+     */
+    public CompositeBuffer prepend(final ByteBuffer buffer)
+    {
+        if (buffer == null) return this;
+        if (m_shared || m_start == 0) reallocate(0, 1);
+        m_buffers[--m_start] = buffer;
+        return this;
+    }
+
+    /**
+     * Adds the buffers of another composite buffer at the start.
+     *
+     * @param buffers the composite buffer to add.
+     * @return this composite buffer.
+     */
+    public CompositeBuffer prepend(final CompositeBuffer buffers)
+    {
+        final int length = buffers.size();
+        if (m_shared || m_start < length) reallocate(0, length);
+        for (int i = buffers.m_end - 1; i >= buffers.m_start; i--)
+        {
+            if (buffers.m_buffers[i] != null) m_buffers[--m_start] = buffers.m_buffers[i];
+        }
+        return this;
+    }
+
+    /**
+     * Returns a buffer.
+     *
+     * @param index the index of the buffer, 0 being the first.
+     * @return the buffer.
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    public ByteBuffer get(final int index)
+    {
+        checkIndex(index);
+        return m_buffers[m_start + index];
+    }
+
+    /**
+     * Replaces a buffer.
+     *
+     * @param index the index of the buffer, 0 being the first.
+     * @param buffer the new buffer.
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    public void set(final int index, final ByteBuffer buffer)
+    {
+        checkIndex(index);
+        if (m_shared) reallocate(0, 0);
+        m_buffers[m_start + index] = buffer;
+    }
+
+    /**
+     * Removes buffers from the start.
+     *
+     * @param count the number of buffers to remove.
+     * @throws IndexOutOfBoundsException if there are fewer buffers.
+     */
+    public void removeFirst(final int count)
+    {
+        if (count < 0 || count > size()) throw new IndexOutOfBoundsException("Cannot remove " + count + " of " + size() + " buffers");
+        if (m_shared)
+        {
+            m_start += count;
+            return;
+        }
+        Arrays.fill(m_buffers, m_start, m_start + count, null);
+        m_start += count;
+    }
+
+    /**
+     * Removes all buffers.
+     */
+    public void clear()
+    {
+        if (m_shared)
+        {
+            m_buffers = new ByteBuffer[Math.max(m_buffers.length, DEFAULT_CAPACITY) + HEADROOM];
+            m_shared = false;
+        }
+        else
+        {
+            Arrays.fill(m_buffers, m_start, m_end, null);
+        }
+        m_start = HEADROOM;
+        m_end = HEADROOM;
+    }
+
+    /**
+     * @return the number of buffers.
+     */
+    public int size()
+    {
+        return m_end - m_start;
+    }
+
+    /**
+     * @return true if there are no buffers.
+     */
+    public boolean isEmpty()
+    {
+        return m_end == m_start;
+    }
+
+    /**
+     * @return the total number of remaining bytes in the buffers.
+     */
+    public long remaining()
+    {
+        long remaining = 0;
+        for (int i = m_start; i < m_end; i++)
+        {
+            if (m_buffers[i] != null) remaining += m_buffers[i].remaining();
+        }
+        return remaining;
+    }
+
+    /**
+     * @return true if any of the buffers has remaining bytes.
+     */
+    public boolean hasRemaining()
+    {
+        for (int i = m_start; i < m_end; i++)
+        {
+            if (m_buffers[i] != null && m_buffers[i].hasRemaining()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the array backing this composite buffer.
+     * <p>
+     * The buffers are found at indices arrayOffset() to arrayOffset() + size() - 1.
+     * The array is only valid until this composite buffer is modified.
+     *
+     * @return the backing array.
+     */
+    public ByteBuffer[] array()
+    {
+        return m_buffers;
+    }
+
+    /**
+     * @return the index of the first buffer in the backing array.
+     */
+    public int arrayOffset()
+    {
+        return m_start;
+    }
+
+    /**
+     * Returns the buffers as an array of exactly the right size.
+     * <p>
+     * If the backing array already has the right size it is returned rather than copied,
+     * and will no longer be modified by this composite buffer.
+     *
+     * @return an array with the buffers.
+     */
+    public ByteBuffer[] toArray()
+    {
+        if (m_start == 0 && m_end == m_buffers.length)
+        {
+            m_shared = true;
+            return m_buffers;
+        }
+        return Arrays.copyOfRange(m_buffers, m_start, m_end);
+    }
+
+    private void checkIndex(final int index)
+    {
+        if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("Index " + index + " of " + size() + " buffers");
+    }
+
+    /**
+     * Moves the buffers to a new array, making room for more buffers at the end and the start.
+     *
+     * @param extraAtEnd the number of buffers to make room for at the end.
+     * @param extraAtStart the number of buffers to make room for at the start.
+     */
+    private void reallocate(final int extraAtEnd, final int extraAtStart)
+    {
+        final int size = size();
+        final int headroom = Math.max(m_start, extraAtStart + HEADROOM);
+        final int tailroom = Math.max(m_buffers.length - m_end, Math.max(extraAtEnd, size));
+        final ByteBuffer[] buffers = new ByteBuffer[headroom + size + tailroom];
+        System.arraycopy(m_buffers, m_start, buffers, headroom, size);
+        m_buffers = buffers;
+        m_start = headroom;
+        m_end = headroom + size;
+        m_shared = false;
+    }
+
+    public String toString()
+    {
+        return "CompositeBuffer[buffers=" + size() + ", remaining=" + remaining() + "]";
+    }
+}
@@ -0,0 +1,48 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+/**
+ * A PacketWriter converting packets in place, instead of returning a new array of buffers.
+ * <p>
+ * Writers adding a header or a trailer simply prepend or append a buffer to the
+ * {@link naga.CompositeBuffer}, so a chain of writers does not copy the array of buffers in each step.
+ * Naga uses this method whenever the packet writer of a socket implements this interface,
+ * while {@link naga.PacketWriter#write(java.nio.ByteBuffer[])} remains available for other callers.
+ * <p>
+ * To call a writer that may or may not implement this interface,
+ * use {@link naga.NIOUtils#writePacket(PacketWriter, CompositeBuffer)}.
+ *
+ * @author Christoffer Lerno
+ */
+public interface CompositePacketWriter extends PacketWriter
+{
+    /**
+     * Convert the packet to the bytes to be serialized.
+     * <p>
+     * The writer may not keep a reference to the composite buffer after returning,
+     * since it may be reused for the next packet.
+     *
+     * @param packet the buffers of the packet, which are replaced by the resulting buffers.
+     */
+    void write(CompositeBuffer packet);
+}
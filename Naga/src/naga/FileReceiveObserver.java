@@ -0,0 +1,47 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * Observer notified when a socket has finished receiving bytes into a file.
+ *
+ * @see naga.NIOSocket#receiveFile(java.nio.channels.FileChannel, long, long, FileReceiveObserver)
+ * @author Christoffer Lerno
+ */
+public interface FileReceiveObserver
+{
+    /**
+     * Called by the NIOService on the NIO thread when all bytes requested have been written to the file.
+     * <p>
+     * Packets following the file are delivered to the socket's observer as usual after this call.
+     * <p>
+     * <b>Note: Since this is a direct callback on the NIO thread, this method will suspend IO on
+     * all other connections until the method returns. It is therefore strongly recommended
+     * that the implementation of this method returns as quickly as possible to avoid blocking IO.</b>
+     *
+     * @param socket the socket the file was received on.
+     * @param file the file the bytes were written to.
+     */
+    void fileReceived(NIOSocket socket, FileChannel file);
+}
@@ -0,0 +1,61 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import naga.exception.ProtocolViolationException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A PacketReader for packets that start with a header giving the length of the content.
+ * <p>
+ * Knowing the length up front allows a socket to read packets that do not fit
+ * in the shared buffer of the NIOService: once the header is read, the content is read
+ * straight from the channel into a byte array of the right size,
+ * bypassing the shared buffer.
+ * <p>
+ * Since the size of that array is announced by the peer, packets are only read directly
+ * when the reader has been given an explicit limit, see {@link #getMaxPacketSize()}.
+ *
+ * @author Christoffer Lerno
+ */
+public interface LengthPrefixedPacketReader extends PacketReader
+{
+    /**
+     * Reads the header of the next packet in the buffer.
+     * <p>
+     * If the complete header is available it is consumed, leaving the buffer positioned at
+     * the start of the content. Otherwise the buffer is left untouched.
+     *
+     * @param byteBuffer the byte buffer to read from.
+     * @return the length of the content of the packet, or -1 if the header is incomplete.
+     * @throws ProtocolViolationException if the header is invalid.
+     */
+    int readHeader(ByteBuffer byteBuffer) throws ProtocolViolationException;
+
+    /**
+     * Returns the largest content size that may be read directly, bypassing the shared buffer.
+     *
+     * @return the max packet size, or -1 if packets must fit in the shared buffer of the NIOService.
+     */
+    int getMaxPacketSize();
+}
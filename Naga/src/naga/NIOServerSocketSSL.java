@@ -22,6 +22,7 @@ SOFTWARE.
 package naga;
 
 import javax.net.ssl.SSLContext;
+import java.util.concurrent.Executor;
 
 /**
  * Interface for SSL Server Sockets
@@ -37,4 +38,22 @@ public interface NIOServerSocketSSL extends NIOServerSocket
      */
     public SSLContext getSSLContext();
 
+    /**
+     * Sets the executor running the delegated SSL tasks of sockets accepted after this call,
+     * overriding the executor of the service.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param sslTaskExecutor the executor to use, or null to use the executor of the service accepting the socket.
+     * @see naga.NIOService#setSSLTaskExecutor(java.util.concurrent.Executor)
+     */
+    public void setSSLTaskExecutor(Executor sslTaskExecutor);
+
+    /**
+     * Returns the executor set for this server socket.
+     *
+     * @return the SSL task executor, or null if the executor of the service is used.
+     */
+    public Executor getSSLTaskExecutor();
+
 }
@@ -21,6 +21,8 @@ SOFTWARE.
 */
 package naga;
 
+import naga.eventmachine.DelayedEvent;
+
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import java.io.IOException;
@@ -28,10 +30,16 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class forms the basis of the NIO handling in Naga.
@@ -39,6 +47,12 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * Common usage is to create a single instance of this service and
  * then run one other the select methods in a loop.
  * <p>
+ * Calls can be run on the service thread with {@link naga.NIOService#queue(Runnable)},
+ * or after a delay with {@link naga.NIOService#executeLater(Runnable, long)}.
+ * <p>
+ * A single service is handled by a single thread. To spread sockets over
+ * several threads, use a {@link naga.NIOServiceGroup}.
+ * <p>
  * Use {@link naga.NIOService#openSocket(String, int)} to open a socket to a remote server,
  * and {@link naga.NIOService#openServerSocket(int)}  to open a server socket locally.
  * <p>
@@ -73,8 +87,22 @@ public class NIOService
 	/** The selector used by this service */
 	private final Selector m_selector;
 	private final Queue<Runnable> m_internalEventQueue;
+	private final AtomicBoolean m_wakeupPending;
+	private volatile Thread m_thread;
+	private final TimerWheel m_timerWheel;
     private ByteBuffer m_sharedBuffer;
+    private final ReadBufferPool m_readBufferPool;
+    private boolean m_readBufferPooling;
+    private volatile BufferAllocator m_bufferAllocator;
+    private volatile Executor m_sslTaskExecutor;
+    private volatile WriteBudget m_writeBudget;
+    private volatile int m_maxBytesPerEvent;
+    private volatile int m_maxReadsPerEvent;
+    private List<SocketChannelResponder> m_readyAgain;
+    private List<SocketChannelResponder> m_readyAgainSpare;
     private ExceptionObserver m_exceptionObserver;
+    private final AtomicInteger m_socketCount;
+    private volatile NIOServiceGroup m_serviceGroup;
 
 	/**
 	 * Create a new nio service with default buffer size (64kb)
@@ -99,13 +127,28 @@ public class NIOService
 	{
 		m_selector = Selector.open();
 		m_internalEventQueue = new ConcurrentLinkedQueue<Runnable>();
+		m_wakeupPending = new AtomicBoolean(false);
+		m_thread = null;
+		m_timerWheel = new TimerWheel(this, TimerWheel.DEFAULT_TICK_DURATION, TimerWheel.DEFAULT_TICKS_PER_WHEEL);
         m_exceptionObserver = ExceptionObserver.DEFAULT;
+        m_socketCount = new AtomicInteger(0);
+        m_serviceGroup = null;
+        m_readBufferPool = new ReadBufferPool(ReadBufferPool.DEFAULT_INITIAL_SIZE, ReadBufferPool.DEFAULT_MAX_POOLED_BUFFERS);
+        m_readBufferPooling = false;
+        m_bufferAllocator = HeapBufferAllocator.INSTANCE;
+        m_sslTaskExecutor = SSLTaskExecutor.getDefault();
+        m_writeBudget = null;
+        m_maxBytesPerEvent = 0;
+        m_maxReadsPerEvent = 0;
+        m_readyAgain = new ArrayList<SocketChannelResponder>();
+        m_readyAgainSpare = new ArrayList<SocketChannelResponder>();
         setBufferSize(ioBufferSize);
 	}
 
 	/**
 	 * Run all waiting NIO requests, blocking indefinitely
-	 * until at least one request is handled.
+	 * until at least one request is handled, or the next delayed
+	 * event is due.
 	 *
 	 * @throws IOException if there is an IO error waiting for requests.
      * @throws ClosedSelectorException if the underlying selector is closed
@@ -113,16 +156,11 @@ public class NIOService
 	 */
 	public synchronized void selectBlocking() throws IOException
 	{
-		executeQueue();
-		if (m_selector.select() > 0)
-		{
-			handleSelectedKeys();
-		}
-		executeQueue();
+		select(0);
 	}
 
 	/**
-	 * Run all waiting NIO requests, returning immediately if
+	 * Run all waiting NIO requests and due delayed events, returning immediately if
 	 * no requests are found.
 	 *
 	 * @throws IOException if there is an IO error waiting for requests.
@@ -131,20 +169,15 @@ public class NIOService
 	 */
 	public synchronized void selectNonBlocking() throws IOException
 	{
-		executeQueue();
-		if (m_selector.selectNow() > 0)
-		{
-			handleSelectedKeys();
-		}
-		executeQueue();
+		select(-1);
 	}
 
 	/**
 	 * Run all waiting NIO requests, blocking until
-	 * at least one request is found, or the method has blocked
+	 * at least one request is found, the next delayed event is due, or the method has blocked
 	 * for the time given by the timeout value, whatever comes first.
 	 *
-	 * @param timeout the maximum time to wait for requests.
+	 * @param timeout the maximum time to wait for requests, 0 to wait indefinitely.
 	 * @throws IllegalArgumentException If the value of the timeout argument is negative.
 	 * @throws IOException if there is an IO error waiting for requests.
      * @throws ClosedSelectorException if the underlying selector is closed.
@@ -152,14 +185,106 @@ public class NIOService
 	 */
 	public synchronized void selectBlocking(final long timeout) throws IOException
 	{
+		if (timeout < 0) throw new IllegalArgumentException("Negative timeout");
+		select(timeout);
+	}
+
+	/**
+	 * Internal method to run a single select cycle.
+	 * <p>
+	 * The select is bounded by the time until the next delayed event,
+	 * so that timers never need a thread or a wakeup of their own.
+	 *
+	 * @param timeout the maximum time to block, 0 to block indefinitely or a negative value
+	 * to not block at all.
+	 * @throws IOException if there is an IO error waiting for requests.
+	 */
+	private void select(final long timeout) throws IOException
+	{
+		m_thread = Thread.currentThread();
+		m_wakeupPending.set(false);
 		executeQueue();
-		if (m_selector.select(timeout) > 0)
+		long wait = timeout;
+		// Sockets that ran out of read budget should be serviced without blocking.
+		if (!m_readyAgain.isEmpty()) wait = -1;
+		if (wait >= 0)
+		{
+			final long timeToNextEvent = m_timerWheel.timeToNextTick(System.currentTimeMillis());
+			if (timeToNextEvent == 0) wait = -1;
+			else if (timeToNextEvent > 0 && (wait == 0 || timeToNextEvent < wait)) wait = timeToNextEvent;
+		}
+		final int selected = wait < 0 ? m_selector.selectNow() : m_selector.select(wait);
+		if (selected > 0)
 		{
 			handleSelectedKeys();
 		}
+		handleReadyAgain();
+		m_timerWheel.expire(System.currentTimeMillis());
 		executeQueue();
 	}
 
+	/**
+	 * Execute a call on the NIOService thread after a delay.
+	 * <p>
+	 * The call is run by the select loop, after handling the selected keys.
+	 * Delayed events are kept in a hashed wheel with a resolution of 10 ms,
+	 * so a call may run up to one tick late, but never early.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param call the call to execute.
+	 * @param msDelay the delay in ms.
+	 * @return a cancellable representation of the delayed call.
+	 */
+	public DelayedEvent executeLater(final Runnable call, final long msDelay)
+	{
+		return executeAt(call, System.currentTimeMillis() + msDelay);
+	}
+
+	/**
+	 * Execute a call on the NIOService thread at a certain time.
+	 * <p>
+	 * If the time has already passed, the call is run on the next tick of the delayed event wheel.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param call the call to execute.
+	 * @param time the time to execute the call, in ms as given by System.currentTimeMillis().
+	 * @return a cancellable representation of the delayed call.
+	 */
+	public DelayedEvent executeAt(final Runnable call, final long time)
+	{
+		final TimerWheel.Timeout timeout = m_timerWheel.newTimeout(call, time);
+		if (inEventLoop())
+		{
+			m_timerWheel.schedule(timeout);
+		}
+		else
+		{
+			queue(new Runnable()
+			{
+				public void run()
+				{
+					m_timerWheel.schedule(timeout);
+				}
+			});
+		}
+		return timeout;
+	}
+
+	/**
+	 * Determine if the current thread is the thread running this service,
+	 * that is, the thread that last called one of the select methods.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return true if called on the NIOService thread, false otherwise.
+	 */
+	public final boolean inEventLoop()
+	{
+		return Thread.currentThread() == m_thread;
+	}
+
 	/**
 	 * Open a normal socket to the host on the given port returning
 	 * a NIOSocket.
@@ -239,7 +364,7 @@ public class NIOService
         channel.configureBlocking(false);
         final InetSocketAddress address = new InetSocketAddress(inetAddress, port);
         channel.connect(address);
-        return new SSLSocketChannelResponder(this, registerSocketChannel(channel, address), sslEngine, true);
+        return new SSLSocketChannelResponder(this, registerSocketChannel(channel, address), sslEngine, true, m_sslTaskExecutor);
     }
 
 
@@ -371,10 +496,64 @@ public class NIOService
 	{
 		socketChannel.configureBlocking(false);
 		final SocketChannelResponder channelResponder = new SocketChannelResponder(this, socketChannel, address);
+		channelResponder.setWriteBudget(m_writeBudget);
+		m_socketCount.incrementAndGet();
 		queue(new RegisterChannelEvent(channelResponder));
 		return channelResponder;
 	}
 
+	/**
+	 * Internal method called when a socket registered by this service has closed.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 */
+	void socketClosed()
+	{
+		m_socketCount.decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of sockets currently registered with this service.
+	 * <p>
+	 * This is the number used by a {@link naga.NIOServiceGroup} when balancing
+	 * connections using the least connections strategy.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return the number of open sockets on this service.
+	 */
+	public int getSocketCount()
+	{
+		return m_socketCount.get();
+	}
+
+	/**
+	 * Internal method to set the group that accepted sockets should be distributed over.
+	 * <p>
+	 * This is set by the NIOServiceGroup on its acceptor service.
+	 *
+	 * @param serviceGroup the group to distribute accepted sockets over, or null
+	 * to register accepted sockets on this service.
+	 */
+	void setServiceGroup(final NIOServiceGroup serviceGroup)
+	{
+		m_serviceGroup = serviceGroup;
+	}
+
+	/**
+	 * Internal method to select the service that should handle a newly accepted socket.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return this service, or the next service in the service group if the
+	 * service is the acceptor of a group.
+	 */
+	NIOService nextServiceForAccept()
+	{
+		final NIOServiceGroup serviceGroup = m_serviceGroup;
+		return serviceGroup == null ? this : serviceGroup.nextService();
+	}
+
 	/**
 	 * Internal method to execute events on the internal event queue.
 	 * <p>
@@ -426,6 +605,75 @@ public class NIOService
 		}
 	}
 
+	/**
+	 * Gives the sockets that ran out of read budget another turn,
+	 * after all selected keys have been handled.
+	 */
+	private void handleReadyAgain()
+	{
+		if (m_readyAgain.isEmpty()) return;
+		// Swap lists, since sockets may run out of budget again.
+		final List<SocketChannelResponder> responders = m_readyAgain;
+		m_readyAgain = m_readyAgainSpare;
+		for (final SocketChannelResponder responder : responders)
+		{
+			try
+			{
+				responder.readAgain();
+			}
+			catch (Throwable t)
+			{
+				notifyException(t);
+			}
+		}
+		responders.clear();
+		m_readyAgainSpare = responders;
+	}
+
+    /**
+     * Sets how much a socket may read each time it is ready for reading.
+     * <p>
+     * By default a socket reads until the channel has no more data, which lets a single
+     * fast sender hold up all other sockets of the service. With a budget, a socket that
+     * reaches it stops reading and is serviced again after the other ready sockets,
+     * without waiting for the next blocking select.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param maxBytes the number of bytes after which a socket stops reading, a value less than 1 means no limit.
+     * @param maxReads the number of reads after which a socket stops reading, a value less than 1 means no limit.
+     */
+    public void setReadBudget(final int maxBytes, final int maxReads)
+    {
+        m_maxBytesPerEvent = maxBytes;
+        m_maxReadsPerEvent = maxReads;
+    }
+
+    /**
+     * Determine if a socket has used up its read budget.
+     *
+     * @param reads the number of reads so far.
+     * @param bytes the number of bytes read so far.
+     * @return true if the socket should stop reading.
+     */
+    boolean isReadBudgetExhausted(final int reads, final long bytes)
+    {
+        return m_maxReadsPerEvent > 0 && reads >= m_maxReadsPerEvent
+               || m_maxBytesPerEvent > 0 && bytes >= m_maxBytesPerEvent;
+    }
+
+    /**
+     * Schedules a socket to continue reading after the other sockets have been serviced.
+     * <p>
+     * Called on the NIOService thread.
+     *
+     * @param responder the socket that ran out of read budget.
+     */
+    void readAgainLater(final SocketChannelResponder responder)
+    {
+        m_readyAgain.add(responder);
+    }
+
     /**
      * Set the new shared buffer size.
      * <p>
@@ -444,7 +692,8 @@ public class NIOService
      * <p/>
      * <em>This method is *not* thread-safe.</em>
      *
-     * @return the current buffer size, which is the largest packet that can be read.
+     * @return the current buffer size, which is the largest packet that can be read,
+     * unless the packet reader is a {@link naga.LengthPrefixedPacketReader} with a max packet size.
      */
     public int getBufferSize()
     {
@@ -452,6 +701,146 @@ public class NIOService
     }
 
 
+    /**
+     * Enables or disables pooled cumulation buffers for partial packets.
+     * <p>
+     * By default, the unconsumed bytes of a partial packet are copied to a new buffer after
+     * each read, and copied back into the shared buffer before the next read.
+     * With pooling enabled, a socket instead leases a buffer from a pool of this service
+     * while it holds a partial packet, and reads the rest of the packet directly into it.
+     * The buffer doubles in size as needed, up to the shared buffer size,
+     * and is returned to the pool as soon as it is drained.
+     * <p>
+     * This avoids repeated copying and allocation when large packets arrive in many
+     * small segments.
+     * <p>
+     * <em>This method is *not* thread-safe.</em>
+     *
+     * @param pooling true to use pooled cumulation buffers, false to copy partial packets.
+     */
+    public void setReadBufferPooling(final boolean pooling)
+    {
+        m_readBufferPooling = pooling;
+    }
+
+    /**
+     * Returns true if partial packets are kept in pooled cumulation buffers.
+     *
+     * @return true if read buffer pooling is enabled.
+     */
+    public boolean isReadBufferPooling()
+    {
+        return m_readBufferPooling;
+    }
+
+    /**
+     * Sets the allocator used for the temporary buffers of this service, such as
+     * cumulation buffers (see {@link #setReadBufferPooling(boolean)}) and the
+     * records encrypted by SSL sockets.
+     * <p>
+     * The default is {@link naga.HeapBufferAllocator}, which allocates a new heap buffer every time.
+     * Use a {@link naga.PooledBufferAllocator} to reuse buffers instead.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param bufferAllocator the allocator to use.
+     */
+    public void setBufferAllocator(final BufferAllocator bufferAllocator)
+    {
+        if (bufferAllocator == null) throw new NullPointerException();
+        m_bufferAllocator = bufferAllocator;
+        m_readBufferPool.setAllocator(bufferAllocator);
+    }
+
+    /**
+     * Returns the allocator used for the temporary buffers of this service.
+     *
+     * @return the buffer allocator.
+     */
+    public BufferAllocator getBufferAllocator()
+    {
+        return m_bufferAllocator;
+    }
+
+    /**
+     * Sets the executor running the delegated tasks of the SSL engines of this service,
+     * which is where the expensive parts of SSL handshakes are computed.
+     * <p>
+     * The default is {@link naga.SSLTaskExecutor#getDefault()}, shared by all services.
+     * The executor applies to SSL sockets opened or accepted after this call, but a server
+     * socket may also have an executor of its own, see {@link naga.NIOServerSocketSSL#setSSLTaskExecutor(java.util.concurrent.Executor)}.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param sslTaskExecutor the executor to use, wrap it in a {@link naga.SSLTaskExecutor} to measure the tasks.
+     */
+    public void setSSLTaskExecutor(final Executor sslTaskExecutor)
+    {
+        if (sslTaskExecutor == null) throw new NullPointerException();
+        m_sslTaskExecutor = sslTaskExecutor;
+    }
+
+    /**
+     * Returns the executor running the delegated tasks of new SSL sockets of this service.
+     *
+     * @return the SSL task executor.
+     */
+    public Executor getSSLTaskExecutor()
+    {
+        return m_sslTaskExecutor;
+    }
+
+    /**
+     * Sets a budget limiting the total size of the write queues of the sockets of this service.
+     * <p>
+     * The budget applies to sockets opened or accepted after this call, sockets that
+     * are already open keep using the previous budget, if any. The same budget may be set on
+     * several services, see {@link naga.NIOServiceGroup#setWriteBudget(WriteBudget)}.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param writeBudget the budget, or null to leave the write queues of new sockets unbounded
+     * (except by {@link naga.NIOSocket#setMaxQueueSize(int)}).
+     */
+    public void setWriteBudget(final WriteBudget writeBudget)
+    {
+        // Register with the budget first, so that it can enforce its policy on every socket using it.
+        if (writeBudget != null) writeBudget.addService(this);
+        m_writeBudget = writeBudget;
+    }
+
+    /**
+     * Returns the budget used by new sockets of this service.
+     *
+     * @return the write budget, or null if there is none.
+     */
+    public WriteBudget getWriteBudget()
+    {
+        return m_writeBudget;
+    }
+
+    /**
+     * Internal method returning the keys registered with the selector of this service.
+     * <p>
+     * This method should only ever be called from the NIOService thread.
+     *
+     * @return the registered keys.
+     */
+    Set<SelectionKey> getSelectionKeys()
+    {
+        return m_selector.keys();
+    }
+
+    /**
+     * Returns the pool of cumulation buffers for this service.
+     *
+     * @return the read buffer pool.
+     */
+    ReadBufferPool getReadBufferPool()
+    {
+        return m_readBufferPool;
+    }
+
     /**
      * Returns the shared byte buffer. This is shared between all users of the service to avoid allocating
      * a huge number of byte buffers.
@@ -554,10 +943,20 @@ public class NIOService
 
 	/**
 	 * Runs wakeup on the selector, causing any blocking select to be released.
+	 * <p>
+	 * Only the first call in each select cycle reaches the selector, later calls are
+	 * no-ops until the service starts its next select. Calls on the NIOService thread
+	 * are ignored, since that thread is not blocked in a select.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
 	 */
 	public void wakeup()
 	{
-		m_selector.wakeup();
+		if (inEventLoop()) return;
+		if (m_wakeupPending.compareAndSet(false, true))
+		{
+			m_selector.wakeup();
+		}
 	}
 
     /**
@@ -661,6 +1060,9 @@ public class NIOService
 			{
 				// Swallow exceptions.
 			}
+			// Let the budget stop waiting for this service.
+			final WriteBudget writeBudget = m_writeBudget;
+			if (writeBudget != null) writeBudget.removeService(NIOService.this);
 		}
 	}
 }
@@ -0,0 +1,507 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of NIOServices, each running its own selector on its own thread.
+ * <p>
+ * A single NIOService is limited to a single thread, and consequently to a single core.
+ * The NIOServiceGroup lifts this restriction by owning one acceptor service and a
+ * number of child services. Server sockets are opened on the acceptor, and each accepted
+ * connection is handed over to one of the child services using the group's
+ * load balancing strategy. Sockets opened using the group are distributed the same way.
+ * <p>
+ * Each socket is bound to a single child service for its lifetime, so all callbacks for
+ * a socket are still received on one and the same thread. Callbacks for different
+ * sockets may however run concurrently, so observers shared between sockets must be thread-safe.
+ * <p>
+ * Example use:
+ * <code><pre>
+ * NIOServiceGroup group = new NIOServiceGroup(Runtime.getRuntime().availableProcessors());
+ * NIOServerSocket serverSocket = group.openServerSocket(1234);
+ * serverSocket.listen(myObserver);
+ * group.start();
+ * </pre></code>
+ *
+ * @author Christoffer Lerno
+ */
+public class NIOServiceGroup
+{
+    /**
+     * The strategy used to pick a child service for a new socket.
+     */
+    public enum LoadBalancing
+    {
+        /** Cycle through the child services in order. */
+        ROUND_ROBIN,
+        /** Pick the child service with the fewest open sockets. */
+        LEAST_CONNECTIONS
+    }
+
+    private final NIOService m_acceptor;
+    private final NIOService[] m_services;
+    private final LoadBalancing m_loadBalancing;
+    private final AtomicInteger m_nextService;
+    private Thread[] m_threads;
+
+    /**
+     * Creates a new group with round robin load balancing and the default buffer size.
+     *
+     * @param services the number of child services (and threads) to use.
+     * @throws IOException if we failed to open the selectors used by the services.
+     * @throws IllegalArgumentException if the number of services is less than 1.
+     */
+    public NIOServiceGroup(final int services) throws IOException
+    {
+        this(services, LoadBalancing.ROUND_ROBIN);
+    }
+
+    /**
+     * Creates a new group with the default buffer size.
+     *
+     * @param services the number of child services (and threads) to use.
+     * @param loadBalancing the strategy used when assigning new sockets to a child service.
+     * @throws IOException if we failed to open the selectors used by the services.
+     * @throws IllegalArgumentException if the number of services is less than 1.
+     */
+    public NIOServiceGroup(final int services, final LoadBalancing loadBalancing) throws IOException
+    {
+        this(services, NIOService.DEFAULT_IO_BUFFER_SIZE, loadBalancing);
+    }
+
+    /**
+     * Creates a new group.
+     *
+     * @param services the number of child services (and threads) to use.
+     * @param ioBufferSize the buffer size of each child service.
+     * @param loadBalancing the strategy used when assigning new sockets to a child service.
+     * @throws IOException if we failed to open the selectors used by the services.
+     * @throws IllegalArgumentException if the number of services is less than 1 or the buffer size is
+     * less than 256 bytes.
+     */
+    public NIOServiceGroup(final int services, final int ioBufferSize, final LoadBalancing loadBalancing) throws IOException
+    {
+        if (services < 1) throw new IllegalArgumentException("A service group needs at least 1 service, was: " + services);
+        if (loadBalancing == null) throw new NullPointerException();
+        m_loadBalancing = loadBalancing;
+        m_nextService = new AtomicInteger(0);
+        m_services = new NIOService[services];
+        m_threads = null;
+        try
+        {
+            for (int i = 0; i < services; i++)
+            {
+                m_services[i] = new NIOService(ioBufferSize);
+            }
+            m_acceptor = new NIOService();
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+        m_acceptor.setServiceGroup(this);
+    }
+
+    /**
+     * Starts one thread for the acceptor and one thread for each child service.
+     * <p>
+     * The threads will run until the group is closed.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @throws IllegalStateException if the group already is started.
+     */
+    public synchronized void start()
+    {
+        if (m_threads != null) throw new IllegalStateException("Service group already started.");
+        m_threads = new Thread[m_services.length + 1];
+        m_threads[0] = new Thread(new ServiceLoop(m_acceptor), "Naga Acceptor");
+        for (int i = 0; i < m_services.length; i++)
+        {
+            m_threads[i + 1] = new Thread(new ServiceLoop(m_services[i]), "Naga Service " + i);
+        }
+        for (final Thread thread : m_threads)
+        {
+            thread.start();
+        }
+    }
+
+    /**
+     * Close the acceptor and all child services, disconnecting all their sockets.
+     * <p>
+     * It is not possible to restart the group once closed.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     */
+    public void close()
+    {
+        if (m_acceptor != null) m_acceptor.close();
+        for (final NIOService service : m_services)
+        {
+            if (service != null) service.close();
+        }
+    }
+
+    /**
+     * Determine if this group is open.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @return true if the acceptor is open, false otherwise.
+     */
+    public boolean isOpen()
+    {
+        return m_acceptor.isOpen();
+    }
+
+    /**
+     * Returns the service used to accept connections on server sockets opened by this group.
+     *
+     * @return the acceptor service.
+     */
+    public NIOService getAcceptor()
+    {
+        return m_acceptor;
+    }
+
+    /**
+     * Returns a copy of the child services in this group.
+     *
+     * @return the child services.
+     */
+    public NIOService[] getServices()
+    {
+        return m_services.clone();
+    }
+
+    /**
+     * Returns the load balancing strategy of this group.
+     *
+     * @return the strategy used when assigning sockets to services.
+     */
+    public LoadBalancing getLoadBalancing()
+    {
+        return m_loadBalancing;
+    }
+
+    /**
+     * Picks the child service that should handle the next socket, using the load balancing
+     * strategy of this group.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @return the child service to use.
+     */
+    public NIOService nextService()
+    {
+        if (m_services.length == 1) return m_services[0];
+        switch (m_loadBalancing)
+        {
+            case LEAST_CONNECTIONS:
+                NIOService bestService = m_services[0];
+                int bestCount = bestService.getSocketCount();
+                for (int i = 1; i < m_services.length; i++)
+                {
+                    final int count = m_services[i].getSocketCount();
+                    if (count < bestCount)
+                    {
+                        bestService = m_services[i];
+                        bestCount = count;
+                    }
+                }
+                return bestService;
+            case ROUND_ROBIN:
+            default:
+                // Mask the sign bit so that we keep cycling when the counter wraps around.
+                return m_services[(m_nextService.getAndIncrement() & Integer.MAX_VALUE) % m_services.length];
+        }
+    }
+
+    /**
+     * Updates the exception observer for the acceptor and all child services.
+     *
+     * @param exceptionObserver the new exception observer, if this is null, logging will be directed to stderr.
+     */
+    public void setExceptionObserver(final ExceptionObserver exceptionObserver)
+    {
+        m_acceptor.setExceptionObserver(exceptionObserver);
+        for (final NIOService service : m_services)
+        {
+            service.setExceptionObserver(exceptionObserver);
+        }
+    }
+
+    /**
+     * Sets the read budget for all child services.
+     *
+     * @param maxBytes the number of bytes after which a socket stops reading, a value less than 1 means no limit.
+     * @param maxReads the number of reads after which a socket stops reading, a value less than 1 means no limit.
+     * @see naga.NIOService#setReadBudget(int, int)
+     */
+    public void setReadBudget(final int maxBytes, final int maxReads)
+    {
+        for (final NIOService service : m_services)
+        {
+            service.setReadBudget(maxBytes, maxReads);
+        }
+    }
+
+    /**
+     * Sets the buffer allocator of all services, so that they share the same pool of buffers.
+     *
+     * @param bufferAllocator the allocator to use.
+     * @see naga.NIOService#setBufferAllocator(BufferAllocator)
+     */
+    public void setBufferAllocator(final BufferAllocator bufferAllocator)
+    {
+        m_acceptor.setBufferAllocator(bufferAllocator);
+        for (final NIOService service : m_services)
+        {
+            service.setBufferAllocator(bufferAllocator);
+        }
+    }
+
+    /**
+     * Sets the executor running the delegated SSL tasks of new sockets of all services in the group.
+     *
+     * @param sslTaskExecutor the executor to use.
+     * @see naga.NIOService#setSSLTaskExecutor(java.util.concurrent.Executor)
+     */
+    public void setSSLTaskExecutor(final Executor sslTaskExecutor)
+    {
+        m_acceptor.setSSLTaskExecutor(sslTaskExecutor);
+        for (final NIOService service : m_services)
+        {
+            service.setSSLTaskExecutor(sslTaskExecutor);
+        }
+    }
+
+    /**
+     * Sets a budget shared by the write queues of the sockets of all services in the group.
+     *
+     * @param writeBudget the budget, or null to remove the budget for new sockets.
+     * @see naga.NIOService#setWriteBudget(WriteBudget)
+     */
+    public void setWriteBudget(final WriteBudget writeBudget)
+    {
+        m_acceptor.setWriteBudget(writeBudget);
+        for (final NIOService service : m_services)
+        {
+            service.setWriteBudget(writeBudget);
+        }
+    }
+
+    /**
+     * Open a normal socket on one of the child services.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param host the host we want to connect to.
+     * @param port the port to use for the connection.
+     * @return a NIOSocket object for asynchronous communication.
+     * @throws IOException if registering the new socket failed.
+     * @see naga.NIOService#openSocket(String, int)
+     */
+    public NIOSocket openSocket(final String host, final int port) throws IOException
+    {
+        return nextService().openSocket(host, port);
+    }
+
+    /**
+     * Open a normal socket on one of the child services.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param inetAddress the address we want to connect to.
+     * @param port the port to use for the connection.
+     * @return a NIOSocket object for asynchronous communication.
+     * @throws IOException if registering the new socket failed.
+     * @see naga.NIOService#openSocket(java.net.InetAddress, int)
+     */
+    public NIOSocket openSocket(final InetAddress inetAddress, final int port) throws IOException
+    {
+        return nextService().openSocket(inetAddress, port);
+    }
+
+    /**
+     * Open an SSL socket on one of the child services.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param sslEngine the SSL engine to use for SSL-negotiation.
+     * @param host the host we want to connect to.
+     * @param port the port to use for the connection.
+     * @return a NIOSocket object for asynchronous communication.
+     * @throws IOException if registering the new socket failed.
+     * @see naga.NIOService#openSSLSocket(javax.net.ssl.SSLEngine, String, int)
+     */
+    public NIOSocket openSSLSocket(final SSLEngine sslEngine, final String host, final int port) throws IOException
+    {
+        return nextService().openSSLSocket(sslEngine, host, port);
+    }
+
+    /**
+     * Open an SSL socket on one of the child services.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param sslEngine the SSL engine to use for SSL-negotiation.
+     * @param inetAddress the address we want to connect to.
+     * @param port the port to use for the connection.
+     * @return a NIOSocketSSL object for asynchronous communication.
+     * @throws IOException if registering the new socket failed.
+     * @see naga.NIOService#openSSLSocket(javax.net.ssl.SSLEngine, java.net.InetAddress, int)
+     */
+    public NIOSocketSSL openSSLSocket(final SSLEngine sslEngine, final InetAddress inetAddress, final int port) throws IOException
+    {
+        return nextService().openSSLSocket(sslEngine, inetAddress, port);
+    }
+
+    /**
+     * Open a server socket on the acceptor with the default connection backlog.
+     * <p>
+     * Accepted sockets are distributed over the child services.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param port the port to open.
+     * @return a NIOServerSocket for asynchronous connection to the server socket.
+     * @throws IOException if registering the socket fails.
+     */
+    public NIOServerSocket openServerSocket(final int port) throws IOException
+    {
+        return m_acceptor.openServerSocket(port);
+    }
+
+    /**
+     * Open a server socket on the acceptor.
+     * <p>
+     * Accepted sockets are distributed over the child services.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param port the port to open.
+     * @param backlog the maximum connection backlog (i.e. connections pending accept)
+     * @return a NIOServerSocket for asynchronous connection to the server socket.
+     * @throws IOException if registering the socket fails.
+     */
+    public NIOServerSocket openServerSocket(final int port, final int backlog) throws IOException
+    {
+        return m_acceptor.openServerSocket(port, backlog);
+    }
+
+    /**
+     * Open a server socket on the acceptor.
+     * <p>
+     * Accepted sockets are distributed over the child services.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param address the address to open.
+     * @param backlog the maximum connection backlog (i.e. connections pending accept)
+     * @return a NIOServerSocket for asynchronous connection to the server socket.
+     * @throws IOException if registering the socket fails.
+     */
+    public NIOServerSocket openServerSocket(final InetSocketAddress address, final int backlog) throws IOException
+    {
+        return m_acceptor.openServerSocket(address, backlog);
+    }
+
+    /**
+     * Open an SSL server socket on the acceptor with the default connection backlog.
+     * <p>
+     * Accepted sockets are distributed over the child services.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param sslContext the SSLContext to use for SSL-negotiation.
+     * @param port the port to open.
+     * @return a NIOServerSocket for asynchronous connection to the server socket.
+     * @throws IOException if registering the socket fails.
+     */
+    public NIOServerSocketSSL openSSLServerSocket(final SSLContext sslContext, final int port) throws IOException
+    {
+        return m_acceptor.openSSLServerSocket(sslContext, port);
+    }
+
+    /**
+     * Open an SSL server socket on the acceptor.
+     * <p>
+     * Accepted sockets are distributed over the child services.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param sslContext the SSLContext to use for SSL-negotiation.
+     * @param address the address to open.
+     * @param backlog the maximum connection backlog (i.e. connections pending accept)
+     * @return a NIOServerSocket for asynchronous connection to the server socket.
+     * @throws IOException if registering the socket fails.
+     */
+    public NIOServerSocketSSL openSSLServerSocket(final SSLContext sslContext, final InetSocketAddress address, final int backlog) throws IOException
+    {
+        return m_acceptor.openSSLServerSocket(sslContext, address, backlog);
+    }
+
+    /**
+     * The loop run by each of the group's threads.
+     */
+    private static class ServiceLoop implements Runnable
+    {
+        private final NIOService m_service;
+
+        private ServiceLoop(final NIOService service)
+        {
+            m_service = service;
+        }
+
+        @Override
+        public void run()
+        {
+            while (m_service.isOpen())
+            {
+                try
+                {
+                    m_service.selectBlocking();
+                }
+                catch (ClosedSelectorException e)
+                {
+                    // The service was closed.
+                    return;
+                }
+                catch (IOException e)
+                {
+                    m_service.notifyException(e);
+                }
+            }
+        }
+    }
+}
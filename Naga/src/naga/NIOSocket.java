@@ -22,6 +22,8 @@ SOFTWARE.
 package naga;
 
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Interface for the NIOSocket, which is
@@ -43,6 +45,9 @@ public interface NIOSocket extends NIOAbstractSocket
 	 * queue size would exceed <code>getMaxQueueSize()</code>),
 	 * the packet is discarded and the method returns false.
 	 * <p>
+	 * When called on the NIOService thread (e.g. from a SocketObserver callback) and
+	 * nothing else is waiting to be written, the packet is written to the channel immediately.
+	 * <p>
 	 * <em>This method is thread-safe.</em>
 	 *
 	 * @param packet the packet to send.
@@ -59,6 +64,9 @@ public interface NIOSocket extends NIOAbstractSocket
      * queue size would exceed <code>getMaxQueueSize()</code>),
      * the packet is discarded and the method returns false.
      * <p>
+     * When called on the NIOService thread (e.g. from a SocketObserver callback) and
+     * nothing else is waiting to be written, the packet is written to the channel immediately.
+     * <p>
      * <em>This method is thread-safe.</em>
      *
      * @param packet the packet to send.
@@ -68,6 +76,137 @@ public interface NIOSocket extends NIOAbstractSocket
      */
     boolean write(byte[] packet, Object tag);
 
+	/**
+	 * Write a packet held in a ByteBuffer asynchronously on this socket.
+	 * <p>
+	 * The remaining bytes of the buffer are handed to the PacketWriter as they are, so
+	 * a direct buffer is written to the channel without being copied into a byte array.
+	 * <p>
+	 * The socket takes ownership of the buffer: its position is advanced as it is written,
+	 * and it must not be modified until the packet is reported as sent to
+	 * {@link naga.SocketObserver#packetSent(NIOSocket, Object)} or the socket is closed.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param packet the packet to send.
+	 * @return true if the packet was queued, false if the queue limit
+	 * was reached and the packet was thrown away.
+	 * @see #write(byte[])
+	 */
+	boolean write(ByteBuffer packet);
+
+	/**
+	 * Write a packet made up of several buffers asynchronously on this socket.
+	 * <p>
+	 * The parts, e.g. a header and a body, are sent as a single packet using a gathering
+	 * write, so they never need to be concatenated.
+	 * <p>
+	 * The socket takes ownership of the buffers in the same way as {@link #write(java.nio.ByteBuffer)},
+	 * the array itself may be reused once this method returns.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param parts the parts of the packet to send.
+	 * @return true if the packet was queued, false if the queue limit
+	 * was reached and the packet was thrown away.
+	 */
+	boolean write(ByteBuffer... parts);
+
+	/**
+	 * Write a packet made up of several buffers asynchronously on this socket.
+	 * <p>
+	 * This is the tagged version of {@link #write(java.nio.ByteBuffer...)}, a single
+	 * tagged buffer is written by passing an array of length one.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param parts the parts of the packet to send.
+	 * @param tag an optional tag to tag the packet (used in {@link naga.SocketObserver#packetSent(NIOSocket, Object)}).
+	 * @return true if the packet was queued, false if the queue limit
+	 * was reached and the packet was thrown away.
+	 */
+	boolean write(ByteBuffer[] parts, Object tag);
+
+	/**
+	 * Write a reference counted packet asynchronously on this socket.
+	 * <p>
+	 * The packet is the remaining bytes of the buffer at the time of the call.
+	 * The reference of the caller passes to the socket, which releases it once the packet
+	 * has been sent, or when the packet is thrown away. To keep using the buffer,
+	 * {@link naga.NagaBuffer#retain()} it before writing.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param packet the packet to send.
+	 * @return true if the packet was queued, false if the queue limit
+	 * was reached and the packet was released.
+	 */
+	boolean write(NagaBuffer packet);
+
+	/**
+	 * Write a reference counted packet asynchronously on this socket.
+	 * <p>
+	 * This is the tagged version of {@link #write(NagaBuffer)}.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param packet the packet to send.
+	 * @param tag an optional tag to tag the packet (used in {@link naga.SocketObserver#packetSent(NIOSocket, Object)}).
+	 * @return true if the packet was queued, false if the queue limit
+	 * was reached and the packet was released.
+	 */
+	boolean write(NagaBuffer packet, Object tag);
+
+	/**
+	 * Sends a part of a file asynchronously on this socket.
+	 * <p>
+	 * The transfer is queued in order with packets written to the socket. With the default
+	 * {@link naga.packetwriter.RawPacketWriter} the bytes are sent using
+	 * {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+	 * which lets the operating system copy directly from the file to the socket.
+	 * SSL sockets without a PacketWriter of their own memory map and encrypt the region
+	 * in chunks of bounded size. If any other PacketWriter is installed (e.g. for ciphers or framing),
+	 * the region is memory mapped and passed to the PacketWriter as a single packet, which limits
+	 * it to Integer.MAX_VALUE bytes, and writers copying the packet will hold all of it in memory.
+	 * <p>
+	 * Transfers do not count towards the write queue size. The file is not closed by the socket,
+	 * and must be kept open until the transfer is reported as sent to
+	 * {@link naga.SocketObserver#packetSent(NIOSocket, Object)} or the socket is closed.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param file the file to send from.
+	 * @param position the position in the file of the first byte to send.
+	 * @param count the number of bytes to send.
+	 * @param tag an optional tag to tag the transfer (used in {@link naga.SocketObserver#packetSent(NIOSocket, Object)}).
+	 * @throws IllegalArgumentException if the position or count is negative, or the count
+	 * too large for the installed PacketWriter.
+	 */
+	void transferFile(FileChannel file, long position, long count, Object tag);
+
+	/**
+	 * Writes the next bytes received on this socket directly to a file.
+	 * <p>
+	 * The bytes bypass the PacketReader and the observer entirely, and are copied
+	 * to the file through the shared read buffer, so memory use is bounded regardless
+	 * of the size of the payload. Once all bytes are written, the observer is notified
+	 * and normal packet reading resumes with the bytes following the file.
+	 * <p>
+	 * This is intended to be called from {@link naga.SocketObserver#packetReceived(NIOSocket, byte[])}
+	 * when a header announcing the payload arrives, so that the very next byte goes to the file.
+	 * <p>
+	 * <em>This method must be called on the NIOService thread.</em>
+	 *
+	 * @param file the file to write to, it is not closed by the socket.
+	 * @param position the position in the file to write the first byte to.
+	 * @param count the number of bytes to write to the file.
+	 * @param observer the observer to notify when the file is received, may be null.
+	 * @throws IllegalArgumentException if the position or count is negative.
+	 * @throws IllegalStateException if not called on the NIOService thread or if a file is already being received.
+	 * @throws UnsupportedOperationException if the socket is an SSL socket.
+	 */
+	void receiveFile(FileChannel file, long position, long count, FileReceiveObserver observer);
+
     /**
      * Queue a runnable in the packet queue. This runnable will execute
      * after the latest packet in the queue is sent.
@@ -140,6 +279,138 @@ public interface NIOSocket extends NIOAbstractSocket
 	 */
 	void setMaxQueueSize(int maxQueueSize);
 
+	/**
+	 * Sets how much queued data may be collected into a single gathering write on this socket.
+	 * <p>
+	 * When several packets are waiting in the queue, the socket will send as many of them
+	 * as fit within these limits using one system call, rather than one call per packet.
+	 * A packet is always sent even if it alone exceeds the limits.
+	 * The default is 64 kb and 64 buffers.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param maxBytes the maximum number of bytes per write, a value less than 1 writes one packet at a time.
+	 * @param maxBuffers the maximum number of buffers (after conversion by the PacketWriter) per write,
+	 * a value less than 1 writes one packet at a time.
+	 */
+	void setWriteBatchLimits(int maxBytes, int maxBuffers);
+
+	/**
+	 * Sets watermarks on the write queue of this socket.
+	 * <p>
+	 * When the number of queued bytes exceeds the high watermark, the socket becomes unwritable,
+	 * and when the queue has drained to the low watermark, it becomes writable again.
+	 * Each change is reported through {@link naga.SocketObserver#writabilityChanged(NIOSocket, boolean)},
+	 * so that producers can stop and restart without polling {@link #getWriteQueueSize()}.
+	 * <p>
+	 * Unlike the max queue size, the watermarks never cause packets to be discarded.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param lowWatermark the queue size at which the socket becomes writable again.
+	 * @param highWatermark the queue size above which the socket becomes unwritable,
+	 * a value less than 1 disables the watermarks.
+	 * @throws IllegalArgumentException if the low watermark is greater than the high watermark.
+	 */
+	void setWriteWatermarks(long lowWatermark, long highWatermark);
+
+	/**
+	 * Returns true unless the write queue has grown above the high watermark and not yet drained
+	 * to the low watermark.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return true if the socket is writable.
+	 * @see #setWriteWatermarks(long, long)
+	 */
+	boolean isWritable();
+
+	/**
+	 * Sets the idle timeouts for this socket.
+	 * <p>
+	 * When no data has been read, written, or either, for the given time, the socket observer
+	 * receives {@link naga.SocketObserver#socketIdle(NIOSocket, IdleState)} with
+	 * the corresponding state. While the socket stays idle, the callback is repeated
+	 * each time the timeout elapses again. The observer typically
+	 * sends a keepalive or closes the socket.
+	 * <p>
+	 * The timeouts are checked by a single delayed event on the NIOService, so they have the
+	 * resolution of the NIOService timer, and cost nothing extra per packet on an active socket.
+	 * Timeouts start counting when the socket is connected or when this method is called,
+	 * whichever comes last.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param readIdleTimeout the time in ms without reads before the socket is reader idle, 0 to disable.
+	 * @param writeIdleTimeout the time in ms without writes before the socket is writer idle, 0 to disable.
+	 * @param allIdleTimeout the time in ms without reads or writes before the socket is idle, 0 to disable.
+	 */
+	void setIdleTimeouts(long readIdleTimeout, long writeIdleTimeout, long allIdleTimeout);
+
+	/**
+	 * Stops reading from this socket until {@link #resumeReading()} is called.
+	 * <p>
+	 * While reading is suspended, the socket does not read from the channel, so once the
+	 * OS buffers are full, TCP flow control makes the remote end stop sending.
+	 * <p>
+	 * When called on the NIOService thread, such as from {@link naga.SocketObserver#packetReceived(NIOSocket, byte[])},
+	 * no more packets are delivered after the current one, and packets already read are
+	 * delivered once reading resumes. When called from another thread, reading is suspended
+	 * once the NIOService thread has handled the call.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 */
+	void suspendReading();
+
+	/**
+	 * Resumes reading from this socket after a call to {@link #suspendReading()}.
+	 * <p>
+	 * Reading stays suspended if the inbound high watermark has been reached.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 */
+	void resumeReading();
+
+	/**
+	 * Sets watermarks suspending reading automatically when packets are received faster
+	 * than the application handles them.
+	 * <p>
+	 * The size of every packet delivered to the observer is added to the inbound byte count,
+	 * and the application subtracts it again with {@link #releaseInboundBytes(long)} when
+	 * it has finished with the packet, typically on another thread. When the count
+	 * exceeds the high watermark, reading is suspended, and it resumes when the
+	 * count falls back to the low watermark.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param lowWatermark the inbound byte count at which reading resumes.
+	 * @param highWatermark the inbound byte count above which reading is suspended,
+	 * a value less than 1 disables the watermarks.
+	 * @throws IllegalArgumentException if the low watermark is greater than the high watermark.
+	 */
+	void setInboundWatermarks(long lowWatermark, long highWatermark);
+
+	/**
+	 * Reports that the application is done with received packets, decreasing the
+	 * inbound byte count used by the inbound watermarks.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param bytes the number of bytes to release.
+	 */
+	void releaseInboundBytes(long bytes);
+
+	/**
+	 * Returns the number of received bytes not yet released using {@link #releaseInboundBytes(long)}.
+	 * <p>
+	 * The count is only kept while inbound watermarks are set.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return the inbound byte count.
+	 */
+	long getInboundBytes();
+
 	/**
 	 * Sets the packet reader for this socket.
 	 *
@@ -230,6 +230,27 @@ public class NIOUtils
         return null;
     }
 
+    /**
+     * Converts a packet in place using a packet writer.
+     * <p>
+     * A {@link naga.CompositePacketWriter} converts the packet directly, any other
+     * writer is called with the buffers as an array, which are then replaced by the result.
+     *
+     * @param writer the writer to use.
+     * @param packet the packet to convert.
+     */
+    public static void writePacket(final PacketWriter writer, final CompositeBuffer packet)
+    {
+        if (writer instanceof CompositePacketWriter)
+        {
+            ((CompositePacketWriter) writer).write(packet);
+            return;
+        }
+        final ByteBuffer[] result = writer.write(packet.toArray());
+        packet.clear();
+        packet.append(result);
+    }
+
     public static ByteBuffer[] concat(final ByteBuffer[] buffers, final ByteBuffer buffer)
     {
         return concat(buffers, new ByteBuffer[] { buffer });
@@ -250,15 +271,48 @@ public class NIOUtils
         return newBuffers;
     }
 
+    /**
+     * Copies the remaining bytes of a buffer to a new buffer, consuming them.
+     *
+     * @param buffer the buffer to copy, may be null.
+     * @return a new buffer with the remaining bytes, ready for reading, or null if buffer was null.
+     */
     public static ByteBuffer copy(final ByteBuffer buffer)
+    {
+        return copy(buffer, HeapBufferAllocator.INSTANCE);
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer to a buffer from an allocator, consuming them.
+     *
+     * @param buffer the buffer to copy, may be null.
+     * @param allocator the allocator to take the copy from.
+     * @return the copy, ready for reading, or null if the buffer was null.
+     */
+    public static ByteBuffer copy(final ByteBuffer buffer, final BufferAllocator allocator)
     {
         if (buffer == null) return null;
-        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        final ByteBuffer copy = allocator.allocate(buffer.remaining());
         copy.put(buffer);
         copy.flip();
         return copy;
     }
 
+    /**
+     * Returns a read-only view of the next bytes of a buffer, and advances the buffer past them.
+     *
+     * @param buffer the buffer to take the bytes from.
+     * @param length the number of bytes.
+     * @return a read-only buffer whose remaining bytes are the next length bytes of the buffer.
+     */
+    public static ByteBuffer slice(final ByteBuffer buffer, final int length)
+    {
+        final ByteBuffer slice = buffer.asReadOnlyBuffer();
+        slice.limit(buffer.position() + length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
     public static long remaining(final ByteBuffer[] byteBuffers)
     {
         long length = 0;
@@ -277,9 +331,22 @@ public class NIOUtils
 
     public static ByteBuffer join(final ByteBuffer buffer1, final ByteBuffer buffer2)
     {
-        if (buffer2 == null || buffer2.remaining() == 0) return NIOUtils.copy(buffer1);
-        if (buffer1 == null || buffer1.remaining() == 0) return NIOUtils.copy(buffer2);
-        final ByteBuffer buffer = ByteBuffer.allocate(buffer1.remaining() + buffer2.remaining());
+        return join(buffer1, buffer2, HeapBufferAllocator.INSTANCE);
+    }
+
+    /**
+     * Joins the remaining bytes of two buffers into a buffer from an allocator, consuming them.
+     *
+     * @param buffer1 the first buffer, may be null.
+     * @param buffer2 the second buffer, may be null.
+     * @param allocator the allocator to take the result from.
+     * @return a buffer ready for reading with the bytes of both buffers, or null if both were null.
+     */
+    public static ByteBuffer join(final ByteBuffer buffer1, final ByteBuffer buffer2, final BufferAllocator allocator)
+    {
+        if (buffer2 == null || buffer2.remaining() == 0) return NIOUtils.copy(buffer1, allocator);
+        if (buffer1 == null || buffer1.remaining() == 0) return NIOUtils.copy(buffer2, allocator);
+        final ByteBuffer buffer = allocator.allocate(buffer1.remaining() + buffer2.remaining());
         buffer.put(buffer1);
         buffer.put(buffer2);
         buffer.flip();
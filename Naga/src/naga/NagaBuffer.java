@@ -0,0 +1,208 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted ByteBuffer, which is released to its allocator once the last reference is released.
+ * <p>
+ * A new NagaBuffer holds a single reference. Every party that keeps the buffer beyond
+ * the call that handed it over should {@link #retain()} it, and {@link #release()} it when done.
+ * Writing a NagaBuffer to a socket passes a reference to the socket, which releases it once
+ * the packet is sent or dropped.
+ * <p>
+ * Accessing the buffer after the last reference is released throws an IllegalStateException,
+ * since its content may already be in use elsewhere.
+ * <p>
+ * To find buffers that are never released, leak detection can be enabled using
+ * {@link #setLeakDetection(int, ExceptionObserver)}. A sample of the buffers is then tracked,
+ * and for each of those that is garbage collected without being released, a
+ * {@link naga.exception.BufferLeakException} holding the stack trace of the allocation is
+ * reported to the ExceptionObserver.
+ * <p>
+ * Example use:
+ * <code><pre>
+ * NagaBuffer packet = NagaBuffer.allocate(service.getBufferAllocator(), 1024);
+ * packet.getBuffer().put(data).flip();
+ * socket.write(packet);
+ * </pre></code>
+ * <em>The reference counting is thread-safe, but the ByteBuffer itself is not.</em>
+ *
+ * @author Christoffer Lerno
+ */
+public class NagaBuffer
+{
+    private final static BufferLeakDetector LEAK_DETECTOR = new BufferLeakDetector();
+
+    private final ByteBuffer m_buffer;
+    private final BufferAllocator m_allocator;
+    private final AtomicInteger m_referenceCount;
+    private final BufferLeakDetector.Tracker m_tracker;
+
+    private NagaBuffer(final ByteBuffer buffer, final BufferAllocator allocator)
+    {
+        m_buffer = buffer;
+        m_allocator = allocator;
+        m_referenceCount = new AtomicInteger(1);
+        m_tracker = LEAK_DETECTOR.track(this);
+    }
+
+    /**
+     * Allocates a new buffer from an allocator.
+     *
+     * @param allocator the allocator to take the buffer from and to release it to.
+     * @param capacity the minimum capacity of the buffer.
+     * @return a new NagaBuffer with a single reference, whose limit is set to its capacity.
+     */
+    public static NagaBuffer allocate(final BufferAllocator allocator, final int capacity)
+    {
+        return new NagaBuffer(allocator.allocate(capacity), allocator);
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer to a new buffer from an allocator, consuming them.
+     * <p>
+     * This is useful for keeping a packet received by a {@link naga.BufferSocketObserver}.
+     *
+     * @param buffer the buffer to copy.
+     * @param allocator the allocator to take the copy from and to release it to.
+     * @return a new NagaBuffer with a single reference, ready for reading.
+     */
+    public static NagaBuffer copyOf(final ByteBuffer buffer, final BufferAllocator allocator)
+    {
+        return new NagaBuffer(NIOUtils.copy(buffer, allocator), allocator);
+    }
+
+    /**
+     * Wraps a buffer that is not owned by an allocator, so that it can be passed where a NagaBuffer is expected.
+     * <p>
+     * Releasing the last reference of a wrapped buffer simply leaves it to the garbage collector.
+     *
+     * @param buffer the buffer to wrap.
+     * @return a new NagaBuffer with a single reference.
+     */
+    public static NagaBuffer wrap(final ByteBuffer buffer)
+    {
+        return new NagaBuffer(buffer, HeapBufferAllocator.INSTANCE);
+    }
+
+    /**
+     * Returns the wrapped buffer.
+     *
+     * @return the buffer.
+     * @throws IllegalStateException if the buffer has been released.
+     */
+    public ByteBuffer getBuffer()
+    {
+        if (m_referenceCount.get() == 0) throw new IllegalStateException("Buffer already released");
+        return m_buffer;
+    }
+
+    /**
+     * Adds a reference to the buffer.
+     *
+     * @return this buffer.
+     * @throws IllegalStateException if the buffer has been released.
+     */
+    public NagaBuffer retain()
+    {
+        while (true)
+        {
+            final int count = m_referenceCount.get();
+            if (count == 0) throw new IllegalStateException("Buffer already released");
+            if (m_referenceCount.compareAndSet(count, count + 1)) return this;
+        }
+    }
+
+    /**
+     * Releases a reference to the buffer, returning the buffer to its allocator if it was the last one.
+     *
+     * @return true if this was the last reference.
+     * @throws IllegalStateException if the buffer has already been released.
+     */
+    public boolean release()
+    {
+        while (true)
+        {
+            final int count = m_referenceCount.get();
+            if (count == 0) throw new IllegalStateException("Buffer already released");
+            if (m_referenceCount.compareAndSet(count, count - 1))
+            {
+                if (count > 1) return false;
+                if (m_tracker != null) LEAK_DETECTOR.untrack(m_tracker);
+                m_allocator.release(m_buffer);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the current number of references, 0 if the buffer is released.
+     */
+    public int getReferenceCount()
+    {
+        return m_referenceCount.get();
+    }
+
+    /**
+     * Enables or disables leak detection for buffers created after this call.
+     * <p>
+     * Tracking a buffer records the stack trace of its creation, so a low sample rate
+     * is only recommended while testing.
+     *
+     * @param sampleRate track one in this many buffers, 1 tracks every buffer and 0 disables leak detection.
+     * @param observer the observer to report leaks to, or null to use {@link naga.ExceptionObserver#DEFAULT}.
+     * @throws IllegalArgumentException if the sample rate is negative.
+     */
+    public static void setLeakDetection(final int sampleRate, final ExceptionObserver observer)
+    {
+        LEAK_DETECTOR.setSampleRate(sampleRate, observer == null ? ExceptionObserver.DEFAULT : observer);
+    }
+
+    /**
+     * @return the current leak detection sample rate, 0 if leak detection is disabled.
+     */
+    public static int getLeakDetectionSampleRate()
+    {
+        return LEAK_DETECTOR.getSampleRate();
+    }
+
+    /**
+     * Reports tracked buffers that have been garbage collected without being released.
+     * <p>
+     * This is done automatically whenever a buffer is tracked, this method allows
+     * checking at other times as well, such as at the end of a test.
+     *
+     * @return the number of leaks reported.
+     */
+    public static int reportLeaks()
+    {
+        return LEAK_DETECTOR.reportLeaks();
+    }
+
+    public String toString()
+    {
+        return "NagaBuffer[" + m_buffer + ", references=" + m_referenceCount.get() + "]";
+    }
+}
@@ -0,0 +1,134 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free, multiple producer / single consumer queue of outgoing packets.
+ * <p>
+ * Each entry holds an item and an optional tag, which means that tagged packets
+ * can be queued without allocating any wrapper besides the queue node itself.
+ * <p>
+ * Offering is thread-safe, while all other methods may only be called by the
+ * consumer, i.e. on the NIOService thread.
+ *
+ * @author Christoffer Lerno
+ */
+class PacketQueue
+{
+    private final AtomicReference<Node> m_tail;
+    private Node m_head;
+
+    PacketQueue()
+    {
+        m_head = new Node(null, null);
+        m_tail = new AtomicReference<Node>(m_head);
+    }
+
+    /**
+     * Adds an item to the end of the queue.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param item the item to add, may not be null.
+     * @param tag the tag associated with the item, may be null.
+     */
+    public void offer(final Object item, final Object tag)
+    {
+        final Node node = new Node(item, tag);
+        final Node previous = m_tail.getAndSet(node);
+        // Between the swap and this link the node is invisible to the consumer,
+        // which simply sees a queue ending with the previous node.
+        previous.m_next = node;
+    }
+
+    /**
+     * Returns the first item in the queue without removing it.
+     *
+     * @return the first item, or null if the queue is empty.
+     */
+    public Object peek()
+    {
+        final Node next = m_head.m_next;
+        return next == null ? null : next.m_item;
+    }
+
+    /**
+     * Returns the tag of the first item in the queue.
+     *
+     * @return the tag of the first item, or null if the item has no tag or the queue is empty.
+     */
+    public Object peekTag()
+    {
+        final Node next = m_head.m_next;
+        return next == null ? null : next.m_tag;
+    }
+
+    /**
+     * Removes the first item in the queue, if any.
+     */
+    public void remove()
+    {
+        final Node next = m_head.m_next;
+        if (next == null) return;
+        // The removed node becomes the new sentinel, so release its content.
+        next.m_item = null;
+        next.m_tag = null;
+        m_head = next;
+    }
+
+    /**
+     * Determine if the queue is empty.
+     *
+     * @return true if there are no items in the queue.
+     */
+    public boolean isEmpty()
+    {
+        return m_head.m_next == null;
+    }
+
+    /**
+     * Removes all items currently in the queue.
+     */
+    public void clear()
+    {
+        while (!isEmpty())
+        {
+            remove();
+        }
+    }
+
+    private static class Node
+    {
+        private Object m_item;
+        private Object m_tag;
+        private volatile Node m_next;
+
+        private Node(final Object item, final Object tag)
+        {
+            m_item = item;
+            m_tag = tag;
+            m_next = null;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An allocator keeping released buffers for reuse.
+ * <p>
+ * Requests are rounded up to a size class, a power of two between 64 bytes and the
+ * max pooled size. Each thread keeps a small cache of released buffers per size class,
+ * so that buffers allocated and released on the same NIOService thread never touch shared state.
+ * When a thread cache is full, released buffers go to a bounded pool shared by all threads,
+ * which is also where a thread looks when its own cache is empty.
+ * <p>
+ * Requests larger than the max pooled size are always allocated anew, and never pooled.
+ * <p>
+ * The allocator hands out either direct or heap buffers. Direct buffers avoid a copy
+ * when reading from or writing to channels, but note that packet readers and writers
+ * accessing {@link java.nio.ByteBuffer#array()} require heap buffers.
+ * <p>
+ * Example use:
+ * <code><pre>
+ * service.setBufferAllocator(new PooledBufferAllocator(true));
+ * service.setReadBufferPooling(true);
+ * </pre></code>
+ *
+ * @author Christoffer Lerno
+ */
+public class PooledBufferAllocator implements BufferAllocator
+{
+    public final static int DEFAULT_MAX_POOLED_SIZE = 64 * 1024;
+    public final static int DEFAULT_THREAD_CACHE_SIZE = 32;
+    public final static int DEFAULT_SHARED_POOL_SIZE = 256;
+    private final static int MIN_SIZE_SHIFT = 6;
+
+    private final boolean m_direct;
+    private final int m_maxPooledSize;
+    private final int m_threadCacheSize;
+    private final int m_sharedPoolSize;
+    private final Queue<ByteBuffer>[] m_sharedPools;
+    private final AtomicInteger[] m_sharedPoolSizes;
+    private final ThreadLocal<ThreadCache> m_threadCache;
+    private final AtomicLong m_hits;
+    private final AtomicLong m_misses;
+    private final AtomicLong m_discards;
+
+    /**
+     * Creates an allocator using the default pool sizes.
+     *
+     * @param direct true to allocate direct buffers, false for heap buffers.
+     */
+    public PooledBufferAllocator(final boolean direct)
+    {
+        this(direct, DEFAULT_MAX_POOLED_SIZE, DEFAULT_THREAD_CACHE_SIZE, DEFAULT_SHARED_POOL_SIZE);
+    }
+
+    /**
+     * Creates an allocator.
+     *
+     * @param direct true to allocate direct buffers, false for heap buffers.
+     * @param maxPooledSize the largest buffer size to pool, rounded up to a power of two.
+     * @param threadCacheSize the number of buffers of each size class to keep per thread.
+     * @param sharedPoolSize the number of buffers of each size class to keep in the shared pool.
+     * @throws IllegalArgumentException if the max pooled size is less than 1 or more than 2^30.
+     */
+    @SuppressWarnings("unchecked")
+    public PooledBufferAllocator(final boolean direct, final int maxPooledSize, final int threadCacheSize, final int sharedPoolSize)
+    {
+        if (maxPooledSize < 1 || maxPooledSize > 1 << 30)
+        {
+            throw new IllegalArgumentException("Max pooled size out of range: " + maxPooledSize);
+        }
+        m_direct = direct;
+        final int sizeClasses = sizeClass(maxPooledSize) + 1;
+        m_maxPooledSize = classSize(sizeClasses - 1);
+        m_threadCacheSize = Math.max(0, threadCacheSize);
+        m_sharedPoolSize = Math.max(0, sharedPoolSize);
+        m_sharedPools = (Queue<ByteBuffer>[]) new Queue<?>[sizeClasses];
+        m_sharedPoolSizes = new AtomicInteger[sizeClasses];
+        for (int i = 0; i < sizeClasses; i++)
+        {
+            m_sharedPools[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            m_sharedPoolSizes[i] = new AtomicInteger(0);
+        }
+        m_threadCache = new ThreadLocal<ThreadCache>()
+        {
+            @Override
+            protected ThreadCache initialValue()
+            {
+                return new ThreadCache(m_sharedPools.length, m_threadCacheSize);
+            }
+        };
+        m_hits = new AtomicLong(0);
+        m_misses = new AtomicLong(0);
+        m_discards = new AtomicLong(0);
+    }
+
+    @Override
+    public ByteBuffer allocate(final int capacity)
+    {
+        if (capacity > m_maxPooledSize)
+        {
+            m_misses.incrementAndGet();
+            return newBuffer(capacity);
+        }
+        final int sizeClass = sizeClass(capacity);
+        ByteBuffer buffer = m_threadCache.get().poll(sizeClass);
+        if (buffer == null)
+        {
+            buffer = m_sharedPools[sizeClass].poll();
+            if (buffer != null) m_sharedPoolSizes[sizeClass].decrementAndGet();
+        }
+        if (buffer == null)
+        {
+            m_misses.incrementAndGet();
+            return newBuffer(classSize(sizeClass));
+        }
+        m_hits.incrementAndGet();
+        return buffer;
+    }
+
+    @Override
+    public void release(final ByteBuffer buffer)
+    {
+        if (buffer == null) return;
+        final int capacity = buffer.capacity();
+        // Only take back buffers that could have been handed out by this allocator.
+        if (capacity > m_maxPooledSize || capacity != classSize(sizeClass(capacity))
+            || buffer.isDirect() != m_direct || buffer.isReadOnly())
+        {
+            m_discards.incrementAndGet();
+            return;
+        }
+        buffer.clear();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        final int sizeClass = sizeClass(capacity);
+        if (m_threadCache.get().offer(sizeClass, buffer)) return;
+        if (m_sharedPoolSizes[sizeClass].incrementAndGet() > m_sharedPoolSize)
+        {
+            m_sharedPoolSizes[sizeClass].decrementAndGet();
+            m_discards.incrementAndGet();
+            return;
+        }
+        m_sharedPools[sizeClass].offer(buffer);
+    }
+
+    /**
+     * @return the number of allocations served by a pooled buffer.
+     */
+    public long getHits()
+    {
+        return m_hits.get();
+    }
+
+    /**
+     * @return the number of allocations that needed a new buffer.
+     */
+    public long getMisses()
+    {
+        return m_misses.get();
+    }
+
+    /**
+     * @return the number of released buffers that were not kept, because they did not fit a size class
+     * or the pools were full.
+     */
+    public long getDiscards()
+    {
+        return m_discards.get();
+    }
+
+    /**
+     * @return the number of buffers currently in the shared pool.
+     */
+    public int getSharedPoolSize()
+    {
+        int size = 0;
+        for (final AtomicInteger poolSize : m_sharedPoolSizes)
+        {
+            size += poolSize.get();
+        }
+        return size;
+    }
+
+    public boolean isDirect()
+    {
+        return m_direct;
+    }
+
+    public int getMaxPooledSize()
+    {
+        return m_maxPooledSize;
+    }
+
+    private ByteBuffer newBuffer(final int capacity)
+    {
+        return m_direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int sizeClass(final int capacity)
+    {
+        if (capacity <= 1 << MIN_SIZE_SHIFT) return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SIZE_SHIFT;
+    }
+
+    private static int classSize(final int sizeClass)
+    {
+        return 1 << (sizeClass + MIN_SIZE_SHIFT);
+    }
+
+    /**
+     * The buffers cached by a single thread.
+     */
+    private static class ThreadCache
+    {
+        private final ByteBuffer[][] m_buffers;
+        private final int[] m_counts;
+
+        private ThreadCache(final int sizeClasses, final int size)
+        {
+            m_buffers = new ByteBuffer[sizeClasses][size];
+            m_counts = new int[sizeClasses];
+        }
+
+        private ByteBuffer poll(final int sizeClass)
+        {
+            if (m_counts[sizeClass] == 0) return null;
+            final int index = --m_counts[sizeClass];
+            final ByteBuffer buffer = m_buffers[sizeClass][index];
+            m_buffers[sizeClass][index] = null;
+            return buffer;
+        }
+
+        private boolean offer(final int sizeClass, final ByteBuffer buffer)
+        {
+            if (m_counts[sizeClass] == m_buffers[sizeClass].length) return false;
+            m_buffers[sizeClass][m_counts[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of cumulation buffers, used by the SocketReaders of a NIOService to keep
+ * partial packets between reads.
+ * <p>
+ * A socket only leases a buffer while it holds an incomplete packet, and returns it
+ * as soon as the buffer is drained. Buffers start at the initial size and double when
+ * more room is needed. Only buffers of the initial size are kept for reuse, larger buffers
+ * are released to the {@link naga.BufferAllocator} of the service, which also supplies new buffers.
+ * <p>
+ * <em>This class is not thread-safe, and must only be used on the NIOService thread.</em>
+ *
+ * @author Christoffer Lerno
+ */
+class ReadBufferPool
+{
+    public final static int DEFAULT_INITIAL_SIZE = 4 * 1024;
+    public final static int DEFAULT_MAX_POOLED_BUFFERS = 256;
+
+    private final int m_initialSize;
+    private final ByteBuffer[] m_buffers;
+    private int m_pooledBuffers;
+    private volatile BufferAllocator m_allocator;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param initialSize the size of newly leased buffers.
+     * @param maxPooledBuffers the maximum number of released buffers kept for reuse.
+     */
+    ReadBufferPool(final int initialSize, final int maxPooledBuffers)
+    {
+        if (initialSize < 1) throw new IllegalArgumentException("Initial size must be at least 1, was: " + initialSize);
+        m_initialSize = initialSize;
+        m_buffers = new ByteBuffer[Math.max(0, maxPooledBuffers)];
+        m_pooledBuffers = 0;
+        m_allocator = HeapBufferAllocator.INSTANCE;
+    }
+
+    /**
+     * Sets the allocator used for new buffers and for buffers not kept by this pool.
+     *
+     * @param allocator the allocator to use.
+     */
+    void setAllocator(final BufferAllocator allocator)
+    {
+        m_allocator = allocator;
+    }
+
+    /**
+     * Leases a cleared buffer.
+     *
+     * @param minimumSize the minimum capacity of the buffer.
+     * @return a buffer with a capacity of at least minimumSize.
+     */
+    ByteBuffer lease(final int minimumSize)
+    {
+        final int size = sizeFor(minimumSize);
+        if (size == m_initialSize && m_pooledBuffers > 0)
+        {
+            final ByteBuffer buffer = m_buffers[--m_pooledBuffers];
+            m_buffers[m_pooledBuffers] = null;
+            return buffer;
+        }
+        return m_allocator.allocate(size);
+    }
+
+    /**
+     * Replaces a full buffer with one twice the size, containing the same data.
+     * The old buffer is released to the pool.
+     *
+     * @param buffer the buffer to grow, in write mode (i.e. with the data between 0 and the position).
+     * @param maxSize the largest size the buffer is allowed to grow to.
+     * @return the new buffer, in write mode.
+     * @throws BufferOverflowException if the buffer already is at the max size.
+     */
+    ByteBuffer grow(final ByteBuffer buffer, final int maxSize)
+    {
+        if (buffer.capacity() >= maxSize) throw new BufferOverflowException();
+        final ByteBuffer newBuffer = m_allocator.allocate(Math.min(maxSize, buffer.capacity() * 2));
+        buffer.flip();
+        newBuffer.put(buffer);
+        release(buffer);
+        return newBuffer;
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     *
+     * @param buffer the buffer to return, may not be used after this call.
+     */
+    void release(final ByteBuffer buffer)
+    {
+        if (buffer.capacity() != m_initialSize || m_pooledBuffers == m_buffers.length)
+        {
+            m_allocator.release(buffer);
+            return;
+        }
+        buffer.clear();
+        m_buffers[m_pooledBuffers++] = buffer;
+    }
+
+    /**
+     * @return the number of buffers currently available for reuse.
+     */
+    int getPooledBuffers()
+    {
+        return m_pooledBuffers;
+    }
+
+    private int sizeFor(final int minimumSize)
+    {
+        int size = m_initialSize;
+        while (size < minimumSize) size = size > Integer.MAX_VALUE / 2 ? minimumSize : size << 1;
+        return size;
+    }
+}
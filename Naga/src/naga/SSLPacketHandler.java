@@ -30,17 +30,19 @@ import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
 import java.io.EOFException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Undocumented Class
  *
  * @author Christoffer Lerno
  */
-public class SSLPacketHandler implements PacketReader, PacketWriter
+public class SSLPacketHandler implements PacketReader, CompositePacketWriter
 {
-    private final static Executor TASK_HANDLER = Executors.newSingleThreadExecutor();
+    private final static ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
 
     private final static ThreadLocal<ByteBuffer> SSL_BUFFER = new ThreadLocal<ByteBuffer>()
     {
@@ -56,14 +58,22 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
     private PacketReader m_reader;
     private PacketWriter m_writer;
     private ByteBuffer m_partialIncomingBuffer;
-    private ByteBuffer[] m_initialOutBuffer;
+    private CompositeBuffer m_initialOutBuffer;
     private final NIOSocket m_socket;
     private final SSLSocketChannelResponder m_responder;
+    private final Executor m_taskExecutor;
     private boolean m_sslInitiated;
 
     public SSLPacketHandler(final SSLEngine engine, final NIOSocket socket, final SSLSocketChannelResponder responder)
     {
+        this(engine, socket, responder, SSLTaskExecutor.getDefault());
+    }
+
+    public SSLPacketHandler(final SSLEngine engine, final NIOSocket socket, final SSLSocketChannelResponder responder, final Executor taskExecutor)
+    {
+        if (taskExecutor == null) throw new NullPointerException();
         m_engine = engine;
+        m_taskExecutor = taskExecutor;
         m_socket = socket;
         m_partialIncomingBuffer = null;
         m_writer = RawPacketWriter.INSTANCE;
@@ -95,30 +105,44 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
     private void queueSSLTasks()
     {
         if (!m_sslInitiated) return;
-        int tasksScheduled = 0;
-        Runnable task;
-        while ((task = m_engine.getDelegatedTask()) != null)
+        Runnable task = m_engine.getDelegatedTask();
+        if (task == null) return;
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        while (task != null)
         {
-            TASK_HANDLER.execute(task);
-            tasksScheduled++;
+            tasks.add(task);
+            task = m_engine.getDelegatedTask();
         }
-        if (tasksScheduled == 0)
+        // The tasks may run in parallel, the last one to finish resumes the handshake.
+        final AtomicInteger remainingTasks = new AtomicInteger(tasks.size());
+        for (final Runnable delegatedTask : tasks)
         {
-            return;
+            m_taskExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        delegatedTask.run();
+                    }
+                    finally
+                    {
+                        if (remainingTasks.decrementAndGet() == 0) resumeHandshake();
+                    }
+                }
+            });
         }
-        TASK_HANDLER.execute(new Runnable()
+    }
+
+    private void resumeHandshake()
+    {
+        m_socket.queue(new Runnable()
         {
             @Override
             public void run()
             {
-                m_socket.queue(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        reactToHandshakeStatus(m_engine.getHandshakeStatus());
-                    }
-                });
+                reactToHandshakeStatus(m_engine.getHandshakeStatus());
             }
         });
     }
@@ -153,10 +177,13 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
                 case OK:
                     // Do nothing, just follow the flow.
             }
+            // Keep the decrypted data before reacting, as sending a response wraps it into the same shared buffer.
+            keepDecryptedData(targetBuffer);
+
             // We might need to queue tasks or send data as a response to this packet.
             reactToHandshakeStatus(result.getHandshakeStatus());
 
-            return retrieveDecryptedPacket(targetBuffer);
+            return retrieveDecryptedPacket();
         }
         catch (SSLException e)
         {
@@ -185,14 +212,20 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
         }
     }
 
-    private byte[] retrieveDecryptedPacket(final ByteBuffer targetBuffer) throws ProtocolViolationException
+    private void keepDecryptedData(final ByteBuffer targetBuffer)
     {
         // Prepare the buffer for reading.
         targetBuffer.flip();
 
         // Join the buffer with the partial buffer, this is because we need to internally buffer data that has been decrypted but does not yet form a complete packet.
-        m_partialIncomingBuffer = NIOUtils.join(m_partialIncomingBuffer, targetBuffer);
+        final BufferAllocator allocator = m_responder.getNIOService().getBufferAllocator();
+        final ByteBuffer previousBuffer = m_partialIncomingBuffer;
+        m_partialIncomingBuffer = NIOUtils.join(previousBuffer, targetBuffer, allocator);
+        allocator.release(previousBuffer);
+    }
 
+    private byte[] retrieveDecryptedPacket() throws ProtocolViolationException
+    {
         // Skip if the data is empty. This will be the case during handshaking.
         if (m_partialIncomingBuffer == null || m_partialIncomingBuffer.remaining() == 0) return SKIP_PACKET;
 
@@ -201,25 +234,35 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
     }
 
     @Override
-    public ByteBuffer[] write(ByteBuffer[] byteBuffers)
+    public ByteBuffer[] write(final ByteBuffer[] byteBuffers)
+    {
+        final CompositeBuffer packet = CompositeBuffer.wrap(byteBuffers);
+        write(packet);
+        return packet.isEmpty() ? null : packet.toArray();
+    }
+
+    @Override
+    public void write(final CompositeBuffer packet)
     {
         if (!m_sslInitiated)
         {
-            return m_writer.write(byteBuffers);
+            NIOUtils.writePacket(m_writer, packet);
+            return;
         }
 
         // Check if we are done handshaking.
         if (m_engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
         {
-            if (!NIOUtils.isEmpty(byteBuffers))
+            if (packet.hasRemaining())
             {
                 // If this is regular data, store this in the initial outbuffer.
-                m_initialOutBuffer = NIOUtils.concat(m_initialOutBuffer, m_writer.write(byteBuffers));
-                byteBuffers = new ByteBuffer[0];
+                NIOUtils.writePacket(m_writer, packet);
+                if (m_initialOutBuffer == null) m_initialOutBuffer = new CompositeBuffer();
+                m_initialOutBuffer.append(packet);
             }
+            packet.clear();
             // Borrow the shared buffer.
             final ByteBuffer buffer = SSL_BUFFER.get();
-            ByteBuffer[] buffers = null;
             try
             {
                 // Create handshake data.
@@ -227,13 +270,13 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
                 while (m_engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP)
                 {
                     buffer.clear();
-                    result = m_engine.wrap(byteBuffers, buffer);
+                    result = m_engine.wrap(NO_BUFFERS, buffer);
                     buffer.flip();
-                    buffers = NIOUtils.concat(buffers, NIOUtils.copy(buffer));
+                    packet.append(copyRecord(buffer));
                 }
 
                 // If we for some reason entered here but did not need to wrap anything, exit.
-                if (result == null) return null;
+                if (result == null) return;
 
                 if (result.getStatus() != SSLEngineResult.Status.OK) throw new SSLException("Unexpectedly not ok wrapping handshake data, was " + result.getStatus());
 
@@ -244,7 +287,7 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
                 // Better error handling required!
                 throw new RuntimeException(e);
             }
-            return buffers;
+            return;
         }
 
         // We are not handshaking, so encrypt the data using wrap
@@ -253,34 +296,37 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
         final ByteBuffer buffer = SSL_BUFFER.get();
         buffer.clear();
 
-        if (NIOUtils.isEmpty(byteBuffers))
+        if (!packet.hasRemaining())
         {
+            packet.clear();
             // Exit early if we have no data to encrypt.
-            if (m_initialOutBuffer == null) return null;
+            if (m_initialOutBuffer == null) return;
         }
         else
         {
             // Only convert non-empty buffers
-            byteBuffers = m_writer.write(byteBuffers);
+            NIOUtils.writePacket(m_writer, packet);
         }
 
         // If we have an initial buffer, send it.
         if (m_initialOutBuffer != null)
         {
-            byteBuffers = NIOUtils.concat(m_initialOutBuffer, byteBuffers);
+            packet.prepend(m_initialOutBuffer);
             m_initialOutBuffer = null;
         }
 
-        ByteBuffer[] encrypted = null;
+        // The encrypted records are appended after the plain buffers, which are removed when done.
+        final int plainBuffers = packet.size();
+        long remaining = packet.remaining();
 
         // While we have things left to encrypt.
-        while (!NIOUtils.isEmpty(byteBuffers))
+        while (remaining > 0)
         {
             // Clear our huge buffer.
             buffer.clear();
             try
             {
-                m_engine.wrap(byteBuffers, buffer);
+                remaining -= m_engine.wrap(packet.array(), packet.arrayOffset(), plainBuffers, buffer).bytesConsumed();
             }
             catch (SSLException e)
             {
@@ -289,11 +335,26 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
             buffer.flip();
 
             // Copy the result.
-            encrypted = NIOUtils.concat(encrypted, NIOUtils.copy(buffer));
+            packet.append(copyRecord(buffer));
         }
+        packet.removeFirst(plainBuffers);
+    }
 
-        // Return our encrypted data.
-        return encrypted;
+    /**
+     * Copies an encrypted record out of the shared buffer, into a buffer that is
+     * released to the allocator of the service once the socket has written it.
+     *
+     * @param buffer the shared buffer holding the record.
+     * @return the copy of the record.
+     */
+    private ByteBuffer copyRecord(final ByteBuffer buffer)
+    {
+        final NagaBuffer record = NagaBuffer.copyOf(buffer, m_responder.getNIOService().getBufferAllocator());
+        if (m_socket instanceof SocketChannelResponder)
+        {
+            ((SocketChannelResponder) m_socket).releaseWhenWritten(record);
+        }
+        return record.getBuffer();
     }
 
     public SSLEngine getSSLEngine()
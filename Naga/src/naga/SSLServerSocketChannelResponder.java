@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
 
 /**
  * This is a ServerSocketChannel subclass that starts SSL communication on all its sockets.
@@ -35,10 +36,13 @@ import java.nio.channels.SocketChannel;
 class SSLServerSocketChannelResponder extends ServerSocketChannelResponder implements NIOServerSocketSSL
 {
     private final SSLContext m_sslContext;
+    private volatile Executor m_sslTaskExecutor;
+
     public SSLServerSocketChannelResponder(final SSLContext context, final NIOService service, final ServerSocketChannel channel, final InetSocketAddress address) throws IOException
     {
         super(service, channel, address);
         m_sslContext = context;
+        m_sslTaskExecutor = null;
     }
 
     @Override
@@ -48,9 +52,23 @@ class SSLServerSocketChannelResponder extends ServerSocketChannelResponder imple
     }
 
     @Override
-    NIOSocket registerSocket(final SocketChannel channel, final InetSocketAddress address) throws IOException
+    public void setSSLTaskExecutor(final Executor sslTaskExecutor)
+    {
+        m_sslTaskExecutor = sslTaskExecutor;
+    }
+
+    @Override
+    public Executor getSSLTaskExecutor()
+    {
+        return m_sslTaskExecutor;
+    }
+
+    @Override
+    NIOSocket registerSocket(final NIOService service, final SocketChannel channel, final InetSocketAddress address) throws IOException
     {
-        final NIOSocket socket = super.registerSocket(channel, address);
-        return new SSLSocketChannelResponder(getNIOService(), socket,  m_sslContext.createSSLEngine(), false);
+        final NIOSocket socket = super.registerSocket(service, channel, address);
+        final Executor taskExecutor = m_sslTaskExecutor;
+        return new SSLSocketChannelResponder(service, socket,  m_sslContext.createSSLEngine(), false,
+                                             taskExecutor == null ? service.getSSLTaskExecutor() : taskExecutor);
     }
 }
@@ -26,6 +26,9 @@ import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
 
 /**
  * SSL-implementation on top of NIOSocket, wrapping all calls to the socket.
@@ -39,10 +42,10 @@ class SSLSocketChannelResponder implements NIOSocketSSL, SocketObserver
     private final NIOService m_nioService;
     private SocketObserver m_observer;
 
-    public SSLSocketChannelResponder(final NIOService nioService, final NIOSocket wrappedSocket, final SSLEngine engine, final boolean client) {
+    public SSLSocketChannelResponder(final NIOService nioService, final NIOSocket wrappedSocket, final SSLEngine engine, final boolean client, final Executor taskExecutor) {
         m_nioService = nioService;
         m_wrappedSocket = wrappedSocket;
-        m_packetHandler = new SSLPacketHandler(engine, m_wrappedSocket, this);
+        m_packetHandler = new SSLPacketHandler(engine, m_wrappedSocket, this, taskExecutor);
         m_wrappedSocket.setPacketReader(m_packetHandler);
         m_wrappedSocket.setPacketWriter(m_packetHandler);
         engine.setUseClientMode(client);
@@ -80,6 +83,76 @@ class SSLSocketChannelResponder implements NIOSocketSSL, SocketObserver
         return m_wrappedSocket.write(packet, tag);
     }
 
+    /**
+     * Writes the buffers as a byte array, since encryption copies the data anyway
+     * and the buffers cannot be handed back before the handshake completes.
+     */
+    @Override
+    public boolean write(final ByteBuffer packet)
+    {
+        return write(new ByteBuffer[] { packet }, null);
+    }
+
+    @Override
+    public boolean write(final ByteBuffer... parts)
+    {
+        return write(parts, null);
+    }
+
+    @Override
+    public boolean write(final ByteBuffer[] parts, final Object tag)
+    {
+        final byte[] packet = new byte[(int) NIOUtils.remaining(parts)];
+        final ByteBuffer target = ByteBuffer.wrap(packet);
+        for (final ByteBuffer part : parts)
+        {
+            target.put(part);
+        }
+        return m_wrappedSocket.write(packet, tag);
+    }
+
+    @Override
+    public boolean write(final NagaBuffer packet)
+    {
+        return write(packet, null);
+    }
+
+    @Override
+    public boolean write(final NagaBuffer packet, final Object tag)
+    {
+        // The packet is encrypted into new buffers anyway, so copy it and release it right away.
+        final byte[] bytes;
+        try
+        {
+            final ByteBuffer buffer = packet.getBuffer().duplicate();
+            bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+        }
+        finally
+        {
+            packet.release();
+        }
+        return m_wrappedSocket.write(bytes, tag);
+    }
+
+    NIOService getNIOService()
+    {
+        return m_nioService;
+    }
+
+    @Override
+    public void transferFile(final FileChannel file, final long position, final long count, final Object tag)
+    {
+        // The wrapped socket uses the SSL packet handler as writer, so the file will be mapped and encrypted in chunks.
+        m_wrappedSocket.transferFile(file, position, count, tag);
+    }
+
+    @Override
+    public void receiveFile(final FileChannel file, final long position, final long count, final FileReceiveObserver observer)
+    {
+        throw new UnsupportedOperationException("Encrypted data cannot be received into a file");
+    }
+
     @Override
     public void queue(final Runnable runnable)
     {
@@ -122,6 +195,60 @@ class SSLSocketChannelResponder implements NIOSocketSSL, SocketObserver
         m_wrappedSocket.setMaxQueueSize(maxQueueSize);
     }
 
+    @Override
+    public void setWriteBatchLimits(final int maxBytes, final int maxBuffers)
+    {
+        m_wrappedSocket.setWriteBatchLimits(maxBytes, maxBuffers);
+    }
+
+    @Override
+    public void setIdleTimeouts(final long readIdleTimeout, final long writeIdleTimeout, final long allIdleTimeout)
+    {
+        m_wrappedSocket.setIdleTimeouts(readIdleTimeout, writeIdleTimeout, allIdleTimeout);
+    }
+
+    @Override
+    public void setWriteWatermarks(final long lowWatermark, final long highWatermark)
+    {
+        m_wrappedSocket.setWriteWatermarks(lowWatermark, highWatermark);
+    }
+
+    @Override
+    public boolean isWritable()
+    {
+        return m_wrappedSocket.isWritable();
+    }
+
+    @Override
+    public void suspendReading()
+    {
+        m_wrappedSocket.suspendReading();
+    }
+
+    @Override
+    public void resumeReading()
+    {
+        m_wrappedSocket.resumeReading();
+    }
+
+    @Override
+    public void setInboundWatermarks(final long lowWatermark, final long highWatermark)
+    {
+        m_wrappedSocket.setInboundWatermarks(lowWatermark, highWatermark);
+    }
+
+    @Override
+    public void releaseInboundBytes(final long bytes)
+    {
+        m_wrappedSocket.releaseInboundBytes(bytes);
+    }
+
+    @Override
+    public long getInboundBytes()
+    {
+        return m_wrappedSocket.getInboundBytes();
+    }
+
     @Override
     public void setPacketReader(final PacketReader packetReader)
     {
@@ -247,7 +374,14 @@ class SSLSocketChannelResponder implements NIOSocketSSL, SocketObserver
     {
         try
         {
-            if (m_observer != null) m_observer.packetReceived(this, packet);
+            if (m_observer instanceof BufferSocketObserver)
+            {
+                ((BufferSocketObserver) m_observer).packetReceived(this, ByteBuffer.wrap(packet).asReadOnlyBuffer());
+            }
+            else if (m_observer != null)
+            {
+                m_observer.packetReceived(this, packet);
+            }
         }
         catch (Exception e)
         {
@@ -268,4 +402,29 @@ class SSLSocketChannelResponder implements NIOSocketSSL, SocketObserver
         }
     }
 
+    @Override
+    public void socketIdle(final NIOSocket socket, final IdleState state)
+    {
+        try
+        {
+            if (m_observer != null) m_observer.socketIdle(this, state);
+        }
+        catch (Exception e)
+        {
+            m_nioService.notifyException(e);
+        }
+    }
+
+    @Override
+    public void writabilityChanged(final NIOSocket socket, final boolean writable)
+    {
+        try
+        {
+            if (m_observer != null) m_observer.writabilityChanged(this, writable);
+        }
+        catch (Exception e)
+        {
+            m_nioService.notifyException(e);
+        }
+    }
 }
@@ -0,0 +1,258 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the delegated tasks of SSL engines, such as the key exchange computations of a handshake,
+ * and keeps track of how long tasks wait and run.
+ * <p>
+ * Tasks either run on a pool of daemon threads owned by this executor, or on any other
+ * executor wrapped by it. Unless configured otherwise, all SSL sockets share the default
+ * executor, which has one thread per available processor.
+ * <p>
+ * Example use:
+ * <code><pre>
+ * SSLTaskExecutor executor = new SSLTaskExecutor(8);
+ * service.setSSLTaskExecutor(executor);
+ * ...
+ * long averageWait = executor.getTotalQueueTime() / Math.max(1, executor.getCompletedTasks());
+ * </pre></code>
+ *
+ * @author Christoffer Lerno
+ */
+public class SSLTaskExecutor implements Executor
+{
+    private final static long KEEP_ALIVE_SECONDS = 60;
+    private final static AtomicInteger THREAD_COUNT = new AtomicInteger(0);
+
+    private final Executor m_executor;
+    private final ExecutorService m_ownedExecutor;
+    private final AtomicInteger m_queuedTasks;
+    private final AtomicLong m_completedTasks;
+    private final AtomicLong m_totalQueueTime;
+    private final AtomicLong m_maxQueueTime;
+    private final AtomicLong m_totalRunTime;
+
+    /**
+     * Creates an executor with one thread per available processor.
+     */
+    public SSLTaskExecutor()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an executor running tasks on a pool of daemon threads.
+     * <p>
+     * Threads are started as tasks arrive, and stop after being idle for a minute.
+     *
+     * @param threads the maximum number of threads.
+     * @throws IllegalArgumentException if threads is less than 1.
+     */
+    public SSLTaskExecutor(final int threads)
+    {
+        if (threads < 1) throw new IllegalArgumentException("Threads must be at least 1: " + threads);
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                                                   new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+        {
+            public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, "naga-ssl-task-" + THREAD_COUNT.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        m_ownedExecutor = executor;
+        m_executor = executor;
+        m_queuedTasks = new AtomicInteger(0);
+        m_completedTasks = new AtomicLong(0);
+        m_totalQueueTime = new AtomicLong(0);
+        m_maxQueueTime = new AtomicLong(0);
+        m_totalRunTime = new AtomicLong(0);
+    }
+
+    /**
+     * Creates an executor measuring the tasks it passes on to another executor.
+     *
+     * @param executor the executor to run the tasks.
+     */
+    public SSLTaskExecutor(final Executor executor)
+    {
+        if (executor == null) throw new NullPointerException();
+        m_ownedExecutor = null;
+        m_executor = executor;
+        m_queuedTasks = new AtomicInteger(0);
+        m_completedTasks = new AtomicLong(0);
+        m_totalQueueTime = new AtomicLong(0);
+        m_maxQueueTime = new AtomicLong(0);
+        m_totalRunTime = new AtomicLong(0);
+    }
+
+    /**
+     * Returns the executor used by SSL sockets unless another one is set.
+     *
+     * @return the default executor, shared by all services.
+     */
+    public static SSLTaskExecutor getDefault()
+    {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * Queues a task for execution.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param task the task to run.
+     */
+    public void execute(final Runnable task)
+    {
+        m_queuedTasks.incrementAndGet();
+        try
+        {
+            m_executor.execute(new MeasuredTask(task, System.nanoTime()));
+        }
+        catch (RuntimeException e)
+        {
+            m_queuedTasks.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the threads of this executor once the queued tasks are done.
+     * <p>
+     * An executor wrapping another executor is not affected.
+     */
+    public void shutdown()
+    {
+        if (m_ownedExecutor != null) m_ownedExecutor.shutdown();
+    }
+
+    /**
+     * Returns the number of tasks waiting to run.
+     *
+     * @return the current queue depth.
+     */
+    public int getQueuedTasks()
+    {
+        return m_queuedTasks.get();
+    }
+
+    /**
+     * Returns the number of tasks that have run to completion, or thrown an exception.
+     *
+     * @return the number of completed tasks.
+     */
+    public long getCompletedTasks()
+    {
+        return m_completedTasks.get();
+    }
+
+    /**
+     * Returns the total time completed tasks waited in the queue before running.
+     *
+     * @return the total queue time in nanoseconds.
+     */
+    public long getTotalQueueTime()
+    {
+        return m_totalQueueTime.get();
+    }
+
+    /**
+     * Returns the longest time a task waited in the queue before running.
+     *
+     * @return the max queue time in nanoseconds.
+     */
+    public long getMaxQueueTime()
+    {
+        return m_maxQueueTime.get();
+    }
+
+    /**
+     * Returns the total time spent running completed tasks.
+     *
+     * @return the total run time in nanoseconds.
+     */
+    public long getTotalRunTime()
+    {
+        return m_totalRunTime.get();
+    }
+
+    private void taskStarted(final long queueTime)
+    {
+        m_queuedTasks.decrementAndGet();
+        m_totalQueueTime.addAndGet(queueTime);
+        long max;
+        while (queueTime > (max = m_maxQueueTime.get()))
+        {
+            if (m_maxQueueTime.compareAndSet(max, queueTime)) break;
+        }
+    }
+
+    private void taskCompleted(final long runTime)
+    {
+        m_totalRunTime.addAndGet(runTime);
+        m_completedTasks.incrementAndGet();
+    }
+
+    private class MeasuredTask implements Runnable
+    {
+        private final Runnable m_task;
+        private final long m_queued;
+
+        private MeasuredTask(final Runnable task, final long queued)
+        {
+            m_task = task;
+            m_queued = queued;
+        }
+
+        public void run()
+        {
+            final long started = System.nanoTime();
+            taskStarted(started - m_queued);
+            try
+            {
+                m_task.run();
+            }
+            finally
+            {
+                taskCompleted(System.nanoTime() - started);
+            }
+        }
+    }
+
+    private static class DefaultHolder
+    {
+        private final static SSLTaskExecutor INSTANCE = new SSLTaskExecutor();
+    }
+}
@@ -68,14 +68,15 @@ class ServerSocketChannelResponder extends ChannelResponder implements NIOServer
     /**
      * Override point for substituting NIOSocket wrappers.
      *
+     * @param service the service the socket should be registered with.
      * @param channel the channel to register.
      * @param address the address associated with the channel.
      * @return A new NIOSocket
      * @throws IOException if registration failed.
      */
-    NIOSocket registerSocket(final SocketChannel channel, final InetSocketAddress address) throws IOException
+    NIOSocket registerSocket(final NIOService service, final SocketChannel channel, final InetSocketAddress address) throws IOException
     {
-        return getNIOService().registerSocketChannel(channel, address);
+        return service.registerSocketChannel(channel, address);
     }
 
     private void notifyNewConnection(final NIOSocket socket)
@@ -130,7 +131,7 @@ class ServerSocketChannelResponder extends ChannelResponder implements NIOServer
 				NIOUtils.closeChannelSilently(socketChannel);
 				return;
 			}
-            notifyNewConnection(registerSocket(socketChannel, address));
+            notifyNewConnection(registerSocket(getNIOService().nextServiceForAccept(), socketChannel, address));
 			m_totalAcceptedConnections++;
 		}
 		catch (IOException e)
@@ -21,15 +21,19 @@ SOFTWARE.
 */
 package naga;
 
+import naga.eventmachine.DelayedEvent;
+import naga.exception.ProtocolViolationException;
 import naga.packetreader.RawPacketReader;
+import naga.packetwriter.RawPacketWriter;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -37,26 +41,81 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 class SocketChannelResponder extends ChannelResponder implements NIOSocket
 {
+	/** The queue size of a closed socket, low enough to stay negative whatever is added to it. */
+	private final static long CLOSED_QUEUE_SIZE = Long.MIN_VALUE / 2;
+
+	/** The largest part of a file mapped at a time when streaming it through a packet writer. */
+	private final static int FILE_CHUNK_SIZE = 256 * 1024;
+
+	/** The tag of all but the last part of a streamed file, never reported to the observer. */
+	private final static Object FILE_CHUNK = new Object();
+
 	private int m_maxQueueSize;
+	private volatile WriteBudget m_writeBudget;
 	private long m_timeOpened;
 	private final AtomicLong m_bytesInQueue;
-	private ConcurrentLinkedQueue<Object> m_packetQueue;
+	private final PacketQueue m_packetQueue;
+	private final AtomicBoolean m_writePending;
+	private final Runnable m_writeEvent;
 	private PacketReader m_packetReader;
 	private volatile SocketObserver m_socketObserver;
     private final SocketReader m_socketReader;
     private final SocketWriter m_socketWriter;
+	private long m_lastReadTime;
+	private long m_lastWriteTime;
+	private IdleCheckEvent m_idleCheck;
+	private boolean m_listening;
+	private boolean m_readAgainPending;
+	private boolean m_readAgainQueued;
+	private boolean m_readingSuspended;
+	private volatile boolean m_inboundSuspended;
+	private volatile long m_inboundLowWatermark;
+	private volatile long m_inboundHighWatermark;
+	private final AtomicLong m_inboundBytes;
+	private final AtomicBoolean m_inboundCheckPending;
+	private volatile long m_writeLowWatermark;
+	private volatile long m_writeHighWatermark;
+	private final AtomicBoolean m_writable;
+	private final AtomicBoolean m_writabilityEventPending;
+	private boolean m_notifiedWritable;
+	private boolean m_writing;
+	private FileChannel m_receiveFile;
+	private FileReceiveObserver m_fileReceiveObserver;
 
 	public SocketChannelResponder(final NIOService service, final SocketChannel socketChannel, final InetSocketAddress address)
 	{
 		super(service, socketChannel, address);
 		m_socketObserver = null;
 		m_maxQueueSize = -1;
+		m_writeBudget = null;
 		m_timeOpened = -1;
 		m_packetReader = RawPacketReader.INSTANCE;
 		m_bytesInQueue = new AtomicLong(0L);
-		m_packetQueue = new ConcurrentLinkedQueue<Object>();
+		m_packetQueue = new PacketQueue();
+		m_writePending = new AtomicBoolean(false);
+		m_writeEvent = new WriteEvent();
         m_socketReader = new SocketReader(service);
         m_socketWriter = new SocketWriter();
+		m_lastReadTime = 0;
+		m_lastWriteTime = 0;
+		m_idleCheck = null;
+		m_listening = false;
+		m_readAgainPending = false;
+		m_readAgainQueued = false;
+		m_readingSuspended = false;
+		m_inboundSuspended = false;
+		m_inboundLowWatermark = 0;
+		m_inboundHighWatermark = 0;
+		m_inboundBytes = new AtomicLong(0L);
+		m_inboundCheckPending = new AtomicBoolean(false);
+		m_writeLowWatermark = 0;
+		m_writeHighWatermark = 0;
+		m_writable = new AtomicBoolean(true);
+		m_writabilityEventPending = new AtomicBoolean(false);
+		m_notifiedWritable = true;
+		m_writing = false;
+		m_receiveFile = null;
+		m_fileReceiveObserver = null;
 	}
 
 	@Override
@@ -75,7 +134,7 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
             @Override
             public void run()
             {
-                m_packetQueue.clear();
+                clearPacketQueue();
                 close(null);
             }
         });
@@ -84,33 +143,185 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
     @Override
     public void queue(final Runnable runnable)
     {
-        m_packetQueue.offer(runnable);
-        getNIOService().queue(new AddInterestEvent(SelectionKey.OP_WRITE));
+        m_packetQueue.offer(runnable, null);
+        scheduleWrite();
+    }
+
+    /**
+     * Makes sure the NIOService will add write interest for this socket.
+     * <p>
+     * Only the first call after the write event has run will queue it on the
+     * NIOService, consecutive calls are coalesced into that single event.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     */
+    private void scheduleWrite()
+    {
+        if (m_writePending.compareAndSet(false, true))
+        {
+            getNIOService().queue(m_writeEvent);
+        }
     }
 
     @Override
     public boolean write(final byte[] packet, final Object tag)
     {
-        final long currentQueueSize = m_bytesInQueue.addAndGet(packet.length);
-        if (m_maxQueueSize > 0 && currentQueueSize > m_maxQueueSize)
+        return writePacket(packet, packet.length, tag);
+    }
+
+    @Override
+    public boolean write(final ByteBuffer packet)
+    {
+        return writePacket(new ByteBuffer[] { packet }, packet.remaining(), null);
+    }
+
+    @Override
+    public boolean write(final ByteBuffer... parts)
+    {
+        return write(parts, null);
+    }
+
+    @Override
+    public boolean write(final ByteBuffer[] parts, final Object tag)
+    {
+        // Copy the array, since the caller may reuse it.
+        return writePacket(parts.clone(), NIOUtils.remaining(parts), tag);
+    }
+
+    @Override
+    public boolean write(final NagaBuffer packet)
+    {
+        return write(packet, null);
+    }
+
+    @Override
+    public boolean write(final NagaBuffer packet, final Object tag)
+    {
+        // Use a view, so that the same buffer may be written to several sockets.
+        final ByteBuffer view = packet.getBuffer().asReadOnlyBuffer();
+        return writePacket(new OwnedPacket(view, packet), view.remaining(), tag);
+    }
+
+    /**
+     * Queues a packet, or writes it directly if possible.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param packet the packet, see {@link #addToWriter(Object, Object)}.
+     * @param size the number of bytes in the packet.
+     * @param tag the tag of the packet, may be null.
+     * @return true if the packet was queued, false if the queue limit was reached.
+     */
+    private boolean writePacket(final Object packet, final long size, final Object tag)
+    {
+        // Reserve the budget before the queue, so that the bytes of a queue closed
+        // in between are never freed from the budget twice.
+        final WriteBudget writeBudget = m_writeBudget;
+        if (writeBudget != null && !writeBudget.reserve(size))
         {
-            m_bytesInQueue.addAndGet(-packet.length);
+            releasePacket(packet);
             return false;
         }
+        final long currentQueueSize = m_bytesInQueue.addAndGet(size);
+        if (currentQueueSize < 0 || m_maxQueueSize > 0 && currentQueueSize > m_maxQueueSize)
+        {
+            // Either the queue is full or the socket is closed.
+            m_bytesInQueue.addAndGet(-size);
+            if (writeBudget != null) writeBudget.free(size);
+            releasePacket(packet);
+            return false;
+        }
+
+        // Try to send the packet right away when called on the NIOService thread.
+        if (canWriteDirectly())
+        {
+            removeFromQueueSize(size);
+            // The packet writer may write to this socket while converting the packet,
+            // such as the SSL packet handler sending handshake data, so queue those writes.
+            m_writing = true;
+            try
+            {
+                addToWriter(packet, tag);
+            }
+            finally
+            {
+                m_writing = false;
+            }
+            try
+            {
+                writeBufferedPackets();
+            }
+            catch (Exception e)
+            {
+                close(e);
+            }
+            return true;
+        }
 
         // Add the packet.
-        m_packetQueue.offer(tag == null ? packet : new Object[] { packet, tag });
-        getNIOService().queue(new AddInterestEvent(SelectionKey.OP_WRITE));
+        m_packetQueue.offer(packet, tag);
+        if (m_bytesInQueue.get() < 0)
+        {
+            // The socket closed meanwhile and may already have cleared its queue,
+            // so clear it again to release the packet.
+            getNIOService().queue(new Runnable()
+            {
+                public void run()
+                {
+                    clearPacketQueue();
+                }
+            });
+            return false;
+        }
+        scheduleWrite();
+        checkHighWatermark(currentQueueSize);
 
         return true;
     }
 
+    /**
+     * Determine if a packet may be written to the channel immediately instead of
+     * being queued.
+     * <p>
+     * This is only possible on the NIOService thread, when the socket is connected and
+     * nothing is waiting to be written, so that the order of packets is preserved.
+     * Packets written from an observer or the packet writer while packets are being written are
+     * queued instead, and sent by the write already in progress, so that writing from
+     * {@link naga.SocketObserver#packetSent(NIOSocket, Object)} does not recurse.
+     *
+     * @return true if the packet can be written directly.
+     */
+    private boolean canWriteDirectly()
+    {
+        return getNIOService().inEventLoop()
+               && !m_writing
+               && m_packetQueue.isEmpty()
+               && m_socketWriter.isEmpty()
+               && isOpen()
+               && getKey() != null
+               && isConnected();
+    }
+
 	@Override
     public boolean write(final byte[] packet)
 	{
         return write(packet, null);
 	}
 
+	@Override
+	public void transferFile(final FileChannel file, final long position, final long count, final Object tag)
+	{
+		if (position < 0 || count < 0) throw new IllegalArgumentException("Negative file position or count");
+		final PacketWriter packetWriter = m_socketWriter.getPacketWriter();
+		if (count > Integer.MAX_VALUE && packetWriter != RawPacketWriter.INSTANCE && !isStreamWriter(packetWriter))
+		{
+			throw new IllegalArgumentException("Transfers through a packet writer are limited to "
+			                                   + Integer.MAX_VALUE + " bytes, was: " + count);
+		}
+		m_packetQueue.offer(new FileTransfer(file, position, count), tag);
+		scheduleWrite();
+	}
+
 	public boolean isConnected()
 	{
 		return getChannel().isConnected();
@@ -123,9 +334,37 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
      */
     private void notifyPacketReceived(final byte[] packet)
     {
+        addInboundBytes(packet.length);
+        try
+        {
+            final SocketObserver observer = m_socketObserver;
+            if (observer instanceof BufferSocketObserver)
+            {
+                ((BufferSocketObserver) observer).packetReceived(this, ByteBuffer.wrap(packet).asReadOnlyBuffer());
+            }
+            else if (observer != null)
+            {
+                observer.packetReceived(this, packet);
+            }
+        }
+        catch (Exception e)
+        {
+            getNIOService().notifyException(e);
+        }
+    }
+
+    /**
+     * Notify the buffer observer that the packet is received, will log to the exception observer on NIOService if an error occurs.
+     *
+     * @param observer the observer to notify.
+     * @param packet the packet received.
+     */
+    private void notifyPacketReceived(final BufferSocketObserver observer, final ByteBuffer packet)
+    {
+        addInboundBytes(packet.remaining());
         try
         {
-            if (m_socketObserver != null) m_socketObserver.packetReceived(this, packet);
+            observer.packetReceived(this, packet);
         }
         catch (Exception e)
         {
@@ -158,17 +397,59 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 		try
 		{
 			if (!isConnected()) throw new IOException("Channel not connected.");
-            while (m_socketReader.read(getChannel()) > 0)
+			m_lastReadTime = System.currentTimeMillis();
+			m_readAgainPending = false;
+			int reads = 0;
+			long bytesRead = 0;
+            while (!m_readingSuspended && !m_inboundSuspended)
             {
-                byte[] packet;
-                final ByteBuffer buffer = m_socketReader.getBuffer();
-				while (buffer.remaining() > 0
-                       && (packet = m_packetReader.nextPacket(buffer)) != null)
-				{
-                    if (packet == PacketReader.SKIP_PACKET) continue;
-                    notifyPacketReceived(packet);
-				}
-                m_socketReader.compact();
+                if (getNIOService().isReadBudgetExhausted(reads, bytesRead))
+                {
+                    // Let the other sockets of the service have their turn first,
+                    // queuing the socket only once however often it is selected meanwhile.
+                    m_readAgainPending = true;
+                    if (!m_readAgainQueued)
+                    {
+                        m_readAgainQueued = true;
+                        getNIOService().readAgainLater(this);
+                    }
+                    break;
+                }
+                reads++;
+                if (m_socketReader.isReadingFile())
+                {
+                    // Divert the bytes straight into the file.
+                    final int read = m_socketReader.readFile(getChannel());
+                    bytesRead += read;
+                    if (m_socketReader.isReadingFile())
+                    {
+                        if (read == 0) break;
+                        continue;
+                    }
+                    notifyFileReceived();
+                    // The bytes following the file may already hold complete packets.
+                    final ByteBuffer buffer = m_socketReader.restoreUnreadBytes();
+                    if (buffer != null) readPackets(buffer);
+                    continue;
+                }
+                if (m_socketReader.isReadingPacket())
+                {
+                    // Continue reading a large packet directly into its byte array.
+                    final byte[] packet = m_socketReader.takePacket();
+                    if (packet != null)
+                    {
+                        notifyPacketReceived(packet);
+                        continue;
+                    }
+                    final int read = m_socketReader.readPacket(getChannel());
+                    if (read == 0) break;
+                    bytesRead += read;
+                    continue;
+                }
+                final int read = m_socketReader.read(getChannel());
+                if (read == 0) break;
+                bytesRead += read;
+                readPackets(m_socketReader.getBuffer());
 			}
 		}
 		catch (Exception e)
@@ -177,32 +458,356 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 		}
 	}
 
-	private void fillCurrentOutgoingBuffer() {
-        if (m_socketWriter.isEmpty())
-        {
-            // Retrieve next packet from the queue.
-            Object nextPacket = m_packetQueue.poll();
-            while (nextPacket != null && nextPacket instanceof Runnable)
-            {
-                ((Runnable) nextPacket).run();
-                nextPacket = m_packetQueue.poll();
-            }
-            if (nextPacket == null) return;
-            final byte[] data;
-            Object tag = null;
-            if (nextPacket instanceof byte[])
-            {
-                data = (byte[]) nextPacket;
-            }
-            else
-            {
-                data = (byte[])((Object[])nextPacket)[0];
-                tag = ((Object[])nextPacket)[1];
-            }
-            m_socketWriter.setPacket(data, tag);
-            // Remove the space reserved in the queue.
-            m_bytesInQueue.addAndGet(-data.length);
-        }
+	/**
+	 * Delivers the packets in the buffer to the observer, then keeps any unread bytes
+	 * for the next read.
+	 * <p>
+	 * Stops early if the observer starts receiving a file, leaving the rest of the buffer for the file,
+	 * or suspends reading, leaving the rest of the buffer until reading resumes.
+	 *
+	 * @param buffer the buffer to read packets from.
+	 * @throws ProtocolViolationException if the packet reader finds an invalid packet.
+	 */
+	private void readPackets(final ByteBuffer buffer) throws ProtocolViolationException
+	{
+		final SocketObserver observer = m_socketObserver;
+		if (observer instanceof BufferSocketObserver && m_packetReader instanceof BufferPacketReader)
+		{
+			// Hand out views of the buffer rather than copies.
+			ByteBuffer packet;
+			while (buffer.remaining() > 0 && !m_socketReader.isReadingFile() && !m_readingSuspended
+			       && (packet = ((BufferPacketReader) m_packetReader).nextPacketBuffer(buffer)) != null)
+			{
+				notifyPacketReceived((BufferSocketObserver) observer, packet);
+			}
+		}
+		else
+		{
+			byte[] packet;
+			while (buffer.remaining() > 0 && !m_socketReader.isReadingFile() && !m_readingSuspended
+			       && (packet = m_packetReader.nextPacket(buffer)) != null)
+			{
+				if (packet == PacketReader.SKIP_PACKET) continue;
+				notifyPacketReceived(packet);
+			}
+		}
+		if (!m_socketReader.isReadingFile() && !m_readingSuspended) beginLargePacket(buffer);
+		m_socketReader.compact();
+	}
+
+	@Override
+	public void receiveFile(final FileChannel file, final long position, final long count, final FileReceiveObserver observer)
+	{
+		if (position < 0 || count < 0) throw new IllegalArgumentException("Negative file position or count");
+		if (!getNIOService().inEventLoop()) throw new IllegalStateException("Files can only be received on the NIOService thread");
+		if (m_receiveFile != null) throw new IllegalStateException("Already receiving a file");
+		m_receiveFile = file;
+		m_fileReceiveObserver = observer;
+		m_socketReader.beginFile(file, position, count);
+	}
+
+	/**
+	 * Notify the observer that a file is received. Will log to the exception observer on NIOService if an error occurs.
+	 */
+	private void notifyFileReceived()
+	{
+		final FileChannel file = m_receiveFile;
+		final FileReceiveObserver observer = m_fileReceiveObserver;
+		m_receiveFile = null;
+		m_fileReceiveObserver = null;
+		try
+		{
+			if (observer != null) observer.fileReceived(this, file);
+		}
+		catch (Exception e)
+		{
+			getNIOService().notifyException(e);
+		}
+	}
+
+	/**
+	 * Continues reading after the read budget of this socket ran out, unless
+	 * the socket has been read since.
+	 * <p>
+	 * This method is called on the NIOService thread.
+	 */
+	void readAgain()
+	{
+		m_readAgainQueued = false;
+		if (m_readAgainPending) socketReadyForRead();
+	}
+
+	/**
+	 * Starts reading the next packet directly into a byte array if it is too large
+	 * for the shared buffer.
+	 * <p>
+	 * This is only possible when the packet reader knows the packet length from its header,
+	 * and allows packets of that size.
+	 *
+	 * @param buffer the buffer containing the start of the next packet.
+	 * @throws ProtocolViolationException if the packet header is invalid or the packet too large.
+	 */
+	private void beginLargePacket(final ByteBuffer buffer) throws ProtocolViolationException
+	{
+		if (!(m_packetReader instanceof LengthPrefixedPacketReader) || !buffer.hasRemaining()) return;
+		final LengthPrefixedPacketReader reader = (LengthPrefixedPacketReader) m_packetReader;
+		final int start = buffer.position();
+		final int length = reader.readHeader(buffer);
+		if (length < 0 || buffer.position() - start + length <= getNIOService().getBufferSize())
+		{
+			// The packet fits in the shared buffer, read it as usual.
+			buffer.position(start);
+			return;
+		}
+		// Never allocate more than the reader explicitly allows, the length comes from the peer.
+		if (length > reader.getMaxPacketSize())
+		{
+			throw new ProtocolViolationException("Packet size " + length + " exceeds the buffer size "
+			                                     + getNIOService().getBufferSize() + " and max packet size " + reader.getMaxPacketSize());
+		}
+		m_socketReader.beginPacket(length);
+	}
+
+	/**
+	 * Moves packets from the queue to the socket writer until the queue is empty
+	 * or the writer has collected enough data for a single write.
+	 * <p>
+	 * Runnables in the queue are run as soon as all packets before them are sent.
+	 *
+	 * @throws IOException if a file transfer could not be mapped.
+	 */
+	private void fillCurrentOutgoingBuffer() throws IOException
+	{
+		Object nextPacket;
+		while ((nextPacket = m_packetQueue.peek()) != null)
+		{
+			if (nextPacket instanceof Runnable)
+			{
+				if (!m_socketWriter.isEmpty()) return;
+				m_packetQueue.remove();
+				((Runnable) nextPacket).run();
+				continue;
+			}
+			if (nextPacket instanceof FileTransfer)
+			{
+				if (!m_socketWriter.isEmpty()) return;
+				final FileTransfer transfer = (FileTransfer) nextPacket;
+				final Object tag = m_packetQueue.peekTag();
+				final PacketWriter packetWriter = m_socketWriter.getPacketWriter();
+				if (packetWriter == RawPacketWriter.INSTANCE)
+				{
+					m_packetQueue.remove();
+					m_socketWriter.addFileTransfer(transfer.m_file, transfer.m_position, transfer.m_count, tag);
+				}
+				else if (isStreamWriter(packetWriter) && transfer.m_count > FILE_CHUNK_SIZE)
+				{
+					// Feed the file one mapped chunk at a time, keeping the transfer queued until the last one.
+					final ByteBuffer mapped = transfer.m_file.map(FileChannel.MapMode.READ_ONLY, transfer.m_position, FILE_CHUNK_SIZE);
+					transfer.m_position += FILE_CHUNK_SIZE;
+					transfer.m_count -= FILE_CHUNK_SIZE;
+					m_socketWriter.addPacket(new ByteBuffer[] { mapped }, FILE_CHUNK);
+					continue;
+				}
+				else
+				{
+					// The packet writer needs to see the bytes, so send the mapped file as a single packet.
+					m_packetQueue.remove();
+					if (transfer.m_count > Integer.MAX_VALUE)
+					{
+						throw new IOException("File transfer of " + transfer.m_count + " bytes too large for the packet writer");
+					}
+					final ByteBuffer mapped = transfer.m_file.map(FileChannel.MapMode.READ_ONLY, transfer.m_position, transfer.m_count);
+					m_socketWriter.addPacket(new ByteBuffer[] { mapped }, tag);
+				}
+				continue;
+			}
+			if (m_socketWriter.isFull()) return;
+			final long size = packetSize(nextPacket);
+			addToWriter(nextPacket, m_packetQueue.peekTag());
+			m_packetQueue.remove();
+			// Remove the space reserved in the queue.
+			checkLowWatermark(removeFromQueueSize(size));
+		}
+	}
+
+	/**
+	 * Determine if a packet writer transforms a stream of bytes rather than single packets,
+	 * so that a file may be passed to it in chunks without changing the bytes sent.
+	 * <p>
+	 * This is the case for SSL sockets without a packet writer of their own.
+	 *
+	 * @param packetWriter the packet writer.
+	 * @return true if the file can be written in chunks.
+	 */
+	private static boolean isStreamWriter(final PacketWriter packetWriter)
+	{
+		return packetWriter instanceof SSLPacketHandler
+		       && ((SSLPacketHandler) packetWriter).getWriter() == RawPacketWriter.INSTANCE;
+	}
+
+	/**
+	 * Adds a packet to the socket writer.
+	 *
+	 * @param packet the packet, either a byte array, an array of ByteBuffers, an owned packet or an encoded packet.
+	 * @param tag the tag of the packet, may be null.
+	 */
+	private void addToWriter(final Object packet, final Object tag)
+	{
+		if (packet instanceof byte[])
+		{
+			m_socketWriter.addPacket((byte[]) packet, tag);
+		}
+		else if (packet instanceof EncodedPacket)
+		{
+			final EncodedPacket encodedPacket = (EncodedPacket) packet;
+			m_socketWriter.addEncodedPacket(encodedPacket.m_buffers, tag, encodedPacket.m_owner);
+		}
+		else if (packet instanceof OwnedPacket)
+		{
+			final OwnedPacket ownedPacket = (OwnedPacket) packet;
+			m_socketWriter.addPacket(new ByteBuffer[] { ownedPacket.m_buffer }, tag, ownedPacket.m_owner);
+		}
+		else
+		{
+			m_socketWriter.addPacket((ByteBuffer[]) packet, tag);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes a packet in the queue occupies.
+	 *
+	 * @param packet the packet, see {@link #addToWriter(Object, Object)}.
+	 * @return the size of the packet.
+	 */
+	private static long packetSize(final Object packet)
+	{
+		if (packet instanceof byte[]) return ((byte[]) packet).length;
+		if (packet instanceof EncodedPacket) return ((EncodedPacket) packet).m_size;
+		if (packet instanceof OwnedPacket) return ((OwnedPacket) packet).m_size;
+		return NIOUtils.remaining((ByteBuffer[]) packet);
+	}
+
+	/**
+	 * Writes buffers already converted by a packet writer, bypassing the packet writer of this socket.
+	 * <p>
+	 * Used by {@link naga.SocketGroup} to convert a broadcast only once.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param buffers the converted buffers.
+	 * @param size the number of bytes in the buffers.
+	 * @param owner a reference released once the packet is sent or thrown away, may be null.
+	 * @return true if the packet was queued, false if the queue limit was reached.
+	 */
+	boolean writeEncoded(final ByteBuffer[] buffers, final long size, final NagaBuffer owner)
+	{
+		return writePacket(new EncodedPacket(buffers, size, owner), size, null);
+	}
+
+	/**
+	 * Marks a buffer produced by the packet writer of this socket to be released
+	 * as soon as it has been completely written.
+	 * <p>
+	 * This method is called on the NIOService thread, by the packet writer.
+	 *
+	 * @param buffer the buffer to release.
+	 */
+	void releaseWhenWritten(final NagaBuffer buffer)
+	{
+		m_socketWriter.releaseWhenWritten(buffer);
+	}
+
+	/**
+	 * Releases the reference held by a packet that will not be sent.
+	 *
+	 * @param packet the packet, see {@link #addToWriter(Object, Object)}.
+	 */
+	private static void releasePacket(final Object packet)
+	{
+		if (packet instanceof OwnedPacket)
+		{
+			((OwnedPacket) packet).m_owner.release();
+		}
+		else if (packet instanceof EncodedPacket && ((EncodedPacket) packet).m_owner != null)
+		{
+			((EncodedPacket) packet).m_owner.release();
+		}
+	}
+
+	/**
+	 * Removes all queued packets, releasing their references.
+	 * <p>
+	 * This method is called on the NIOService thread.
+	 */
+	private void clearPacketQueue()
+	{
+		Object packet;
+		while ((packet = m_packetQueue.peek()) != null)
+		{
+			m_packetQueue.remove();
+			releasePacket(packet);
+		}
+	}
+
+	/**
+	 * Discards the oldest packets in the queue until the queue size is within the given size.
+	 * <p>
+	 * Only packets waiting in the queue are discarded, so no packet is ever partially sent.
+	 * Discarded packets are not reported as sent.
+	 * <p>
+	 * This method is called on the NIOService thread.
+	 *
+	 * @param queueSize the queue size to reach.
+	 * @return true if the queue size is now within the given size.
+	 */
+	boolean dropOldestPackets(final long queueSize)
+	{
+		Object packet;
+		while (m_bytesInQueue.get() > queueSize && (packet = m_packetQueue.peek()) != null)
+		{
+			// Runnables and file transfers must stay in order, so stop at them.
+			if (packet instanceof Runnable || packet instanceof FileTransfer) break;
+			m_packetQueue.remove();
+			releasePacket(packet);
+			checkLowWatermark(removeFromQueueSize(packetSize(packet)));
+		}
+		return m_bytesInQueue.get() <= queueSize;
+	}
+
+	/**
+	 * Removes bytes leaving the write queue from the queue size and the write budget.
+	 *
+	 * @param size the number of bytes.
+	 * @return the new queue size.
+	 */
+	private long removeFromQueueSize(final long size)
+	{
+		final WriteBudget writeBudget = m_writeBudget;
+		if (writeBudget != null) writeBudget.free(size);
+		return m_bytesInQueue.addAndGet(-size);
+	}
+
+	/**
+	 * Internal method to set the write budget this socket draws from, before the socket is used.
+	 *
+	 * @param writeBudget the budget, or null if the socket has none.
+	 */
+	void setWriteBudget(final WriteBudget writeBudget)
+	{
+		m_writeBudget = writeBudget;
+	}
+
+	WriteBudget getWriteBudget()
+	{
+		return m_writeBudget;
+	}
+
+	/**
+	 * @return the time bytes were last written to the channel, 0 if nothing has been written.
+	 */
+	long getLastWriteTime()
+	{
+		return m_lastWriteTime;
 	}
 
 	@Override
@@ -213,31 +818,50 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 			deleteInterest(SelectionKey.OP_WRITE);
 			if (!isOpen()) return;
 			fillCurrentOutgoingBuffer();
+			writeBufferedPackets();
+		}
+		catch (Exception e)
+		{
+			close(e);
+		}
+	}
 
-			// Return if there is nothing in the buffer to send.
-			if (m_socketWriter.isEmpty())
-            {
-                return;
-            }
+	/**
+	 * Writes packets in the socket writer until either everything in the queue is
+	 * sent, or the channel cannot accept more data. In the latter case write interest
+	 * is added so that writing resumes once the channel is ready.
+	 * <p>
+	 * This method is called on the NIOService thread.
+	 *
+	 * @throws IOException if writing to the channel fails.
+	 */
+	private void writeBufferedPackets() throws IOException
+	{
+		if (m_writing) return;
+		m_writing = true;
+		try
+		{
 			while (!m_socketWriter.isEmpty())
 			{
-                final boolean bytesWereWritten = m_socketWriter.write(getChannel());
+				final boolean bytesWereWritten = m_socketWriter.write(getChannel());
+				if (bytesWereWritten) m_lastWriteTime = System.currentTimeMillis();
+				while (m_socketWriter.hasSentPacket())
+				{
+					final Object tag = m_socketWriter.removeSentPacket();
+					if (tag != FILE_CHUNK) notifyPacketSent(tag);
+				}
 				if (!bytesWereWritten)
 				{
 					// Change the interest ops in case we still have things to write.
 					addInterest(SelectionKey.OP_WRITE);
 					return;
 				}
-				if (m_socketWriter.isEmpty())
-				{
-                    notifyPacketSent(m_socketWriter.getTag());
-					fillCurrentOutgoingBuffer();
-				}
+				fillCurrentOutgoingBuffer();
 			}
 		}
-		catch (Exception e)
+		finally
 		{
-			close(e);
+			m_writing = false;
 		}
 	}
 
@@ -251,6 +875,7 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 			{
 				deleteInterest(SelectionKey.OP_CONNECT);
 				m_timeOpened = System.currentTimeMillis();
+				if (m_idleCheck != null) m_idleCheck.start();
 				notifyObserverOfConnect();
 			}
 
@@ -292,7 +917,7 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 	@Override
     public long getWriteQueueSize()
 	{
-		return m_bytesInQueue.get();
+		return Math.max(0, m_bytesInQueue.get());
 	}
 
 	public String toString()
@@ -307,6 +932,12 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 		}
 	}
 
+	@Override
+	public void setWriteBatchLimits(final int maxBytes, final int maxBuffers)
+	{
+		m_socketWriter.setBatchLimits(maxBytes, maxBuffers);
+	}
+
 	/**
 	 * @return the current maximum queue size.
 	 */
@@ -328,6 +959,277 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 		m_maxQueueSize = maxQueueSize;
 	}
 
+	@Override
+	public void setIdleTimeouts(final long readIdleTimeout, final long writeIdleTimeout, final long allIdleTimeout)
+	{
+		if (readIdleTimeout < 0 || writeIdleTimeout < 0 || allIdleTimeout < 0)
+		{
+			throw new IllegalArgumentException("Negative idle timeout");
+		}
+		getNIOService().queue(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (m_idleCheck != null) m_idleCheck.cancel();
+				m_idleCheck = null;
+				if (readIdleTimeout == 0 && writeIdleTimeout == 0 && allIdleTimeout == 0) return;
+				m_idleCheck = new IdleCheckEvent(readIdleTimeout, writeIdleTimeout, allIdleTimeout);
+				if (isOpen() && isConnected()) m_idleCheck.start();
+			}
+		});
+	}
+
+	@Override
+	public void suspendReading()
+	{
+		final Runnable event = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				m_readingSuspended = true;
+				updateReadInterest();
+			}
+		};
+		// Suspend at once when called from the observer, so that the current read stops.
+		if (getNIOService().inEventLoop())
+		{
+			event.run();
+		}
+		else
+		{
+			getNIOService().queue(event);
+		}
+	}
+
+	@Override
+	public void resumeReading()
+	{
+		final Runnable event = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (!m_readingSuspended) return;
+				m_readingSuspended = false;
+				updateReadInterest();
+				readUnreadPackets();
+			}
+		};
+		if (getNIOService().inEventLoop())
+		{
+			event.run();
+		}
+		else
+		{
+			getNIOService().queue(event);
+		}
+	}
+
+	/**
+	 * Delivers the packets left unread in the buffer when reading was suspended.
+	 * <p>
+	 * This method is called on the NIOService thread.
+	 */
+	private void readUnreadPackets()
+	{
+		if (!isOpen() || !m_listening || m_readingSuspended || m_inboundSuspended
+		    || m_socketReader.isReadingFile() || m_socketReader.isReadingPacket()) return;
+		try
+		{
+			final ByteBuffer buffer = m_socketReader.restoreUnreadBytes();
+			if (buffer != null) readPackets(buffer);
+		}
+		catch (Exception e)
+		{
+			close(e);
+		}
+	}
+
+	@Override
+	public void setInboundWatermarks(final long lowWatermark, final long highWatermark)
+	{
+		if (highWatermark > 0 && lowWatermark > highWatermark)
+		{
+			throw new IllegalArgumentException("Low watermark " + lowWatermark + " exceeds high watermark " + highWatermark);
+		}
+		getNIOService().queue(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				m_inboundLowWatermark = lowWatermark;
+				m_inboundHighWatermark = highWatermark;
+				if (highWatermark < 1) m_inboundBytes.set(0);
+				checkInboundWatermarks();
+			}
+		});
+	}
+
+	@Override
+	public void releaseInboundBytes(final long bytes)
+	{
+		final long inboundBytes = m_inboundBytes.addAndGet(-bytes);
+		// Reading the volatile flag after updating the count guarantees that either we see the
+		// suspension here, or the NIOService thread sees the new count when it suspends.
+		if (inboundBytes <= m_inboundLowWatermark && m_inboundSuspended
+		    && m_inboundCheckPending.compareAndSet(false, true))
+		{
+			getNIOService().queue(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					m_inboundCheckPending.set(false);
+					checkInboundWatermarks();
+				}
+			});
+		}
+	}
+
+	@Override
+	public long getInboundBytes()
+	{
+		return m_inboundBytes.get();
+	}
+
+	/**
+	 * Adds the size of a received packet to the inbound byte count, suspending
+	 * reading if the high watermark is exceeded.
+	 * <p>
+	 * This method is called on the NIOService thread.
+	 *
+	 * @param bytes the size of the packet.
+	 */
+	private void addInboundBytes(final int bytes)
+	{
+		if (m_inboundHighWatermark < 1) return;
+		if (m_inboundBytes.addAndGet(bytes) > m_inboundHighWatermark && !m_inboundSuspended)
+		{
+			m_inboundSuspended = true;
+			checkInboundWatermarks();
+		}
+	}
+
+	/**
+	 * Suspends or resumes reading depending on the inbound byte count.
+	 * <p>
+	 * This method is called on the NIOService thread.
+	 */
+	private void checkInboundWatermarks()
+	{
+		final long inboundBytes = m_inboundBytes.get();
+		if (m_inboundHighWatermark < 1)
+		{
+			m_inboundSuspended = false;
+		}
+		else if (inboundBytes > m_inboundHighWatermark)
+		{
+			m_inboundSuspended = true;
+		}
+		else if (inboundBytes <= m_inboundLowWatermark)
+		{
+			m_inboundSuspended = false;
+		}
+		updateReadInterest();
+	}
+
+	@Override
+	public void setWriteWatermarks(final long lowWatermark, final long highWatermark)
+	{
+		if (highWatermark > 0 && lowWatermark > highWatermark)
+		{
+			throw new IllegalArgumentException("Low watermark " + lowWatermark + " exceeds high watermark " + highWatermark);
+		}
+		m_writeLowWatermark = lowWatermark;
+		m_writeHighWatermark = highWatermark;
+		getNIOService().queue(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final long queueSize = m_bytesInQueue.get();
+				if (highWatermark < 1 || queueSize <= lowWatermark)
+				{
+					m_writable.set(true);
+				}
+				else if (queueSize > highWatermark)
+				{
+					m_writable.set(false);
+				}
+				notifyObserverOfWritability();
+			}
+		});
+	}
+
+	@Override
+	public boolean isWritable()
+	{
+		return m_writable.get();
+	}
+
+	/**
+	 * Marks the socket as unwritable if the write queue has grown above the high watermark.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param queueSize the size of the write queue after adding a packet.
+	 */
+	private void checkHighWatermark(final long queueSize)
+	{
+		final long highWatermark = m_writeHighWatermark;
+		if (highWatermark < 1 || queueSize <= highWatermark || !m_writable.compareAndSet(true, false)) return;
+		// Reading the count after clearing the flag guarantees that either we see the
+		// drained queue here, or the NIOService thread sees the flag when draining.
+		if (m_bytesInQueue.get() <= m_writeLowWatermark) m_writable.set(true);
+		if (m_writabilityEventPending.compareAndSet(false, true))
+		{
+			getNIOService().queue(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					m_writabilityEventPending.set(false);
+					notifyObserverOfWritability();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Marks the socket as writable if the write queue has drained to the low watermark.
+	 * <p>
+	 * This method is called on the NIOService thread.
+	 *
+	 * @param queueSize the size of the write queue after removing a packet.
+	 */
+	private void checkLowWatermark(final long queueSize)
+	{
+		if (queueSize <= m_writeLowWatermark && m_writable.compareAndSet(false, true))
+		{
+			notifyObserverOfWritability();
+		}
+	}
+
+	/**
+	 * Adds or removes read interest depending on whether reading is suspended.
+	 * <p>
+	 * This method is called on the NIOService thread.
+	 */
+	private void updateReadInterest()
+	{
+		if (!m_listening) return;
+		if (m_readingSuspended || m_inboundSuspended)
+		{
+			deleteInterest(SelectionKey.OP_READ);
+		}
+		else
+		{
+			addInterest(SelectionKey.OP_READ);
+		}
+	}
+
 	@Override
     public void listen(final SocketObserver socketObserver)
 	{
@@ -351,6 +1253,44 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 		}
 	}
 
+	/**
+     * Notify the observer that the socket is idle. Will log to the exception observer on NIOService if an error occurs.
+	 *
+	 * @param state the kind of idleness detected.
+	 */
+	private void notifyObserverOfIdle(final IdleState state)
+	{
+		try
+		{
+			if (m_socketObserver != null) m_socketObserver.socketIdle(this, state);
+		}
+		catch (Exception e)
+		{
+            getNIOService().notifyException(e);
+		}
+	}
+
+	/**
+     * Notify the observer if the writability differs from what it was last told.
+	 * Will log to the exception observer on NIOService if an error occurs.
+	 * <p>
+	 * This method is called on the NIOService thread.
+	 */
+	private void notifyObserverOfWritability()
+	{
+		final boolean writable = m_writable.get();
+		if (writable == m_notifiedWritable || m_socketObserver == null) return;
+		m_notifiedWritable = writable;
+		try
+		{
+			m_socketObserver.writabilityChanged(this, writable);
+		}
+		catch (Exception e)
+		{
+            getNIOService().notifyException(e);
+		}
+	}
+
 	/**
      * Notify the observer of the disconnect. Will log to the exception observer on NIOService if an error occurs.
 	 *
@@ -397,25 +1337,191 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
     protected void shutdown(final Exception e)
 	{
 		m_timeOpened = -1;
-		m_packetQueue.clear();
-		m_bytesInQueue.set(0);
+		if (m_idleCheck != null) m_idleCheck.cancel();
+		m_idleCheck = null;
+		// Mark the queue as closed before clearing it, so that later writes are refused.
+		final long queueSize = m_bytesInQueue.getAndSet(CLOSED_QUEUE_SIZE);
+		if (queueSize > 0 && m_writeBudget != null) m_writeBudget.free(queueSize);
+		clearPacketQueue();
+		m_writable.set(true);
+		m_notifiedWritable = true;
+		m_socketReader.close();
+		m_socketWriter.close();
+		m_receiveFile = null;
+		m_fileReceiveObserver = null;
+		getNIOService().socketClosed();
 		notifyObserverOfDisconnect(e);
 	}
 
 
-    private class AddInterestEvent implements Runnable
+    /**
+     * The event used to add write interest on the NIOService thread.
+     * <p>
+     * A single instance is reused by the socket, see {@link #scheduleWrite()}.
+     */
+    private class WriteEvent implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            // Clear the flag before adding the interest, so that packets queued
+            // after this point will schedule a new event.
+            m_writePending.set(false);
+            addInterest(SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Write[" + SocketChannelResponder.this + "]";
+        }
+    }
+
+    /**
+     * A packet already converted by a packet writer.
+     */
+    private static class EncodedPacket
+    {
+        private final ByteBuffer[] m_buffers;
+        private final long m_size;
+        private final NagaBuffer m_owner;
+
+        private EncodedPacket(final ByteBuffer[] buffers, final long size, final NagaBuffer owner)
+        {
+            m_buffers = buffers;
+            m_size = size;
+            m_owner = owner;
+        }
+    }
+
+    /**
+     * A packet written from a NagaBuffer, holding a reference to it.
+     */
+    private static class OwnedPacket
+    {
+        private final ByteBuffer m_buffer;
+        private final long m_size;
+        private final NagaBuffer m_owner;
+
+        private OwnedPacket(final ByteBuffer buffer, final NagaBuffer owner)
+        {
+            m_buffer = buffer;
+            m_size = buffer.remaining();
+            m_owner = owner;
+        }
+    }
+
+    /**
+     * A part of a file queued for sending.
+     * <p>
+     * When streamed in chunks, the position and count are advanced on the NIOService thread.
+     */
+    private static class FileTransfer
+    {
+        private final FileChannel m_file;
+        private long m_position;
+        private long m_count;
+
+        private FileTransfer(final FileChannel file, final long position, final long count)
+        {
+            m_file = file;
+            m_position = position;
+            m_count = count;
+        }
+    }
+
+    /**
+     * The delayed event checking the idle timeouts of this socket.
+     * <p>
+     * Reads and writes only record a timestamp, this event compares those
+     * to the timeouts and reschedules itself for the earliest time one of
+     * them can expire.
+     */
+    private class IdleCheckEvent implements Runnable
     {
-        private final int m_interest;
+        private final long m_readIdleTimeout;
+        private final long m_writeIdleTimeout;
+        private final long m_allIdleTimeout;
+        private long m_readIdleNotified;
+        private long m_writeIdleNotified;
+        private long m_allIdleNotified;
+        private DelayedEvent m_event;
+
+        private IdleCheckEvent(final long readIdleTimeout, final long writeIdleTimeout, final long allIdleTimeout)
+        {
+            m_readIdleTimeout = readIdleTimeout;
+            m_writeIdleTimeout = writeIdleTimeout;
+            m_allIdleTimeout = allIdleTimeout;
+            m_event = null;
+        }
 
-        private AddInterestEvent(final int interest)
+        /**
+         * Starts counting the timeouts from now.
+         */
+        void start()
         {
-            m_interest = interest;
+            final long now = System.currentTimeMillis();
+            m_readIdleNotified = now;
+            m_writeIdleNotified = now;
+            m_allIdleNotified = now;
+            cancel();
+            schedule();
+        }
+
+        void cancel()
+        {
+            if (m_event != null) m_event.cancel();
+            m_event = null;
+        }
+
+        private void schedule()
+        {
+            long next = Long.MAX_VALUE;
+            if (m_readIdleTimeout > 0)
+            {
+                next = Math.min(next, Math.max(m_lastReadTime, m_readIdleNotified) + m_readIdleTimeout);
+            }
+            if (m_writeIdleTimeout > 0)
+            {
+                next = Math.min(next, Math.max(m_lastWriteTime, m_writeIdleNotified) + m_writeIdleTimeout);
+            }
+            if (m_allIdleTimeout > 0)
+            {
+                next = Math.min(next, Math.max(Math.max(m_lastReadTime, m_lastWriteTime), m_allIdleNotified) + m_allIdleTimeout);
+            }
+            m_event = getNIOService().executeAt(this, next);
         }
 
         @Override
         public void run()
         {
-            addInterest(m_interest);
+            m_event = null;
+            if (m_idleCheck != this || !isOpen()) return;
+            final long now = System.currentTimeMillis();
+            if (m_readIdleTimeout > 0 && now - Math.max(m_lastReadTime, m_readIdleNotified) >= m_readIdleTimeout)
+            {
+                m_readIdleNotified = now;
+                notifyObserverOfIdle(IdleState.READER_IDLE);
+            }
+            if (m_writeIdleTimeout > 0 && now - Math.max(m_lastWriteTime, m_writeIdleNotified) >= m_writeIdleTimeout)
+            {
+                m_writeIdleNotified = now;
+                notifyObserverOfIdle(IdleState.WRITER_IDLE);
+            }
+            if (m_allIdleTimeout > 0
+                && now - Math.max(Math.max(m_lastReadTime, m_lastWriteTime), m_allIdleNotified) >= m_allIdleTimeout)
+            {
+                m_allIdleNotified = now;
+                notifyObserverOfIdle(IdleState.ALL_IDLE);
+            }
+            // The observer may have closed the socket or changed the timeouts.
+            if (m_idleCheck == this && isOpen() && m_event == null) schedule();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "IdleCheck[" + SocketChannelResponder.this + "]";
         }
     }
 
@@ -442,7 +1548,8 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 			{
 				m_responder.notifyObserverOfDisconnect(null);
 			}
-			m_responder.addInterest(SelectionKey.OP_READ);
+			m_responder.m_listening = true;
+			m_responder.updateReadInterest();
 		}
 
 		@Override
@@ -0,0 +1,400 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import naga.packetwriter.RawPacketWriter;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A group of sockets receiving the same broadcasts.
+ * <p>
+ * Writing the same packet to many sockets one by one passes it through the PacketWriter
+ * of every socket. A broadcast on the group instead converts the packet once using the
+ * group's PacketWriter, and queues read-only views of the result on each member. The packet
+ * writers of the members are bypassed, so the group should use the same PacketWriter as its members.
+ * <p>
+ * Members are written to on the thread of their NIOService, with a single event queued per
+ * NIOService and broadcast, rather than one per socket.
+ * <p>
+ * Members falling behind are handled according to the group's {@link SlowMemberPolicy},
+ * based on the size of their write queue. Closed members are removed from the group automatically.
+ * <p>
+ * SSL sockets may be members, but since their data must be encrypted separately, they
+ * receive the converted packet through their ordinary write method. They should therefore
+ * use a {@link naga.packetwriter.RawPacketWriter}.
+ * <p>
+ * Broadcasting a {@link naga.NagaBuffer} lets pooled buffers be shared by all members, since each member
+ * holds a reference until its copy of the broadcast has been sent.
+ * <p>
+ * Example use:
+ * <code><pre>
+ * SocketGroup group = new SocketGroup(new RegularPacketWriter(2, true));
+ * group.setSlowMemberPolicy(SocketGroup.SlowMemberPolicy.DROP_OLDEST, 64 * 1024);
+ * group.add(socket);
+ * group.broadcast(message);
+ * </pre></code>
+ * <em>All methods of this class are thread-safe.</em>
+ *
+ * @author Christoffer Lerno
+ */
+public class SocketGroup
+{
+    /**
+     * The way a broadcast handles a member whose write queue would exceed the group's limit.
+     */
+    public enum SlowMemberPolicy
+    {
+        /** Do not send the broadcast to the member. */
+        SKIP,
+        /** Discard the oldest packets in the member's write queue to make room for the broadcast. */
+        DROP_OLDEST,
+        /** Close the member and remove it from the group. */
+        DISCONNECT
+    }
+
+    private final PacketWriter m_packetWriter;
+    private final ConcurrentHashMap<NIOService, Set<NIOSocket>> m_members;
+    private volatile SlowMemberPolicy m_slowMemberPolicy;
+    private volatile long m_maxQueueSize;
+
+    /**
+     * Creates a group sending broadcasts as they are.
+     */
+    public SocketGroup()
+    {
+        this(RawPacketWriter.INSTANCE);
+    }
+
+    /**
+     * Creates a group converting broadcasts using the given PacketWriter.
+     *
+     * @param packetWriter the packet writer used to convert each broadcast once.
+     */
+    public SocketGroup(final PacketWriter packetWriter)
+    {
+        if (packetWriter == null) throw new NullPointerException();
+        m_packetWriter = packetWriter;
+        m_members = new ConcurrentHashMap<NIOService, Set<NIOSocket>>();
+        m_slowMemberPolicy = SlowMemberPolicy.SKIP;
+        m_maxQueueSize = -1;
+    }
+
+    /**
+     * Sets how members that fall behind are handled.
+     * <p>
+     * A member is considered slow if its write queue would exceed the given size with the broadcast added.
+     *
+     * @param policy the policy for slow members.
+     * @param maxQueueSize the maximum write queue size of a member, a value less than 1 disables the policy.
+     */
+    public void setSlowMemberPolicy(final SlowMemberPolicy policy, final long maxQueueSize)
+    {
+        if (policy == null) throw new NullPointerException();
+        m_slowMemberPolicy = policy;
+        m_maxQueueSize = maxQueueSize;
+    }
+
+    /**
+     * Adds a socket to the group.
+     *
+     * @param socket the socket to add.
+     * @throws IllegalArgumentException if the socket was not created by Naga.
+     */
+    public void add(final NIOSocket socket)
+    {
+        final NIOService service = serviceOf(socket);
+        Set<NIOSocket> members = m_members.get(service);
+        if (members == null)
+        {
+            // Another thread may have added the set in the meantime, so keep the set in the map.
+            members = Collections.newSetFromMap(new ConcurrentHashMap<NIOSocket, Boolean>());
+            final Set<NIOSocket> previous = m_members.putIfAbsent(service, members);
+            if (previous != null) members = previous;
+        }
+        members.add(socket);
+    }
+
+    /**
+     * Removes a socket from the group.
+     *
+     * @param socket the socket to remove.
+     * @return true if the socket was a member of the group.
+     */
+    public boolean remove(final NIOSocket socket)
+    {
+        final Set<NIOSocket> members = m_members.get(serviceOf(socket));
+        return members != null && members.remove(socket);
+    }
+
+    /**
+     * Returns the number of members in the group.
+     *
+     * @return the number of members.
+     */
+    public int size()
+    {
+        int size = 0;
+        for (final Set<NIOSocket> members : m_members.values())
+        {
+            size += members.size();
+        }
+        return size;
+    }
+
+    /**
+     * Sends a packet to all members of the group.
+     *
+     * @param packet the packet to send.
+     */
+    public void broadcast(final byte[] packet)
+    {
+        broadcast(ByteBuffer.wrap(packet), null);
+    }
+
+    /**
+     * Sends a packet to all members of the group except one.
+     *
+     * @param packet the packet to send.
+     * @param excluded the member not to send the packet to, may be null.
+     */
+    public void broadcast(final byte[] packet, final NIOSocket excluded)
+    {
+        broadcast(ByteBuffer.wrap(packet), excluded);
+    }
+
+    /**
+     * Sends the remaining bytes of a buffer to all members of the group.
+     * <p>
+     * The buffer must not be modified after calling this method, since it is shared by all members.
+     *
+     * @param packet the packet to send.
+     */
+    public void broadcast(final ByteBuffer packet)
+    {
+        broadcast(packet, null);
+    }
+
+    /**
+     * Sends the remaining bytes of a buffer to all members of the group except one.
+     * <p>
+     * The buffer must not be modified after calling this method, since it is shared by all members.
+     *
+     * @param packet the packet to send.
+     * @param excluded the member not to send the packet to, may be null.
+     */
+    public void broadcast(final ByteBuffer packet, final NIOSocket excluded)
+    {
+        dispatch(new Broadcast(m_packetWriter.write(new ByteBuffer[] { packet.asReadOnlyBuffer() }), excluded, null));
+    }
+
+    /**
+     * Sends the remaining bytes of a reference counted buffer to all members of the group.
+     * <p>
+     * The reference of the caller passes to the group, and the buffer is released
+     * once all members have sent the broadcast.
+     *
+     * @param packet the packet to send.
+     */
+    public void broadcast(final NagaBuffer packet)
+    {
+        broadcast(packet, null);
+    }
+
+    /**
+     * Sends the remaining bytes of a reference counted buffer to all members of the group except one.
+     * <p>
+     * The reference of the caller passes to the group, and the buffer is released
+     * once all members have sent the broadcast.
+     *
+     * @param packet the packet to send.
+     * @param excluded the member not to send the packet to, may be null.
+     */
+    public void broadcast(final NagaBuffer packet, final NIOSocket excluded)
+    {
+        try
+        {
+            final ByteBuffer[] buffers = m_packetWriter.write(new ByteBuffer[] { packet.getBuffer().asReadOnlyBuffer() });
+            dispatch(new Broadcast(buffers, excluded, packet));
+        }
+        finally
+        {
+            packet.release();
+        }
+    }
+
+    /**
+     * Runs or queues the events sending a broadcast on each NIOService with members.
+     *
+     * @param broadcast the broadcast to send.
+     */
+    private void dispatch(final Broadcast broadcast)
+    {
+        for (final Map.Entry<NIOService, Set<NIOSocket>> entry : m_members.entrySet())
+        {
+            if (entry.getValue().isEmpty()) continue;
+            final NIOService service = entry.getKey();
+            // Each event holds a reference until it has reached all members on its service.
+            if (broadcast.m_owner != null) broadcast.m_owner.retain();
+            final Runnable event = broadcast.new BroadcastEvent(entry.getValue());
+            if (service.inEventLoop())
+            {
+                event.run();
+            }
+            else
+            {
+                service.queue(event);
+            }
+        }
+    }
+
+    /**
+     * Returns the NIOService of a socket.
+     *
+     * @param socket the socket.
+     * @return the service the socket belongs to.
+     * @throws IllegalArgumentException if the socket was not created by Naga.
+     */
+    private static NIOService serviceOf(final NIOSocket socket)
+    {
+        if (socket instanceof ChannelResponder) return ((ChannelResponder) socket).getNIOService();
+        if (socket instanceof SSLSocketChannelResponder) return ((SSLSocketChannelResponder) socket).getNIOService();
+        throw new IllegalArgumentException("Not a Naga socket: " + socket);
+    }
+
+    /**
+     * A converted packet being sent to the members.
+     */
+    private class Broadcast
+    {
+        private final ByteBuffer[] m_buffers;
+        private final long m_size;
+        private final NIOSocket m_excluded;
+        private final NagaBuffer m_owner;
+
+        private Broadcast(final ByteBuffer[] buffers, final NIOSocket excluded, final NagaBuffer owner)
+        {
+            m_buffers = buffers == null ? new ByteBuffer[0] : buffers;
+            m_size = NIOUtils.remaining(m_buffers);
+            m_excluded = excluded;
+            m_owner = owner;
+        }
+
+        /**
+         * Converts the broadcast to a byte array for members that cannot take the buffers.
+         *
+         * @return the converted packet as an array.
+         */
+        private byte[] toBytes()
+        {
+            final byte[] bytes = new byte[(int) m_size];
+            final ByteBuffer target = ByteBuffer.wrap(bytes);
+            for (final ByteBuffer buffer : m_buffers)
+            {
+                target.put(buffer.duplicate());
+            }
+            return bytes;
+        }
+
+        /**
+         * The event sending the broadcast to the members on a single NIOService.
+         */
+        private class BroadcastEvent implements Runnable
+        {
+            private final Set<NIOSocket> m_serviceMembers;
+            private byte[] m_bytes;
+
+            private BroadcastEvent(final Set<NIOSocket> serviceMembers)
+            {
+                m_serviceMembers = serviceMembers;
+                m_bytes = null;
+            }
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    for (final NIOSocket member : m_serviceMembers)
+                    {
+                        if (!member.isOpen())
+                        {
+                            m_serviceMembers.remove(member);
+                            continue;
+                        }
+                        if (member != m_excluded) send(member);
+                    }
+                }
+                finally
+                {
+                    if (m_owner != null) m_owner.release();
+                }
+            }
+
+            /**
+             * Sends the broadcast to a single member, called on the member's NIOService thread.
+             *
+             * @param member the member to send to.
+             */
+            private void send(final NIOSocket member)
+            {
+                final long maxQueueSize = m_maxQueueSize;
+                if (maxQueueSize > 0 && member.getWriteQueueSize() + m_size > maxQueueSize)
+                {
+                    switch (m_slowMemberPolicy)
+                    {
+                        case SKIP:
+                            return;
+                        case DISCONNECT:
+                            m_serviceMembers.remove(member);
+                            member.close();
+                            return;
+                        case DROP_OLDEST:
+                            if (!(member instanceof SocketChannelResponder)
+                                || !((SocketChannelResponder) member).dropOldestPackets(maxQueueSize - m_size)) return;
+                            break;
+                    }
+                }
+                if (member instanceof SocketChannelResponder)
+                {
+                    final ByteBuffer[] buffers = new ByteBuffer[m_buffers.length];
+                    for (int i = 0; i < buffers.length; i++)
+                    {
+                        // Each member needs its own position, but shares the content.
+                        buffers[i] = m_buffers[i].asReadOnlyBuffer();
+                    }
+                    if (m_owner != null) m_owner.retain();
+                    ((SocketChannelResponder) member).writeEncoded(buffers, m_size, m_owner);
+                }
+                else
+                {
+                    if (m_bytes == null) m_bytes = toBytes();
+                    member.write(m_bytes);
+                }
+            }
+        }
+    }
+}
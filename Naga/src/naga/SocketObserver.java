@@ -88,4 +88,34 @@ public interface SocketObserver
      * @param tag the (optional) tag associated with the packet.
      */
     void packetSent(NIOSocket socket, Object tag);
+
+    /**
+     * Called by the NIOService on the NIO thread when a socket has been idle
+     * for one of the timeouts set using {@link naga.NIOSocket#setIdleTimeouts(long, long, long)}.
+     * <p>
+     * <b>Note: Since this is a direct callback on the NIO thread, this method will suspend IO on
+     * all other connections until the method returns. It is therefore strongly recommended
+     * that the implementation of this method returns as quickly as possible to avoid blocking IO.</b>
+     *
+     * @param socket the idle socket.
+     * @param state the kind of idleness detected.
+     */
+    void socketIdle(NIOSocket socket, IdleState state);
+
+    /**
+     * Called by the NIOService on the NIO thread when the socket's write queue crosses
+     * one of the watermarks set using {@link naga.NIOSocket#setWriteWatermarks(long, long)}.
+     * <p>
+     * When the queue grows above the high watermark, the socket becomes unwritable, and
+     * producers should stop writing until the queue has drained to the low watermark and
+     * the socket becomes writable again.
+     * <p>
+     * <b>Note: Since this is a direct callback on the NIO thread, this method will suspend IO on
+     * all other connections until the method returns. It is therefore strongly recommended
+     * that the implementation of this method returns as quickly as possible to avoid blocking IO.</b>
+     *
+     * @param socket the socket whose writability changed.
+     * @param writable true if the socket became writable, false if it became unwritable.
+     */
+    void writabilityChanged(NIOSocket socket, boolean writable);
 }
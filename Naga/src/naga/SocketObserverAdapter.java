@@ -49,4 +49,14 @@ public class SocketObserverAdapter implements SocketObserver
     public void packetSent(final NIOSocket socket, final Object tag)
     {
     }
+
+    @Override
+    public void socketIdle(final NIOSocket socket, final IdleState state)
+    {
+    }
+
+    @Override
+    public void writabilityChanged(final NIOSocket socket, final boolean writable)
+    {
+    }
 }
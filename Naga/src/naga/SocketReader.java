@@ -25,6 +25,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 
 /**
@@ -36,18 +37,32 @@ class SocketReader
 {
     private final NIOService m_nioService;
     private ByteBuffer m_previousBytes;
+    private ByteBuffer m_cumulation;
+    private ByteBuffer m_currentBuffer;
+    private ByteBuffer m_packet;
+    private FileChannel m_file;
+    private long m_filePosition;
+    private long m_fileEnd;
     private long m_bytesRead;
 
     SocketReader(final NIOService nioService)
     {
         m_nioService = nioService;
+        m_cumulation = null;
+        m_currentBuffer = null;
+        m_packet = null;
+        m_file = null;
         m_bytesRead = 0;
     }
 
     public int read(final SocketChannel channel) throws IOException
     {
+        // Continue filling the cumulation buffer if we hold a partial packet in one.
+        if (m_cumulation != null) return readCumulation(channel);
+
         // Retrieve the shared buffer.
-        final ByteBuffer buffer = getBuffer();
+        final ByteBuffer buffer = m_nioService.getSharedBuffer();
+        m_currentBuffer = buffer;
 
         // Clear the buffer.
         buffer.clear();
@@ -64,9 +79,6 @@ class SocketReader
         // We might encounter the end of the socket stream here.
         if (read < 0) throw new EOFException("Buffer read -1");
 
-        // If we have no space left in the buffer, we need to throw an exception.
-        if (!buffer.hasRemaining()) throw new BufferOverflowException();
-
         // Increase the bytes read.
         m_bytesRead += read;
 
@@ -99,19 +111,278 @@ class SocketReader
         return read;
     }
 
+    /**
+     * Reads directly into the cumulation buffer, after the bytes of the partial packet it holds.
+     * <p>
+     * The buffer doubles in size when it is full, up to the size of the shared buffer.
+     *
+     * @param channel the channel to read from.
+     * @return the number of bytes read.
+     * @throws IOException if the read fails.
+     */
+    private int readCumulation(final SocketChannel channel) throws IOException
+    {
+        // Move the unconsumed bytes to the start, this is usually a no-op
+        // since the buffer is released when a read completes the packet.
+        m_cumulation.compact();
+
+        // Make room if necessary, this throws BufferOverflowException
+        // if the packet will not fit in the shared buffer either.
+        if (!m_cumulation.hasRemaining())
+        {
+            m_cumulation = m_nioService.getReadBufferPool().grow(m_cumulation, m_nioService.getBufferSize());
+        }
+        m_currentBuffer = m_cumulation;
+
+        final int read = channel.read(m_cumulation);
+        m_cumulation.flip();
+
+        // We might encounter the end of the socket stream here.
+        if (read < 0) throw new EOFException("Buffer read -1");
+
+        m_bytesRead += read;
+        return read;
+    }
+
+    /**
+     * Starts reading a packet directly into a byte array.
+     * <p>
+     * The bytes of the packet already available in the current buffer are consumed and
+     * copied to the array, the rest is read by {@link #readPacket(java.nio.channels.SocketChannel)}
+     * without passing through the shared buffer.
+     *
+     * @param length the length of the packet.
+     */
+    public void beginPacket(final int length)
+    {
+        m_packet = ByteBuffer.allocate(length);
+        final ByteBuffer buffer = getBuffer();
+        final int bytes = Math.min(buffer.remaining(), length);
+        final int limit = buffer.limit();
+        buffer.limit(buffer.position() + bytes);
+        m_packet.put(buffer);
+        buffer.limit(limit);
+    }
+
+    /**
+     * Returns true if a packet is being read directly into a byte array.
+     *
+     * @return true if we are in the middle of reading a packet started with beginPacket.
+     */
+    public boolean isReadingPacket()
+    {
+        return m_packet != null;
+    }
+
+    /**
+     * Reads more of the packet started with beginPacket.
+     *
+     * @param channel the channel to read from.
+     * @return the number of bytes read.
+     * @throws IOException if the read fails.
+     */
+    public int readPacket(final SocketChannel channel) throws IOException
+    {
+        final int read = channel.read(m_packet);
+
+        // We might encounter the end of the socket stream here.
+        if (read < 0) throw new EOFException("Buffer read -1");
+
+        m_bytesRead += read;
+        return read;
+    }
+
+    /**
+     * Returns the packet started with beginPacket if it is complete.
+     *
+     * @return the complete packet, or null if more bytes are needed.
+     */
+    public byte[] takePacket()
+    {
+        if (m_packet.hasRemaining()) return null;
+        final byte[] packet = m_packet.array();
+        m_packet = null;
+        return packet;
+    }
+
+    /**
+     * Starts writing the following bytes of the stream to a file.
+     * <p>
+     * The unread bytes of the current buffer must have been moved aside using {@link #compact()}
+     * before {@link #readFile(java.nio.channels.SocketChannel)} is called.
+     *
+     * @param file the file to write to.
+     * @param position the position in the file to write the first byte to.
+     * @param count the number of bytes to write to the file.
+     */
+    public void beginFile(final FileChannel file, final long position, final long count)
+    {
+        m_file = file;
+        m_filePosition = position;
+        m_fileEnd = position + count;
+    }
+
+    /**
+     * Returns true if bytes are being written to a file.
+     *
+     * @return true if we are in the middle of receiving a file started with beginFile.
+     */
+    public boolean isReadingFile()
+    {
+        return m_file != null;
+    }
+
+    /**
+     * Writes more bytes to the file started with beginFile.
+     * <p>
+     * Unread bytes kept from earlier reads are written first, after that a single read
+     * from the channel into the shared buffer is made, so memory use stays bounded
+     * no matter the size of the file.
+     *
+     * @param channel the channel to read from.
+     * @return the number of bytes read from the channel.
+     * @throws IOException if the read or the write to the file fails.
+     */
+    public int readFile(final SocketChannel channel) throws IOException
+    {
+        if (m_previousBytes != null)
+        {
+            writeToFile(m_previousBytes);
+            if (!m_previousBytes.hasRemaining()) m_previousBytes = null;
+        }
+        if (m_cumulation != null)
+        {
+            writeToFile(m_cumulation);
+            if (!m_cumulation.hasRemaining())
+            {
+                m_nioService.getReadBufferPool().release(m_cumulation);
+                m_cumulation = null;
+                m_currentBuffer = null;
+            }
+        }
+        int read = 0;
+        if (m_filePosition < m_fileEnd)
+        {
+            final ByteBuffer buffer = m_nioService.getSharedBuffer();
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), m_fileEnd - m_filePosition));
+            read = channel.read(buffer);
+
+            // We might encounter the end of the socket stream here.
+            if (read < 0) throw new EOFException("Buffer read -1");
+
+            m_bytesRead += read;
+            buffer.flip();
+            writeToFile(buffer);
+        }
+        if (m_filePosition == m_fileEnd) m_file = null;
+        return read;
+    }
+
+    /**
+     * Writes bytes from the buffer to the file, up to the number of bytes remaining for the file.
+     *
+     * @param buffer the buffer to write from.
+     * @throws IOException if writing to the file fails.
+     */
+    private void writeToFile(final ByteBuffer buffer) throws IOException
+    {
+        final int limit = buffer.limit();
+        buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), m_fileEnd - m_filePosition));
+        while (buffer.hasRemaining())
+        {
+            m_filePosition += m_file.write(buffer, m_filePosition);
+        }
+        buffer.limit(limit);
+    }
+
+    /**
+     * Makes the unread bytes kept aside by {@link #compact()} available for reading without
+     * reading from the channel.
+     * <p>
+     * Used when a file is complete, since the bytes after it may hold whole packets.
+     *
+     * @return the buffer holding the bytes, or null if there are no unread bytes.
+     */
+    public ByteBuffer restoreUnreadBytes()
+    {
+        if (m_cumulation != null)
+        {
+            m_currentBuffer = m_cumulation;
+            return m_cumulation;
+        }
+        if (m_previousBytes == null) return null;
+        final ByteBuffer buffer = m_nioService.getSharedBuffer();
+        buffer.clear();
+        buffer.put(m_previousBytes);
+        buffer.flip();
+        m_previousBytes = null;
+        m_currentBuffer = buffer;
+        return buffer;
+    }
+
     /**
      * Moves any unread bytes to a buffer to be available later.
+     * <p>
+     * If the NIOService pools read buffers, the bytes are kept in a cumulation buffer
+     * leased from the pool, which is returned as soon as it has been drained.
+     * Otherwise they are copied to a new buffer.
+     *
+     * @throws BufferOverflowException if the buffer is full of unread bytes.
      */
     public void compact()
     {
-        // Retrieve our shared buffer.
+        // Retrieve the buffer we just read from.
         final ByteBuffer buffer = getBuffer();
 
+        if (buffer == m_cumulation)
+        {
+            // Keep the partial packet where it is, or give the buffer back if it is drained.
+            if (!buffer.hasRemaining())
+            {
+                m_nioService.getReadBufferPool().release(buffer);
+                m_cumulation = null;
+                m_currentBuffer = null;
+            }
+            return;
+        }
+
+        // If the buffer is full and nothing could be read from it, the packet will never fit.
+        if (buffer.remaining() == buffer.capacity()) throw new BufferOverflowException();
+
         // If there is data remaining, copy that data.
         if (buffer.remaining() > 0)
         {
-            m_previousBytes = NIOUtils.copy(buffer);
+            if (m_nioService.isReadBufferPooling())
+            {
+                m_cumulation = m_nioService.getReadBufferPool().lease(buffer.remaining());
+                m_cumulation.put(buffer);
+                m_cumulation.flip();
+                m_currentBuffer = m_cumulation;
+            }
+            else
+            {
+                m_previousBytes = NIOUtils.copy(buffer);
+            }
+        }
+    }
+
+    /**
+     * Releases any buffer leased by this reader.
+     * <p>
+     * Called on the NIOService thread when the socket closes.
+     */
+    public void close()
+    {
+        if (m_cumulation != null)
+        {
+            m_nioService.getReadBufferPool().release(m_cumulation);
+            m_cumulation = null;
         }
+        m_previousBytes = null;
+        m_currentBuffer = null;
+        m_packet = null;
+        m_file = null;
     }
 
     /**
@@ -125,12 +396,15 @@ class SocketReader
     }
 
     /**
-     * Returns the shared buffer (associated with the NIOService) for read/write.
+     * Returns the buffer holding the data of the last read, ready for reading by the PacketReader.
+     * <p>
+     * This is either the shared buffer (associated with the NIOService) or the
+     * cumulation buffer of this reader.
      *
-     * @return the shared buffer-
+     * @return the current read buffer.
      */
     public ByteBuffer getBuffer()
     {
-        return m_nioService.getSharedBuffer();
+        return m_currentBuffer == null ? m_nioService.getSharedBuffer() : m_currentBuffer;
     }
 }
@@ -23,28 +23,73 @@ package naga;
 
 import naga.packetwriter.RawPacketWriter;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 /**
  * A helper class to handle writes on a socket.
+ * <p>
+ * The writer collects the buffers of several packets and sends them using
+ * a single gathering write, as long as the total stays within the configured
+ * byte and buffer limits. The tags of the packets are kept so that each packet
+ * can be reported as sent once its last byte has been written.
+ * <p>
+ * A packet may be owned by a {@link naga.NagaBuffer}, which is released once the packet
+ * is sent or the writer is closed.
+ * <p>
+ * Alternatively the writer may hold a single file transfer, which is sent
+ * using {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
  *
  * @author Christoffer Lerno
  */
 class SocketWriter
 {
+    public final static int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+    public final static int DEFAULT_MAX_BATCH_BUFFERS = 64;
+
     private long m_bytesWritten;
+    private long m_bytesPending;
     private ByteBuffer[] m_writeBuffers;
-    private PacketWriter m_packetWriter;
-    private Object m_tag;
+    private int m_bufferCount;
     private int m_currentBuffer;
+    private int[] m_packetEnds;
+    private Object[] m_tags;
+    private NagaBuffer[] m_owners;
+    private int m_packetCount;
+    private int m_currentPacket;
+    private volatile PacketWriter m_packetWriter;
+    private final CompositeBuffer m_packet;
+    private boolean m_packetInUse;
+    private volatile int m_maxBatchBytes;
+    private volatile int m_maxBatchBuffers;
+    private FileChannel m_file;
+    private long m_filePosition;
+    private long m_fileEnd;
+    private Object m_fileTag;
+    private final Map<ByteBuffer, NagaBuffer> m_releaseWhenWritten;
 
     SocketWriter()
     {
         m_bytesWritten = 0;
-        m_writeBuffers = null;
+        m_bytesPending = 0;
+        m_writeBuffers = new ByteBuffer[8];
+        m_packetEnds = new int[8];
+        m_tags = new Object[8];
+        m_owners = new NagaBuffer[8];
+        clear();
         m_packetWriter = RawPacketWriter.INSTANCE;
+        m_packet = new CompositeBuffer();
+        m_packetInUse = false;
+        m_maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+        m_maxBatchBuffers = DEFAULT_MAX_BATCH_BUFFERS;
+        m_file = null;
+        m_releaseWhenWritten = new IdentityHashMap<ByteBuffer, NagaBuffer>();
     }
 
     public PacketWriter getPacketWriter()
@@ -57,67 +102,329 @@ class SocketWriter
         m_packetWriter = packetWriter;
     }
 
+    /**
+     * Sets the limits for how much data is collected for a single gathering write.
+     * <p>
+     * A packet is always accepted if the writer is empty, so a single packet may exceed these limits.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param maxBytes the maximum number of bytes to collect, a value less than 1 means that
+     * packets are written one by one.
+     * @param maxBuffers the maximum number of buffers to collect, a value less than 1 means that
+     * packets are written one by one.
+     */
+    public void setBatchLimits(final int maxBytes, final int maxBuffers)
+    {
+        m_maxBatchBytes = maxBytes;
+        m_maxBatchBuffers = maxBuffers;
+    }
+
+    /**
+     * @return true if there are no packets waiting to be written or reported as sent.
+     */
     public boolean isEmpty()
     {
-        return m_writeBuffers == null;
+        return m_packetCount == 0 && m_file == null;
     }
 
-    public void setPacket(final byte[] data, final Object tag)
+    /**
+     * @return true if no more packets should be added before the current packets are written.
+     */
+    public boolean isFull()
     {
-        if (!isEmpty()) throw new IllegalStateException("This method should only called when m_writeBuffers == null");
+        return m_file != null
+               || m_packetCount > 0
+                  && (m_bytesPending >= m_maxBatchBytes || m_bufferCount >= m_maxBatchBuffers);
+    }
 
-        // Set the current packet
-        m_writeBuffers = m_packetWriter.write(new ByteBuffer[] { ByteBuffer.wrap(data) });
-        m_currentBuffer = 0;
-        m_tag = tag;
+    /**
+     * Adds a packet to be written, converting it using the current packet writer.
+     *
+     * @param data the packet data.
+     * @param tag the tag associated with the packet, may be null.
+     */
+    public void addPacket(final byte[] data, final Object tag)
+    {
+        addPacket(new ByteBuffer[] { ByteBuffer.wrap(data) }, tag);
     }
 
-    public boolean write(final SocketChannel channel) throws IOException
+    /**
+     * Adds a packet held in buffers to be written, converting it using the current packet writer.
+     * <p>
+     * The buffers are written as they are, so they must not be modified until the packet is sent.
+     *
+     * @param data the buffers holding the packet data.
+     * @param tag the tag associated with the packet, may be null.
+     */
+    public void addPacket(final ByteBuffer[] data, final Object tag)
+    {
+        addPacket(data, tag, null);
+    }
+
+    /**
+     * Adds a packet held in buffers to be written, converting it using the current packet writer.
+     *
+     * @param data the buffers holding the packet data.
+     * @param tag the tag associated with the packet, may be null.
+     * @param owner the buffer to release once the packet is sent, may be null.
+     */
+    public void addPacket(final ByteBuffer[] data, final Object tag, final NagaBuffer owner)
     {
-        // If the packet is empty, just clear data and return true
-        if (m_writeBuffers == null
-            || (m_currentBuffer == m_writeBuffers.length - 1
-                && !m_writeBuffers[m_currentBuffer].hasRemaining()))
+        if (!(m_packetWriter instanceof CompositePacketWriter))
+        {
+            addEncodedPacket(m_packetWriter.write(data), tag, owner);
+            return;
+        }
+        // Reuse the same composite buffer for every packet, unless the packet writer
+        // adds another packet while converting this one.
+        final boolean reuse = !m_packetInUse;
+        final CompositeBuffer packet = reuse ? m_packet : new CompositeBuffer();
+        m_packetInUse = true;
+        try
+        {
+            packet.append(data);
+            ((CompositePacketWriter) m_packetWriter).write(packet);
+            addBuffers(packet.array(), packet.arrayOffset(), packet.size());
+        }
+        finally
         {
-            m_writeBuffers = null;
-            return true;
+            if (reuse)
+            {
+                m_packet.clear();
+                m_packetInUse = false;
+            }
         }
+        addPacketEnd(tag, owner);
+    }
+
+    /**
+     * Adds a packet that has already been converted by a packet writer.
+     *
+     * @param buffers the buffers to write, may be null for an empty packet.
+     * @param tag the tag associated with the packet, may be null.
+     */
+    public void addEncodedPacket(final ByteBuffer[] buffers, final Object tag)
+    {
+        addEncodedPacket(buffers, tag, null);
+    }
+
+    /**
+     * Adds a packet that has already been converted by a packet writer.
+     *
+     * @param buffers the buffers to write, may be null for an empty packet.
+     * @param tag the tag associated with the packet, may be null.
+     * @param owner the buffer to release once the packet is sent, may be null.
+     */
+    public void addEncodedPacket(final ByteBuffer[] buffers, final Object tag, final NagaBuffer owner)
+    {
+        if (buffers != null) addBuffers(buffers, 0, buffers.length);
+        addPacketEnd(tag, owner);
+    }
+
+    private void addBuffers(final ByteBuffer[] buffers, final int offset, final int length)
+    {
+        ensureBufferCapacity(m_bufferCount + length);
+        for (int i = offset; i < offset + length; i++)
+        {
+            final ByteBuffer buffer = buffers[i];
+            if (buffer == null) continue;
+            m_writeBuffers[m_bufferCount++] = buffer;
+            m_bytesPending += buffer.remaining();
+        }
+    }
+
+    /**
+     * Ends the current packet, so that it is reported as sent once the buffers added so far are written.
+     *
+     * @param tag the tag associated with the packet, may be null.
+     * @param owner the buffer to release once the packet is sent, may be null.
+     */
+    private void addPacketEnd(final Object tag, final NagaBuffer owner)
+    {
+        if (m_packetCount == m_tags.length)
+        {
+            m_tags = Arrays.copyOf(m_tags, m_packetCount * 2);
+            m_packetEnds = Arrays.copyOf(m_packetEnds, m_packetCount * 2);
+            m_owners = Arrays.copyOf(m_owners, m_packetCount * 2);
+        }
+        m_packetEnds[m_packetCount] = m_bufferCount;
+        m_tags[m_packetCount] = tag;
+        m_owners[m_packetCount] = owner;
+        m_packetCount++;
+    }
+
+    /**
+     * Marks a buffer produced by the packet writer to be released as soon as it has been completely written.
+     *
+     * @param buffer the buffer to release, the packet must contain the buffer returned by its getBuffer().
+     */
+    public void releaseWhenWritten(final NagaBuffer buffer)
+    {
+        m_releaseWhenWritten.put(buffer.getBuffer(), buffer);
+    }
+
+    /**
+     * Releases the buffers of all packets that have not been sent.
+     * <p>
+     * Called on the NIOService thread when the socket closes.
+     */
+    public void close()
+    {
+        for (final NagaBuffer buffer : m_releaseWhenWritten.values())
+        {
+            buffer.release();
+        }
+        m_releaseWhenWritten.clear();
+        for (int i = m_currentPacket; i < m_packetCount; i++)
+        {
+            if (m_owners[i] != null) m_owners[i].release();
+            m_owners[i] = null;
+            m_tags[i] = null;
+        }
+        Arrays.fill(m_writeBuffers, 0, m_bufferCount, null);
+        clear();
+    }
+
+    /**
+     * Adds a part of a file to be sent without passing through the packet writer.
+     * <p>
+     * The writer must be empty, and will not accept any other packets until the transfer is sent.
+     *
+     * @param file the file to send from.
+     * @param position the position in the file of the first byte to send.
+     * @param count the number of bytes to send.
+     * @param tag the tag associated with the transfer, may be null.
+     */
+    public void addFileTransfer(final FileChannel file, final long position, final long count, final Object tag)
+    {
+        if (!isEmpty()) throw new IllegalStateException("File transfer added to non-empty writer");
+        m_file = file;
+        m_filePosition = position;
+        m_fileEnd = position + count;
+        m_fileTag = tag;
+    }
+
+    private void ensureBufferCapacity(final int size)
+    {
+        if (size <= m_writeBuffers.length) return;
+        m_writeBuffers = Arrays.copyOf(m_writeBuffers, Math.max(size, m_writeBuffers.length * 2));
+    }
+
+    /**
+     * Writes as much as possible of the collected packets to the channel.
+     *
+     * @param channel the channel to write to.
+     * @return false if nothing could be written because the channel buffer is full, true otherwise.
+     * @throws IOException if writing to the channel failed.
+     */
+    public boolean write(final SocketChannel channel) throws IOException
+    {
+        if (m_file != null) return transferFile(channel);
+
+        skipWrittenBuffers();
+
+        // If all buffers are empty we are done.
+        if (m_currentBuffer == m_bufferCount) return true;
 
         // Write as much as possible to the channel.
-        final long written = channel.write(m_writeBuffers, m_currentBuffer, m_writeBuffers.length - m_currentBuffer);
+        final long written = channel.write(m_writeBuffers, m_currentBuffer, m_bufferCount - m_currentBuffer);
 
         // If nothing is written, then the buffer is full and writing should end temporarily.
         if (written == 0) return false;
 
         // Add the number of bytes written.
         m_bytesWritten += written;
+        m_bytesPending -= written;
+
+        skipWrittenBuffers();
+        return true;
+    }
+
+    /**
+     * Sends as much as possible of the current file transfer to the channel.
+     *
+     * @param channel the channel to write to.
+     * @return false if nothing could be written because the channel buffer is full, true otherwise.
+     * @throws IOException if reading the file or writing to the channel failed.
+     */
+    private boolean transferFile(final SocketChannel channel) throws IOException
+    {
+        if (m_filePosition == m_fileEnd) return true;
+        final long written = m_file.transferTo(m_filePosition, m_fileEnd - m_filePosition, channel);
+        if (written == 0)
+        {
+            // Nothing is transferred past the end of the file, so make sure we are not stuck there.
+            if (m_filePosition >= m_file.size()) throw new EOFException("File ended before transfer was complete");
+            return false;
+        }
+        m_filePosition += written;
+        m_bytesWritten += written;
+        return true;
+    }
 
-        // Delete written buffers, update currentBuffer
-        for (int i = m_currentBuffer; i < m_writeBuffers.length; i++)
+    /**
+     * Release and skip all buffers that are completely written.
+     */
+    private void skipWrittenBuffers()
+    {
+        while (m_currentBuffer < m_bufferCount && !m_writeBuffers[m_currentBuffer].hasRemaining())
         {
-            if (m_writeBuffers[i].hasRemaining())
+            if (!m_releaseWhenWritten.isEmpty())
             {
-                m_currentBuffer = i;
-                break;
+                final NagaBuffer buffer = m_releaseWhenWritten.remove(m_writeBuffers[m_currentBuffer]);
+                if (buffer != null) buffer.release();
             }
-            m_writeBuffers[i] = null;
+            m_writeBuffers[m_currentBuffer++] = null;
         }
+    }
 
-        // If the current buffer is empty, clear all.
-        if (m_writeBuffers[m_currentBuffer] == null)
+    /**
+     * Determine if the oldest packet in the writer has been completely written.
+     *
+     * @return true if the oldest packet is sent and should be removed using {@link #removeSentPacket()}.
+     */
+    public boolean hasSentPacket()
+    {
+        if (m_file != null) return m_filePosition == m_fileEnd;
+        return m_currentPacket < m_packetCount && m_packetEnds[m_currentPacket] <= m_currentBuffer;
+    }
+
+    /**
+     * Removes the oldest packet, which must have been completely written.
+     *
+     * @return the tag of the removed packet.
+     */
+    public Object removeSentPacket()
+    {
+        if (m_file != null)
         {
-            m_writeBuffers = null;
+            final Object tag = m_fileTag;
+            m_file = null;
+            m_fileTag = null;
+            return tag;
         }
-        return true;
+        final Object tag = m_tags[m_currentPacket];
+        final NagaBuffer owner = m_owners[m_currentPacket];
+        m_tags[m_currentPacket] = null;
+        m_owners[m_currentPacket] = null;
+        m_currentPacket++;
+        if (owner != null) owner.release();
+        if (m_currentPacket == m_packetCount) clear();
+        return tag;
     }
 
-    public long getBytesWritten()
+    private void clear()
     {
-        return m_bytesWritten;
+        m_bufferCount = 0;
+        m_currentBuffer = 0;
+        m_packetCount = 0;
+        m_currentPacket = 0;
+        m_bytesPending = 0;
     }
 
-    public Object getTag()
+    public long getBytesWritten()
     {
-        return m_tag;
+        return m_bytesWritten;
     }
 }
@@ -0,0 +1,284 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import naga.eventmachine.DelayedEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel used by the NIOService to run delayed events.
+ * <p>
+ * Time is divided into ticks, and each event is placed in the bucket of the
+ * tick it expires on, together with the number of full turns of the wheel
+ * left before that happens. Inserting and cancelling an event are O(1)
+ * operations, and expiring events only visits the buckets of elapsed ticks.
+ * Events may run up to one tick late, but never early.
+ * <p>
+ * Apart from {@link naga.TimerWheel.Timeout#cancel()}, all methods must be called on the
+ * NIOService thread.
+ *
+ * @author Christoffer Lerno
+ */
+class TimerWheel
+{
+    public final static long DEFAULT_TICK_DURATION = 10;
+    public final static int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    private final NIOService m_service;
+    private final long m_tickDuration;
+    private final Timeout[] m_buckets;
+    private final int m_mask;
+    private final List<Timeout> m_expired;
+    private long m_currentTick;
+    private int m_size;
+
+    /**
+     * Creates a new timer wheel.
+     *
+     * @param service the service to report exceptions to.
+     * @param tickDuration the duration of each tick in ms.
+     * @param ticksPerWheel the number of buckets in the wheel, will be rounded up to a power of two.
+     */
+    TimerWheel(final NIOService service, final long tickDuration, final int ticksPerWheel)
+    {
+        if (tickDuration < 1) throw new IllegalArgumentException("Tick duration must be at least 1 ms, was: " + tickDuration);
+        if (ticksPerWheel < 1) throw new IllegalArgumentException("Ticks per wheel must be at least 1, was: " + ticksPerWheel);
+        int buckets = 1;
+        while (buckets < ticksPerWheel) buckets <<= 1;
+        m_service = service;
+        m_tickDuration = tickDuration;
+        m_buckets = new Timeout[buckets];
+        for (int i = 0; i < buckets; i++)
+        {
+            // Each bucket is a circular, doubly linked list with a sentinel.
+            m_buckets[i] = new Timeout(null, 0);
+        }
+        m_mask = buckets - 1;
+        m_expired = new ArrayList<Timeout>();
+        m_currentTick = System.currentTimeMillis() / tickDuration;
+        m_size = 0;
+    }
+
+    /**
+     * Creates a new event for this wheel, without scheduling it.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param call the call to execute.
+     * @param time the time to execute the call, in ms.
+     * @return a new event.
+     */
+    Timeout newTimeout(final Runnable call, final long time)
+    {
+        if (call == null) throw new NullPointerException();
+        return new Timeout(call, time);
+    }
+
+    /**
+     * Inserts an event in the wheel.
+     *
+     * @param timeout the event to insert.
+     */
+    void schedule(final Timeout timeout)
+    {
+        if (timeout.m_cancelled || timeout.m_next != null) return;
+        if (m_size == 0)
+        {
+            // Nothing is pending, so skip ahead instead of walking through the idle ticks.
+            m_currentTick = Math.max(m_currentTick, System.currentTimeMillis() / m_tickDuration);
+        }
+        // Round up, so that the event never runs early.
+        final long tick = Math.max(m_currentTick, (timeout.m_time + m_tickDuration - 1) / m_tickDuration);
+        timeout.m_rounds = (tick - m_currentTick) / m_buckets.length;
+        final Timeout bucket = m_buckets[(int) (tick & m_mask)];
+        timeout.m_previous = bucket.m_previous;
+        timeout.m_next = bucket;
+        bucket.m_previous.m_next = timeout;
+        bucket.m_previous = timeout;
+        m_size++;
+    }
+
+    /**
+     * Removes an event from the wheel, if it is scheduled.
+     *
+     * @param timeout the event to remove.
+     */
+    void remove(final Timeout timeout)
+    {
+        if (timeout.m_next == null) return;
+        timeout.m_previous.m_next = timeout.m_next;
+        timeout.m_next.m_previous = timeout.m_previous;
+        timeout.m_next = null;
+        timeout.m_previous = null;
+        m_size--;
+    }
+
+    /**
+     * Returns the time until the first non-empty bucket is due.
+     * <p>
+     * The events in that bucket might be scheduled for a later turn of the wheel,
+     * so the result is a lower bound on the time to the next event, which is what
+     * the NIOService needs to bound its select.
+     *
+     * @param now the current time in ms.
+     * @return the number of ms until the next tick with events, 0 if events are due,
+     * or -1 if there are no events scheduled.
+     */
+    long timeToNextTick(final long now)
+    {
+        if (m_size == 0) return -1;
+        for (int i = 0; i < m_buckets.length; i++)
+        {
+            final Timeout bucket = m_buckets[(int) ((m_currentTick + i) & m_mask)];
+            if (bucket.m_next != bucket)
+            {
+                return Math.max(0, (m_currentTick + i) * m_tickDuration - now);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Runs all events that are due.
+     *
+     * @param now the current time in ms.
+     */
+    void expire(final long now)
+    {
+        final long lastTick = now / m_tickDuration;
+        if (m_size == 0)
+        {
+            m_currentTick = Math.max(m_currentTick, lastTick);
+            return;
+        }
+        while (m_currentTick <= lastTick && m_size > 0)
+        {
+            final Timeout bucket = m_buckets[(int) (m_currentTick & m_mask)];
+            // Unlink the due events before running any of them, since a call may cancel
+            // or schedule other events in this bucket.
+            Timeout timeout = bucket.m_next;
+            while (timeout != bucket)
+            {
+                final Timeout next = timeout.m_next;
+                if (timeout.m_cancelled)
+                {
+                    remove(timeout);
+                }
+                else if (timeout.m_rounds == 0)
+                {
+                    remove(timeout);
+                    m_expired.add(timeout);
+                }
+                else
+                {
+                    timeout.m_rounds--;
+                }
+                timeout = next;
+            }
+            // Events scheduled by the calls below are due on the next tick at the earliest.
+            m_currentTick++;
+            try
+            {
+                for (final Timeout expired : m_expired)
+                {
+                    // Skip events cancelled by an earlier call.
+                    if (!expired.m_cancelled) expired.execute();
+                }
+            }
+            finally
+            {
+                m_expired.clear();
+            }
+        }
+        if (m_size == 0) m_currentTick = Math.max(m_currentTick, lastTick);
+    }
+
+    /**
+     * @return the number of events in the wheel, including cancelled events not yet removed.
+     */
+    int size()
+    {
+        return m_size;
+    }
+
+    /**
+     * An event in the wheel.
+     */
+    class Timeout implements DelayedEvent
+    {
+        private final Runnable m_call;
+        private final long m_time;
+        private volatile boolean m_cancelled;
+        private long m_rounds;
+        private Timeout m_next;
+        private Timeout m_previous;
+
+        private Timeout(final Runnable call, final long time)
+        {
+            m_call = call;
+            m_time = time;
+            m_cancelled = false;
+            m_next = call == null ? this : null;
+            m_previous = call == null ? this : null;
+        }
+
+        private void execute()
+        {
+            try
+            {
+                m_call.run();
+            }
+            catch (Throwable t)
+            {
+                m_service.notifyException(t);
+            }
+        }
+
+        @Override
+        public void cancel()
+        {
+            m_cancelled = true;
+            // Unlink right away when possible, otherwise the event is dropped when its tick is reached.
+            if (m_service.inEventLoop()) remove(this);
+        }
+
+        @Override
+        public Runnable getCall()
+        {
+            return m_call;
+        }
+
+        @Override
+        public long getTime()
+        {
+            return m_time;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "DelayedEvent[" + m_call + " @ " + m_time + (m_cancelled ? ", cancelled]" : "]");
+        }
+    }
+}
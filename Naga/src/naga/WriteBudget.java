@@ -0,0 +1,534 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A limit on the total number of bytes waiting in the write queues of many sockets.
+ * <p>
+ * {@link naga.NIOSocket#setMaxQueueSize(int)} bounds each socket on its own, which
+ * does little to bound the memory used by a large number of sockets when their peers stop reading.
+ * A write budget is shared by all sockets of the services it is set on, using
+ * {@link naga.NIOService#setWriteBudget(WriteBudget)} or {@link naga.NIOServiceGroup#setWriteBudget(WriteBudget)},
+ * and handles writes exceeding the budget according to its {@link Policy}.
+ * <p>
+ * The budget also provides gauges for the total number of queued bytes and the action taken,
+ * a budget of Long.MAX_VALUE can be used to only measure the queued bytes.
+ * <p>
+ * Shedding and closing happen asynchronously, in rounds. In each round every service collects
+ * its sockets using the budget, then the sockets to shed or close are chosen once among all of them,
+ * and each service acts on its own sockets. A new round only starts once the previous one
+ * is complete, so that no bytes are shed or sockets closed twice for the same excess.
+ * A service that closes during a round drops out of it. If a service stops selecting, the budget
+ * stops waiting for it when exceeded more than a second after the current step of the round began:
+ * the sockets are chosen among those collected so far, or the round is started over.
+ * <p>
+ * Example use:
+ * <code><pre>
+ * WriteBudget budget = new WriteBudget(512 * 1024 * 1024, WriteBudget.Policy.SHED_LARGEST);
+ * serviceGroup.setWriteBudget(budget);
+ * </pre></code>
+ * <em>All methods of this class are thread-safe.</em>
+ *
+ * @author Christoffer Lerno
+ */
+public class WriteBudget
+{
+    /**
+     * The way a budget handles writes that exceed it.
+     */
+    public enum Policy
+    {
+        /** Reject the write, so that it returns false. */
+        REJECT,
+        /** Accept the write, then discard the oldest packets of the sockets with the largest queues. */
+        SHED_LARGEST,
+        /** Accept the write, then close the sockets that have gone the longest without writing anything. */
+        CLOSE_SLOWEST
+    }
+
+    private final static long ROUND_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    private final static Comparator<Candidate> LARGEST_QUEUE_FIRST = new Comparator<Candidate>()
+    {
+        @Override
+        public int compare(final Candidate candidate1, final Candidate candidate2)
+        {
+            return candidate1.m_queueSize > candidate2.m_queueSize ? -1 : candidate1.m_queueSize == candidate2.m_queueSize ? 0 : 1;
+        }
+    };
+
+    private final static Comparator<Candidate> SLOWEST_FIRST = new Comparator<Candidate>()
+    {
+        @Override
+        public int compare(final Candidate candidate1, final Candidate candidate2)
+        {
+            if (candidate1.m_lastWriteTime != candidate2.m_lastWriteTime)
+            {
+                return candidate1.m_lastWriteTime < candidate2.m_lastWriteTime ? -1 : 1;
+            }
+            return LARGEST_QUEUE_FIRST.compare(candidate1, candidate2);
+        }
+    };
+
+    private final long m_maxBytes;
+    private final Policy m_policy;
+    private final AtomicLong m_queuedBytes;
+    private final AtomicLong m_rejectedWrites;
+    private final AtomicLong m_shedBytes;
+    private final AtomicLong m_closedSockets;
+    private final Set<NIOService> m_services;
+    private final AtomicReference<Round> m_round;
+
+    /**
+     * Creates a new write budget.
+     *
+     * @param maxBytes the maximum number of bytes in the write queues of all sockets using the budget.
+     * @param policy the policy for writes exceeding the budget.
+     * @throws IllegalArgumentException if the max bytes is less than 1.
+     */
+    public WriteBudget(final long maxBytes, final Policy policy)
+    {
+        if (maxBytes < 1) throw new IllegalArgumentException("Write budget must be positive, was " + maxBytes);
+        if (policy == null) throw new NullPointerException();
+        m_maxBytes = maxBytes;
+        m_policy = policy;
+        m_queuedBytes = new AtomicLong(0);
+        m_rejectedWrites = new AtomicLong(0);
+        m_shedBytes = new AtomicLong(0);
+        m_closedSockets = new AtomicLong(0);
+        m_services = Collections.newSetFromMap(new ConcurrentHashMap<NIOService, Boolean>());
+        m_round = new AtomicReference<Round>(null);
+    }
+
+    public long getMaxBytes()
+    {
+        return m_maxBytes;
+    }
+
+    public Policy getPolicy()
+    {
+        return m_policy;
+    }
+
+    /**
+     * @return the number of bytes currently in the write queues of all sockets using the budget.
+     */
+    public long getQueuedBytes()
+    {
+        return m_queuedBytes.get();
+    }
+
+    /**
+     * @return the number of writes rejected by the budget.
+     */
+    public long getRejectedWrites()
+    {
+        return m_rejectedWrites.get();
+    }
+
+    /**
+     * @return the number of bytes discarded from write queues by the budget.
+     */
+    public long getShedBytes()
+    {
+        return m_shedBytes.get();
+    }
+
+    /**
+     * @return the number of sockets closed by the budget.
+     */
+    public long getClosedSockets()
+    {
+        return m_closedSockets.get();
+    }
+
+    /**
+     * Internal method called when the budget is set on a service.
+     * <p>
+     * The service is kept even if it later changes budget, since its open sockets may still use this one.
+     *
+     * @param service the service.
+     */
+    void addService(final NIOService service)
+    {
+        m_services.add(service);
+    }
+
+    /**
+     * Internal method called when a service using the budget closes.
+     * <p>
+     * The service no longer takes part in enforcing the budget, and the current round
+     * no longer waits for it.
+     *
+     * @param service the service.
+     */
+    void removeService(final NIOService service)
+    {
+        m_services.remove(service);
+        final Round round = m_round.get();
+        if (round == null) return;
+        serviceCollected(round, service);
+        serviceActed(round, service);
+    }
+
+    /**
+     * Internal method to add a packet to the budget, before adding it to the write queue of a socket.
+     * <p>
+     * If the budget is exceeded by the packet and the policy is not REJECT, the policy
+     * is applied on the threads of the services using the budget.
+     *
+     * @param size the size of the packet.
+     * @return false if the packet was rejected.
+     */
+    boolean reserve(final long size)
+    {
+        if (m_queuedBytes.addAndGet(size) <= m_maxBytes) return true;
+        if (m_policy == Policy.REJECT)
+        {
+            m_queuedBytes.addAndGet(-size);
+            m_rejectedWrites.incrementAndGet();
+            return false;
+        }
+        startEnforcement();
+        return true;
+    }
+
+    /**
+     * Starts a round of enforcement, unless one is already running.
+     * <p>
+     * If the current round has waited too long for a service, the sockets are chosen among those
+     * collected so far, or if they were already chosen, a new round replaces it.
+     */
+    private void startEnforcement()
+    {
+        final Round current = m_round.get();
+        if (current != null)
+        {
+            if (System.nanoTime() - current.m_stepStartTime < ROUND_TIMEOUT) return;
+            if (!current.m_planned.get())
+            {
+                plan(current);
+                return;
+            }
+        }
+        final List<NIOService> services = new ArrayList<NIOService>();
+        for (final NIOService service : m_services)
+        {
+            if (service.isOpen()) services.add(service);
+        }
+        if (services.isEmpty())
+        {
+            if (current != null) m_round.compareAndSet(current, null);
+            return;
+        }
+        final Round round = new Round(services);
+        if (!m_round.compareAndSet(current, round)) return;
+        for (final NIOService service : services)
+        {
+            service.queue(new CollectEvent(service, round));
+        }
+    }
+
+    /**
+     * Marks a service as done collecting its sockets, choosing the sockets to shed
+     * or close once no other service is left.
+     *
+     * @param round the round.
+     * @param service the service.
+     */
+    private void serviceCollected(final Round round, final NIOService service)
+    {
+        if (round.m_collecting.done(service)) plan(round);
+    }
+
+    /**
+     * Marks a service as done acting on its chosen sockets, finishing the round
+     * once no other service is left.
+     *
+     * @param round the round.
+     * @param service the service.
+     */
+    private void serviceActed(final Round round, final NIOService service)
+    {
+        final Step acting = round.m_acting;
+        if (acting != null && acting.done(service)) finishEnforcement(round);
+    }
+
+    /**
+     * Ends a round of enforcement, starting another if the round helped but the budget is still exceeded.
+     *
+     * @param round the round.
+     */
+    private void finishEnforcement(final Round round)
+    {
+        if (!m_round.compareAndSet(round, null)) return;
+        if (round.m_relieved.get() && m_queuedBytes.get() > m_maxBytes) startEnforcement();
+    }
+
+    /**
+     * Internal method to remove bytes from the budget, once they leave the write queue of a socket.
+     *
+     * @param size the number of bytes.
+     */
+    void free(final long size)
+    {
+        m_queuedBytes.addAndGet(-size);
+    }
+
+    /**
+     * Internal method to choose the sockets to shed or close to bring the budget back within its limit,
+     * and dispatch the actions to the services owning them.
+     * <p>
+     * This method is called on the NIOService thread of the last service to collect its sockets,
+     * or on a writing thread if a service stopped selecting.
+     *
+     * @param round the round, holding the sockets of all services using this budget.
+     */
+    private void plan(final Round round)
+    {
+        // The round was abandoned or already planned meanwhile.
+        if (m_round.get() != round || !round.m_planned.compareAndSet(false, true)) return;
+        final List<Candidate> candidates = new ArrayList<Candidate>(round.m_candidates);
+        Collections.sort(candidates, m_policy == Policy.SHED_LARGEST ? LARGEST_QUEUE_FIRST : SLOWEST_FIRST);
+        final Map<NIOService, List<Candidate>> actions = new IdentityHashMap<NIOService, List<Candidate>>();
+        long excess = m_queuedBytes.get() - m_maxBytes;
+        for (final Candidate candidate : candidates)
+        {
+            if (excess <= 0) break;
+            if (m_policy == Policy.SHED_LARGEST)
+            {
+                candidate.m_targetQueueSize = Math.max(0, candidate.m_queueSize - excess);
+                excess -= candidate.m_queueSize - candidate.m_targetQueueSize;
+            }
+            else
+            {
+                excess -= candidate.m_queueSize;
+            }
+            List<Candidate> serviceActions = actions.get(candidate.m_service);
+            if (serviceActions == null)
+            {
+                serviceActions = new ArrayList<Candidate>();
+                actions.put(candidate.m_service, serviceActions);
+            }
+            serviceActions.add(candidate);
+        }
+        if (actions.isEmpty())
+        {
+            finishEnforcement(round);
+            return;
+        }
+        round.m_stepStartTime = System.nanoTime();
+        round.m_acting = new Step(actions.keySet());
+        for (final Map.Entry<NIOService, List<Candidate>> entry : actions.entrySet())
+        {
+            entry.getKey().queue(new ActionEvent(entry.getKey(), entry.getValue(), round));
+        }
+    }
+
+    /**
+     * A socket that may be shed or closed, with the values it is ordered by.
+     * <p>
+     * The queue size is read once on the thread of the socket, since other threads may change it while sorting.
+     */
+    private static class Candidate
+    {
+        private final NIOService m_service;
+        private final SocketChannelResponder m_socket;
+        private final long m_queueSize;
+        private final long m_lastWriteTime;
+        private long m_targetQueueSize;
+
+        private Candidate(final NIOService service, final SocketChannelResponder socket)
+        {
+            m_service = service;
+            m_socket = socket;
+            m_queueSize = socket.getWriteQueueSize();
+            m_lastWriteTime = socket.getLastWriteTime();
+            m_targetQueueSize = 0;
+        }
+    }
+
+    /**
+     * The services a step of a round waits for.
+     */
+    private static class Step
+    {
+        private final Set<NIOService> m_services;
+        private final AtomicInteger m_remaining;
+
+        private Step(final Collection<NIOService> services)
+        {
+            m_services = Collections.newSetFromMap(new ConcurrentHashMap<NIOService, Boolean>());
+            m_services.addAll(services);
+            m_remaining = new AtomicInteger(services.size());
+        }
+
+        /**
+         * Marks a service as done, a service not waited for or already done is ignored.
+         *
+         * @param service the service.
+         * @return true if this was the last service the step waited for.
+         */
+        private boolean done(final NIOService service)
+        {
+            return m_services.remove(service) && m_remaining.decrementAndGet() == 0;
+        }
+    }
+
+    /**
+     * The state of a round of enforcement.
+     */
+    private static class Round
+    {
+        private final Step m_collecting;
+        private final Queue<Candidate> m_candidates;
+        private final AtomicBoolean m_planned;
+        private final AtomicBoolean m_relieved;
+        private volatile Step m_acting;
+        private volatile long m_stepStartTime;
+
+        private Round(final List<NIOService> services)
+        {
+            m_collecting = new Step(services);
+            m_candidates = new ConcurrentLinkedQueue<Candidate>();
+            m_planned = new AtomicBoolean(false);
+            m_relieved = new AtomicBoolean(false);
+            m_acting = null;
+            m_stepStartTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * The event collecting the sockets of a service using the budget.
+     */
+    private class CollectEvent implements Runnable
+    {
+        private final NIOService m_service;
+        private final Round m_round;
+
+        private CollectEvent(final NIOService service, final Round round)
+        {
+            m_service = service;
+            m_round = round;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                // A closed service has no sockets left to collect.
+                if (!m_service.isOpen() || WriteBudget.this.m_round.get() != m_round) return;
+                for (final SelectionKey key : m_service.getSelectionKeys())
+                {
+                    final Object attachment = key.attachment();
+                    if (!(attachment instanceof SocketChannelResponder)) continue;
+                    final SocketChannelResponder socket = (SocketChannelResponder) attachment;
+                    if (socket.getWriteBudget() == WriteBudget.this && socket.getWriteQueueSize() > 0)
+                    {
+                        m_round.m_candidates.add(new Candidate(m_service, socket));
+                    }
+                }
+            }
+            finally
+            {
+                serviceCollected(m_round, m_service);
+            }
+        }
+    }
+
+    /**
+     * The event shedding or closing the chosen sockets of a service.
+     */
+    private class ActionEvent implements Runnable
+    {
+        private final NIOService m_service;
+        private final List<Candidate> m_candidates;
+        private final Round m_round;
+
+        private ActionEvent(final NIOService service, final List<Candidate> candidates, final Round round)
+        {
+            m_service = service;
+            m_candidates = candidates;
+            m_round = round;
+        }
+
+        @Override
+        public void run()
+        {
+            // Skip the actions of an abandoned round, a later round has chosen again.
+            if (WriteBudget.this.m_round.get() != m_round) return;
+            for (final Candidate candidate : m_candidates)
+            {
+                final SocketChannelResponder socket = candidate.m_socket;
+                if (!socket.isOpen()) continue;
+                if (m_policy == Policy.SHED_LARGEST)
+                {
+                    final long queueSize = socket.getWriteQueueSize();
+                    socket.dropOldestPackets(candidate.m_targetQueueSize);
+                    final long shed = queueSize - socket.getWriteQueueSize();
+                    if (shed > 0)
+                    {
+                        m_shedBytes.addAndGet(shed);
+                        m_round.m_relieved.set(true);
+                    }
+                }
+                else
+                {
+                    m_closedSockets.incrementAndGet();
+                    m_round.m_relieved.set(true);
+                    socket.close();
+                }
+            }
+            final Runnable completion = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    serviceActed(m_round, m_service);
+                }
+            };
+            // Closed sockets return their bytes to the budget when the close is processed,
+            // so complete the round after that.
+            if (m_policy == Policy.CLOSE_SLOWEST) m_service.queue(completion);
+            else completion.run();
+        }
+    }
+}
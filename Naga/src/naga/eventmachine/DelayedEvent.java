@@ -0,0 +1,53 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.eventmachine;
+
+/**
+ * A cancellable, delayed event scheduled on a NIOService or an EventMachine.
+ *
+ * @author Christoffer Lerno
+ */
+public interface DelayedEvent
+{
+    /**
+     * Cancels this event.
+     * <p>
+     * Cancelling an event that has already executed has no effect.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     */
+    void cancel();
+
+    /**
+     * Returns the actual call to be executed.
+     *
+     * @return the call executed by this event.
+     */
+    Runnable getCall();
+
+    /**
+     * Returns the time when this event is scheduled to execute.
+     *
+     * @return the time in ms, as given by System.currentTimeMillis()
+     */
+    long getTime();
+}
@@ -0,0 +1,215 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.eventmachine;
+
+import naga.ExceptionObserver;
+import naga.NIOService;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.util.Date;
+
+/**
+ * EventMachine is a simple event service for driving asynchronous and delayed tasks
+ * together with a Naga NIOService.
+ * <p>
+ * Creating and starting an event machine:
+ * <code><pre>
+ * EventMachine em = new EventMachine();
+ * // Start our event machine thread:
+ * em.start();
+ * </pre></code>
+ * Delayed execution:
+ * <code><pre>
+ * em.executeLater(new Runnable() {
+ *   public void run()
+ *   {
+ *      // Code here will execute after 1 second on the nio thread.
+ *   }
+ * }, 1000);
+ * </pre></code>
+ * Asynchronous execution, this is useful for synchronizing operations on a single thread:
+ * <code><pre>
+ * em.asyncExecute(new Runnable() {
+ *   public void run()
+ *   {
+ *      // Code here will be executed on the nio thread.
+ *   }
+ * });
+ * </pre></code>
+ * Delayed events are kept in the timer wheel of the underlying NIOService,
+ * so they share the thread and the select loop of the sockets.
+ *
+ * @author Christoffer Lerno
+ */
+public class EventMachine
+{
+    private final NIOService m_service;
+    private volatile Thread m_runThread;
+
+    /**
+     * Creates a new EventMachine with an embedded NIOService.
+     *
+     * @throws IOException if we fail to set up the internal NIOService.
+     */
+    public EventMachine() throws IOException
+    {
+        m_service = new NIOService();
+        m_runThread = null;
+    }
+
+    /**
+     * Execute a runnable on the Event/NIO thread.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param runnable the runnable to execute on the server thread as soon as possible,
+     */
+    public void asyncExecute(final Runnable runnable)
+    {
+        m_service.queue(runnable);
+    }
+
+    /**
+     * Execute a runnable on the Event/NIO thread after a delay.
+     * <p>
+     * This is the primary way to execute delayed events, typically time-outs and similar
+     * behaviour.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param runnable the runnable to execute after the given delay.
+     * @param msDelay the delay until executing this runnable.
+     * @return the delayed event created to execute later. This can be used
+     * to cancel the event.
+     */
+    public DelayedEvent executeLater(final Runnable runnable, final long msDelay)
+    {
+        return m_service.executeLater(runnable, msDelay);
+    }
+
+    /**
+     * Execute a runnable on the Event/NIO thread after at a certain time.
+     * <p>
+     * This is the primary way to execute scheduled events.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param runnable the runnable to execute at the given time.
+     * @param date the time date when this runnable should execute.
+     * @return the delayed event created to execute later. This can be used
+     * to cancel the event.
+     */
+    public DelayedEvent executeAt(final Runnable runnable, final Date date)
+    {
+        return m_service.executeAt(runnable, date.getTime());
+    }
+
+    /**
+     * Sets the ExceptionObserver for this service.
+     * <p>
+     * The observer will receive all exceptions thrown by the underlying NIOService
+     * and by queued and delayed events.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param observer the observer to use, null will cause exceptions to log to stderr
+     */
+    public void setObserver(final ExceptionObserver observer)
+    {
+        m_service.setExceptionObserver(observer);
+    }
+
+    /**
+     * Causes the event machine to start running on a separate thread together with the
+     * NIOService.
+     * <p>
+     * Note that the NIOService should not be called (using {@link naga.NIOService#selectNonBlocking()} and related
+     * functions) on another thread if the EventMachine is used.
+     */
+    public synchronized void start()
+    {
+        if (m_runThread != null) throw new IllegalStateException("Service already running.");
+        if (!m_service.isOpen()) throw new IllegalStateException("Service has been shut down.");
+        m_runThread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                while (m_runThread == this)
+                {
+                    try
+                    {
+                        m_service.selectBlocking();
+                    }
+                    catch (ClosedSelectorException e)
+                    {
+                        // The service was shut down.
+                        return;
+                    }
+                    catch (IOException e)
+                    {
+                        m_service.notifyException(e);
+                    }
+                }
+            }
+        };
+        m_runThread.start();
+    }
+
+    /**
+     * Stops the event machine thread, it may be restarted using start()
+     */
+    public synchronized void stop()
+    {
+        if (m_runThread == null) throw new IllegalStateException("Service is not running.");
+        m_runThread = null;
+        m_service.wakeup();
+    }
+
+    /**
+     * Stops the event machine and closes the underlying NIO service, it is not possible to
+     * restart the event machine after shutdown.
+     */
+    public synchronized void shutdown()
+    {
+        if (m_runThread == null) throw new IllegalStateException("The service is not running.");
+        m_service.close();
+        stop();
+    }
+
+    /**
+     * Returns the NIOService used by this event service.
+     *
+     * @return the NIOService that this event service uses.
+     */
+    public NIOService getNIOService()
+    {
+        return m_service;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "EventMachine[" + (m_runThread == null ? "stopped" : "running") + "]";
+    }
+}
@@ -0,0 +1,45 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.exception;
+
+/**
+ * Reported when a {@link naga.NagaBuffer} is garbage collected without being released.
+ * <p>
+ * The stack trace of the exception is where the leaked buffer was created.
+ *
+ * @author Christoffer Lerno
+ */
+public class BufferLeakException extends RuntimeException
+{
+	private static final long serialVersionUID = -2315378224736403419L;
+
+	/**
+	 * Create a new exception.
+	 *
+	 * @param message exception message.
+	 */
+	public BufferLeakException(final String message)
+	{
+		super(message);
+	}
+
+}
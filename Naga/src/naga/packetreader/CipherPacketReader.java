@@ -21,6 +21,8 @@ SOFTWARE.
 */
 package naga.packetreader;
 
+import naga.BufferAllocator;
+import naga.HeapBufferAllocator;
 import naga.PacketReader;
 import naga.exception.ProtocolViolationException;
 
@@ -36,6 +38,7 @@ import java.nio.ByteBuffer;
 public class CipherPacketReader implements PacketReader
 {
     private final Cipher m_cipher;
+    private final BufferAllocator m_allocator;
     private ByteBuffer m_internalBuffer;
     private PacketReader m_reader;
 
@@ -47,8 +50,22 @@ public class CipherPacketReader implements PacketReader
      */
     public CipherPacketReader(final Cipher cipher, final PacketReader reader)
     {
+        this(cipher, reader, HeapBufferAllocator.INSTANCE);
+    }
+
+    /**
+     * Creates a new CipherPacketReader, taking its decryption buffers from an allocator.
+     *
+     * @param cipher the cipher to use.
+     * @param reader the underlying packet reader we wish to employ.
+     * @param allocator the allocator for the buffers holding decrypted data.
+     */
+    public CipherPacketReader(final Cipher cipher, final PacketReader reader, final BufferAllocator allocator)
+    {
+        if (allocator == null) throw new NullPointerException("Allocator may not be null");
         m_cipher = cipher;
         m_reader = reader;
+        m_allocator = allocator;
     }
 
     public PacketReader getReader()
@@ -67,7 +84,7 @@ public class CipherPacketReader implements PacketReader
         if (m_internalBuffer == null)
         {
             // No buffer, so simply allocate sufficient memory.
-            m_internalBuffer = ByteBuffer.allocate(m_cipher.getOutputSize(byteBuffer.remaining()));
+            m_internalBuffer = m_allocator.allocate(m_cipher.getOutputSize(byteBuffer.remaining()));
         }
         else
         {
@@ -75,10 +92,11 @@ public class CipherPacketReader implements PacketReader
             if (byteBuffer.remaining() > 0)
             {
                 // Allocate enough memory to hold the new and the already decrypted data.
-                final ByteBuffer newBuffer = ByteBuffer.allocate(m_cipher.getOutputSize(byteBuffer.remaining()) + m_internalBuffer.remaining());
+                final ByteBuffer newBuffer = m_allocator.allocate(m_cipher.getOutputSize(byteBuffer.remaining()) + m_internalBuffer.remaining());
 
                 // Move the decrypted data to front.
                 newBuffer.put(m_internalBuffer);
+                m_allocator.release(m_internalBuffer);
 
                 // Update the internal buffer.
                 m_internalBuffer = newBuffer;
@@ -101,7 +119,11 @@ public class CipherPacketReader implements PacketReader
         }
 
         final byte[] packet = m_reader.nextPacket(m_internalBuffer);
-        if (m_internalBuffer.remaining() == 0) m_internalBuffer = null;
+        if (m_internalBuffer.remaining() == 0)
+        {
+            m_allocator.release(m_internalBuffer);
+            m_internalBuffer = null;
+        }
         return packet;
     }
 
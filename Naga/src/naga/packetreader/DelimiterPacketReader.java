@@ -21,10 +21,12 @@ SOFTWARE.
 */
 package naga.packetreader;
 
-import naga.PacketReader;
+import naga.BufferPacketReader;
+import naga.NIOUtils;
 import naga.exception.ProtocolViolationException;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Class to read a byte stream delimited by a byte marking the end of a packet.
@@ -34,13 +36,19 @@ import java.nio.ByteBuffer;
  * by continously sending data without the delimiter.
  * <p>
  * The delimiter will never appear in the packet itself.
+ * <p>
+ * The reader remembers how far it has searched for the delimiter in an incomplete packet, so
+ * that each byte is only examined once even if the packet arrives in many parts.
+ * This means that a reader must not be shared between sockets.
  *
  * @author Christoffer Lerno
  */
-public class DelimiterPacketReader implements PacketReader
+public class DelimiterPacketReader implements BufferPacketReader
 {
 	private volatile int m_maxPacketSize;
 	private final byte m_delimiter;
+	private final long m_delimiterPattern;
+	private int m_scannedBytes;
 
 	/**
 	 * Create a new reader with the default min buffer size and unlimited max buffer size.
@@ -68,7 +76,9 @@ public class DelimiterPacketReader implements PacketReader
 			throw new IllegalArgumentException("Max packet size must be larger that 1, was: " + maxPacketSize);
 		}
 		m_delimiter = delimiter;
+		m_delimiterPattern = (delimiter & 0xFFL) * 0x0101010101010101L;
 		m_maxPacketSize = maxPacketSize;
+		m_scannedBytes = 0;
 	}
 
 	/**
@@ -95,27 +105,79 @@ public class DelimiterPacketReader implements PacketReader
 	}
 
     @Override
-    @SuppressWarnings({"ResultOfMethodCallIgnored"})
     public byte[] nextPacket(final ByteBuffer byteBuffer) throws ProtocolViolationException
     {
-        byteBuffer.mark();
-        int bytesRead = 0;
-        while (byteBuffer.remaining() > 0)
+        final int length = packetLength(byteBuffer);
+        if (length < 0) return null;
+        final byte[] packet = new byte[length];
+        byteBuffer.get(packet);
+        // Skip the delimiter.
+        byteBuffer.position(byteBuffer.position() + 1);
+        return packet;
+    }
+
+    @Override
+    public ByteBuffer nextPacketBuffer(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        final int length = packetLength(byteBuffer);
+        if (length < 0) return null;
+        final ByteBuffer packet = NIOUtils.slice(byteBuffer, length);
+        // Skip the delimiter.
+        byteBuffer.position(byteBuffer.position() + 1);
+        return packet;
+    }
+
+    /**
+     * Finds the length of the next packet, without consuming any bytes.
+     * <p>
+     * The search resumes after the bytes scanned by the previous call, and tests
+     * 8 bytes at a time for the delimiter.
+     *
+     * @param byteBuffer the buffer to search.
+     * @return the number of bytes before the delimiter, or -1 if the buffer does not contain the delimiter.
+     * @throws ProtocolViolationException if the packet exceeds the maximum packet size.
+     */
+    private int packetLength(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        final int start = byteBuffer.position();
+        final int end = byteBuffer.limit();
+        // The bytes scanned last time are still at the start of the buffer, unless it was replaced.
+        int index = m_scannedBytes <= end - start ? start + m_scannedBytes : start;
+        final boolean bigEndian = byteBuffer.order() == ByteOrder.BIG_ENDIAN;
+        while (index + 8 <= end)
         {
-            final int ch = byteBuffer.get();
-            if (ch == m_delimiter)
+            // Sets the high bit of every byte equal to the delimiter, without false positives.
+            final long word = byteBuffer.getLong(index) ^ m_delimiterPattern;
+            final long found = ~(((word & 0x7F7F7F7F7F7F7F7FL) + 0x7F7F7F7F7F7F7F7FL) | word | 0x7F7F7F7F7F7F7F7FL);
+            if (found != 0)
             {
-                final byte[] packet = new byte[bytesRead];
-                byteBuffer.reset();
-                byteBuffer.get(packet);
-                byteBuffer.get();
-                return packet;
+                index += (bigEndian ? Long.numberOfLeadingZeros(found) : Long.numberOfTrailingZeros(found)) >>> 3;
+                m_scannedBytes = 0;
+                return checkPacketSize(index - start);
             }
-            bytesRead++;
-            if (m_maxPacketSize > 0 && bytesRead > m_maxPacketSize) throw new ProtocolViolationException("Packet exceeds max " + m_maxPacketSize);
+            index += 8;
+        }
+        for (; index < end; index++)
+        {
+            if (byteBuffer.get(index) == m_delimiter)
+            {
+                m_scannedBytes = 0;
+                return checkPacketSize(index - start);
+            }
+        }
+        m_scannedBytes = end - start;
+        checkPacketSize(m_scannedBytes);
+        return -1;
+    }
+
+    private int checkPacketSize(final int packetSize) throws ProtocolViolationException
+    {
+        if (m_maxPacketSize > 0 && packetSize > m_maxPacketSize)
+        {
+            m_scannedBytes = 0;
+            throw new ProtocolViolationException("Packet exceeds max " + m_maxPacketSize);
         }
-        byteBuffer.reset();
-        return null;
+        return packetSize;
     }
 
 }
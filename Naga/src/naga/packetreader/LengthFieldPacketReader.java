@@ -0,0 +1,224 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.packetreader;
+
+import naga.BufferPacketReader;
+import naga.LengthPrefixedPacketReader;
+import naga.NIOUtils;
+import naga.exception.ProtocolViolationException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads packets framed by a length field, of the format
+ * <p>
+ * <code>
+ * [prefix, lengthFieldOffset bytes]
+ * <br>
+ * [length field, 1/2/3/4/8 bytes] => length
+ * <br>
+ * [content] => length + lengthAdjustment bytes
+ * </code>
+ * <p>
+ * The length adjustment makes it possible to read protocols where the length
+ * also counts the header, or where some fixed size part follows the length field.
+ * For example, if the length includes the prefix and the length field, the adjustment is
+ * <code>-(lengthFieldOffset + lengthFieldLength)</code>.
+ * <p>
+ * Packets are returned with or without the prefix and length field, depending on the
+ * stripHeader setting. Frames exceeding the max frame length cause a
+ * ProtocolViolationException as soon as the length field is read, rather than after
+ * the frame has been received.
+ * <p>
+ * When the header is stripped, frames larger than the buffer size of the
+ * NIOService are read directly into a byte array of the right size.
+ *
+ * @author Christoffer Lerno
+ */
+public class LengthFieldPacketReader implements LengthPrefixedPacketReader, BufferPacketReader
+{
+    private final ByteOrder m_byteOrder;
+    private final int m_lengthFieldOffset;
+    private final int m_lengthFieldLength;
+    private final int m_lengthAdjustment;
+    private final int m_headerSize;
+    private final boolean m_stripHeader;
+    private final int m_maxFrameLength;
+
+    /**
+     * Creates a reader for a length field at the start of the frame, counting only the content,
+     * and stripping the length field from the packets.
+     *
+     * @param byteOrder the byte order of the length field.
+     * @param lengthFieldLength the length field size, 1, 2, 3, 4 or 8 bytes.
+     * @param maxFrameLength the maximum frame size, including the length field.
+     */
+    public LengthFieldPacketReader(final ByteOrder byteOrder, final int lengthFieldLength, final int maxFrameLength)
+    {
+        this(byteOrder, 0, lengthFieldLength, 0, true, maxFrameLength);
+    }
+
+    /**
+     * Creates a new length field packet reader.
+     *
+     * @param byteOrder the byte order of the length field.
+     * @param lengthFieldOffset the number of bytes before the length field.
+     * @param lengthFieldLength the length field size, 1, 2, 3, 4 or 8 bytes.
+     * @param lengthAdjustment the value to add to the length field to get the size of the content
+     * following the length field.
+     * @param stripHeader true to remove the prefix and length field from the packet,
+     * false to return the whole frame.
+     * @param maxFrameLength the maximum frame size, including prefix and length field.
+     * @throws IllegalArgumentException if any of the arguments are out of range.
+     */
+    public LengthFieldPacketReader(final ByteOrder byteOrder, final int lengthFieldOffset, final int lengthFieldLength,
+                                   final int lengthAdjustment, final boolean stripHeader, final int maxFrameLength)
+    {
+        if (byteOrder == null) throw new NullPointerException();
+        if (lengthFieldOffset < 0) throw new IllegalArgumentException("Length field offset may not be negative, was: " + lengthFieldOffset);
+        if (lengthFieldLength < 1 || lengthFieldLength > 4 && lengthFieldLength != 8)
+        {
+            throw new IllegalArgumentException("Length field must be 1, 2, 3, 4 or 8 bytes long, was: " + lengthFieldLength);
+        }
+        if (maxFrameLength < lengthFieldOffset + lengthFieldLength)
+        {
+            throw new IllegalArgumentException("Max frame length must at least hold the header, was: " + maxFrameLength);
+        }
+        m_byteOrder = byteOrder;
+        m_lengthFieldOffset = lengthFieldOffset;
+        m_lengthFieldLength = lengthFieldLength;
+        m_lengthAdjustment = lengthAdjustment;
+        m_headerSize = lengthFieldOffset + lengthFieldLength;
+        m_stripHeader = stripHeader;
+        m_maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public byte[] nextPacket(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        final int frameLength = frameLength(byteBuffer);
+        if (frameLength < 0 || byteBuffer.remaining() < frameLength) return null;
+        if (m_stripHeader) byteBuffer.position(byteBuffer.position() + m_headerSize);
+        final byte[] packet = new byte[m_stripHeader ? frameLength - m_headerSize : frameLength];
+        byteBuffer.get(packet);
+        return packet;
+    }
+
+    @Override
+    public ByteBuffer nextPacketBuffer(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        final int frameLength = frameLength(byteBuffer);
+        if (frameLength < 0 || byteBuffer.remaining() < frameLength) return null;
+        if (m_stripHeader) byteBuffer.position(byteBuffer.position() + m_headerSize);
+        return NIOUtils.slice(byteBuffer, m_stripHeader ? frameLength - m_headerSize : frameLength);
+    }
+
+    /**
+     * Reads the header of the next packet in the buffer.
+     * <p>
+     * Since a packet read directly must not contain the header, this always
+     * returns -1 if the header is not stripped.
+     *
+     * @param byteBuffer the byte buffer to read from.
+     * @return the length of the content of the packet, or -1 if the header is incomplete
+     * or not stripped.
+     * @throws ProtocolViolationException if the length is out of range.
+     */
+    @Override
+    public int readHeader(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        if (!m_stripHeader) return -1;
+        final int frameLength = frameLength(byteBuffer);
+        if (frameLength < 0) return -1;
+        byteBuffer.position(byteBuffer.position() + m_headerSize);
+        return frameLength - m_headerSize;
+    }
+
+    @Override
+    public int getMaxPacketSize()
+    {
+        return m_maxFrameLength;
+    }
+
+    /**
+     * Decodes the frame length from the header, without consuming any bytes.
+     *
+     * @param byteBuffer the buffer to read from.
+     * @return the size of the whole frame, or -1 if the header is incomplete.
+     * @throws ProtocolViolationException if the frame length is out of range.
+     */
+    private int frameLength(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        if (byteBuffer.remaining() < m_headerSize) return -1;
+        final int index = byteBuffer.position() + m_lengthFieldOffset;
+        final long length;
+        switch (m_lengthFieldLength)
+        {
+            case 1:
+                length = byteBuffer.get(index) & 0xFFL;
+                break;
+            case 2:
+                length = getShort(byteBuffer, index) & 0xFFFFL;
+                break;
+            case 3:
+                length = m_byteOrder == ByteOrder.BIG_ENDIAN
+                         ? (getShort(byteBuffer, index) & 0xFFFFL) << 8 | byteBuffer.get(index + 2) & 0xFFL
+                         : (getShort(byteBuffer, index + 1) & 0xFFFFL) << 8 | byteBuffer.get(index) & 0xFFL;
+                break;
+            case 4:
+                length = getInt(byteBuffer, index) & 0xFFFFFFFFL;
+                break;
+            default:
+                length = getLong(byteBuffer, index);
+                if (length < 0) throw new ProtocolViolationException("Negative frame length: " + length);
+        }
+        final long frameLength = length + m_lengthAdjustment + m_headerSize;
+        if (frameLength < m_headerSize)
+        {
+            throw new ProtocolViolationException("Frame length " + frameLength + " is less than the header size " + m_headerSize);
+        }
+        if (frameLength > m_maxFrameLength)
+        {
+            throw new ProtocolViolationException("Frame length " + frameLength + " exceeds max " + m_maxFrameLength);
+        }
+        return (int) frameLength;
+    }
+
+    private short getShort(final ByteBuffer byteBuffer, final int index)
+    {
+        final short value = byteBuffer.getShort(index);
+        return byteBuffer.order() == m_byteOrder ? value : Short.reverseBytes(value);
+    }
+
+    private int getInt(final ByteBuffer byteBuffer, final int index)
+    {
+        final int value = byteBuffer.getInt(index);
+        return byteBuffer.order() == m_byteOrder ? value : Integer.reverseBytes(value);
+    }
+
+    private long getLong(final ByteBuffer byteBuffer, final int index)
+    {
+        final long value = byteBuffer.getLong(index);
+        return byteBuffer.order() == m_byteOrder ? value : Long.reverseBytes(value);
+    }
+}
@@ -21,7 +21,8 @@ SOFTWARE.
 */
 package naga.packetreader;
 
-import naga.PacketReader;
+import naga.BufferPacketReader;
+import naga.NIOUtils;
 import naga.exception.ProtocolViolationException;
 
 import java.nio.ByteBuffer;
@@ -32,7 +33,7 @@ import java.nio.ByteBuffer;
  *
  * @author Christoffer Lerno
  */
-public class RawPacketReader implements PacketReader
+public class RawPacketReader implements BufferPacketReader
 {
 
     public final static RawPacketReader INSTANCE = new RawPacketReader();
@@ -49,4 +50,10 @@ public class RawPacketReader implements PacketReader
         return packet;
     }
 
+    @Override
+    public ByteBuffer nextPacketBuffer(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        return NIOUtils.slice(byteBuffer, byteBuffer.remaining());
+    }
+
 }
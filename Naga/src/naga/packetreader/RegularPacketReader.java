@@ -21,6 +21,8 @@ SOFTWARE.
 */
 package naga.packetreader;
 
+import naga.BufferPacketReader;
+import naga.LengthPrefixedPacketReader;
 import naga.NIOUtils;
 import naga.PacketReader;
 import naga.exception.ProtocolViolationException;
@@ -37,34 +39,59 @@ import java.nio.ByteBuffer;
  * </code>
  * <p>
  * Note that the maximum size for 4 bytes is a signed 32 bit int, not unsigned.
+ * <p>
+ * Since the length is known from the header, packets larger than the buffer size of the
+ * NIOService are read directly into a byte array of the right size, provided a max packet size
+ * is given. Without a max packet size, packets must fit in the buffer of the NIOService,
+ * so that a peer cannot make the reader allocate arbitrarily large arrays.
  *
  * @author Christoffer Lerno
  */
-public class RegularPacketReader implements PacketReader
+public class RegularPacketReader implements LengthPrefixedPacketReader, BufferPacketReader
 {
 	private final boolean m_bigEndian;
     private final int m_headerSize;
+    private final int m_maxPacketSize;
 
 	/**
-	 * Creates a regular packet reader with the given header size.
+	 * Creates a regular packet reader with the given header size, for packets
+	 * fitting in the buffer of the NIOService.
 	 *
 	 * @param headerSize the header size, 1 - 4 bytes.
 	 * @param bigEndian big endian (largest byte first) or little endian (smallest byte first)
 	 */
 	public RegularPacketReader(final int headerSize, final boolean bigEndian)
+	{
+		this(headerSize, bigEndian, -1, true);
+	}
+
+	/**
+	 * Creates a regular packet reader with the given header size and a limit on the packet size.
+	 *
+	 * @param headerSize the header size, 1 - 4 bytes.
+	 * @param bigEndian big endian (largest byte first) or little endian (smallest byte first)
+	 * @param maxPacketSize the largest content size accepted, larger packets cause a ProtocolViolationException.
+	 */
+	public RegularPacketReader(final int headerSize, final boolean bigEndian, final int maxPacketSize)
+	{
+		this(headerSize, bigEndian, maxPacketSize, false);
+	}
+
+	private RegularPacketReader(final int headerSize, final boolean bigEndian, final int maxPacketSize, final boolean unlimited)
 	{
 		if (headerSize < 1 || headerSize > 4) throw new IllegalArgumentException("Header must be between 1 and 4 bytes long.");
+		if (maxPacketSize < 0 && !unlimited) throw new IllegalArgumentException("Max packet size may not be negative.");
 		m_bigEndian = bigEndian;
         m_headerSize = headerSize;
+        m_maxPacketSize = maxPacketSize;
 	}
 
     @Override
     public byte[] nextPacket(final ByteBuffer byteBuffer) throws ProtocolViolationException
     {
-        if (byteBuffer.remaining() < m_headerSize) return null;
         byteBuffer.mark();
-        final int length = NIOUtils.getPacketSizeFromByteBuffer(byteBuffer, m_headerSize, m_bigEndian);
-        if (byteBuffer.remaining() >= length)
+        final int length = readHeader(byteBuffer);
+        if (length >= 0 && byteBuffer.remaining() >= length)
         {
             final byte[] packet = new byte[length];
             byteBuffer.get(packet);
@@ -77,4 +104,35 @@ public class RegularPacketReader implements PacketReader
         }
     }
 
+    @Override
+    public ByteBuffer nextPacketBuffer(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        final int start = byteBuffer.position();
+        final int length = readHeader(byteBuffer);
+        if (length >= 0 && byteBuffer.remaining() >= length)
+        {
+            return NIOUtils.slice(byteBuffer, length);
+        }
+        byteBuffer.position(start);
+        return null;
+    }
+
+    @Override
+    public int readHeader(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        if (byteBuffer.remaining() < m_headerSize) return -1;
+        final int length = NIOUtils.getPacketSizeFromByteBuffer(byteBuffer, m_headerSize, m_bigEndian);
+        if (length < 0 || m_maxPacketSize >= 0 && length > m_maxPacketSize)
+        {
+            throw new ProtocolViolationException("Packet size out of range: " + length);
+        }
+        return length;
+    }
+
+    @Override
+    public int getMaxPacketSize()
+    {
+        return m_maxPacketSize;
+    }
+
 }
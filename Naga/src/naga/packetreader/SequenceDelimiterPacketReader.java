@@ -0,0 +1,187 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.packetreader;
+
+import naga.BufferPacketReader;
+import naga.NIOUtils;
+import naga.exception.ProtocolViolationException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Class to read a byte stream delimited by a sequence of bytes marking the end of a packet,
+ * such as "\r\n".
+ * <p>
+ * The delimiter is found using a Horspool search, which skips ahead by up to the length
+ * of the delimiter for each comparison. The reader remembers how far it has searched in an incomplete
+ * packet, so that a packet arriving in many parts is only scanned once. This means that a reader
+ * must not be shared between sockets.
+ * <p>
+ * Since packets read with delimiters may potentially grow unbounded, you can also supply
+ * a maximum buffer size to prevent an attacker from causing an out of memory
+ * by continously sending data without the delimiter.
+ * <p>
+ * The delimiter will never appear in the packet itself.
+ *
+ * @author Christoffer Lerno
+ */
+public class SequenceDelimiterPacketReader implements BufferPacketReader
+{
+    private volatile int m_maxPacketSize;
+    private final byte[] m_delimiter;
+    private final int[] m_skipTable;
+    private int m_searchOffset;
+
+    /**
+     * Create a new reader with an unlimited max packet size.
+     *
+     * @param delimiter the delimiter sequence to use.
+     */
+    public SequenceDelimiterPacketReader(final byte[] delimiter)
+    {
+        this(delimiter, -1);
+    }
+
+    /**
+     * Create a new reader with the given max packet size
+     * delimited by the given byte sequence.
+     *
+     * @param delimiter the delimiter sequence to use.
+     * @param maxPacketSize the maximum number of bytes read before throwing an
+     * IOException. -1 means the packet has no size limit.
+     * @throws IllegalArgumentException if maxPacketSize < 1 or the delimiter is empty.
+     */
+    public SequenceDelimiterPacketReader(final byte[] delimiter, final int maxPacketSize)
+    {
+        if (delimiter.length == 0) throw new IllegalArgumentException("The delimiter must contain at least 1 byte.");
+        if (maxPacketSize < 1 && maxPacketSize != -1)
+        {
+            throw new IllegalArgumentException("Max packet size must be larger that 1, was: " + maxPacketSize);
+        }
+        m_delimiter = delimiter.clone();
+        m_maxPacketSize = maxPacketSize;
+        m_searchOffset = 0;
+        // For each byte value, how far the search may move if that byte ends the current window.
+        m_skipTable = new int[256];
+        for (int i = 0; i < m_skipTable.length; i++)
+        {
+            m_skipTable[i] = m_delimiter.length;
+        }
+        for (int i = 0; i < m_delimiter.length - 1; i++)
+        {
+            m_skipTable[m_delimiter[i] & 0xFF] = m_delimiter.length - 1 - i;
+        }
+    }
+
+    /**
+     * Get the current maximum buffer size.
+     *
+     * @return the current maximum size.
+     */
+    public int getMaxPacketSize()
+    {
+        return m_maxPacketSize;
+    }
+
+    /**
+     * Set the new maximum packet size.
+     * <p>
+     * This method is thread-safe, but will not
+     * affect reads in progress.
+     *
+     * @param maxPacketSize the new maximum packet size.
+     */
+    public void setMaxPacketSize(final int maxPacketSize)
+    {
+        m_maxPacketSize = maxPacketSize;
+    }
+
+    @Override
+    public byte[] nextPacket(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        final int length = packetLength(byteBuffer);
+        if (length < 0) return null;
+        final byte[] packet = new byte[length];
+        byteBuffer.get(packet);
+        // Skip the delimiter.
+        byteBuffer.position(byteBuffer.position() + m_delimiter.length);
+        return packet;
+    }
+
+    @Override
+    public ByteBuffer nextPacketBuffer(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        final int length = packetLength(byteBuffer);
+        if (length < 0) return null;
+        final ByteBuffer packet = NIOUtils.slice(byteBuffer, length);
+        // Skip the delimiter.
+        byteBuffer.position(byteBuffer.position() + m_delimiter.length);
+        return packet;
+    }
+
+    /**
+     * Finds the length of the next packet, without consuming any bytes.
+     * <p>
+     * The search resumes at the first position where the delimiter could start,
+     * as determined by the previous call.
+     *
+     * @param byteBuffer the buffer to search.
+     * @return the number of bytes before the delimiter, or -1 if the buffer does not contain the delimiter.
+     * @throws ProtocolViolationException if the packet exceeds the maximum packet size.
+     */
+    private int packetLength(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        final int start = byteBuffer.position();
+        final int end = byteBuffer.limit();
+        final int last = m_delimiter.length - 1;
+        // The bytes searched last time are still at the start of the buffer, unless it was replaced.
+        int index = m_searchOffset <= end - start ? start + m_searchOffset : start;
+        while (index + last < end)
+        {
+            int i = last;
+            while (byteBuffer.get(index + i) == m_delimiter[i])
+            {
+                if (i == 0)
+                {
+                    m_searchOffset = 0;
+                    return checkPacketSize(index - start);
+                }
+                i--;
+            }
+            index += m_skipTable[byteBuffer.get(index + last) & 0xFF];
+        }
+        m_searchOffset = index - start;
+        checkPacketSize(m_searchOffset);
+        return -1;
+    }
+
+    private int checkPacketSize(final int packetSize) throws ProtocolViolationException
+    {
+        if (m_maxPacketSize > 0 && packetSize > m_maxPacketSize)
+        {
+            m_searchOffset = 0;
+            throw new ProtocolViolationException("Packet exceeds max " + m_maxPacketSize);
+        }
+        return packetSize;
+    }
+
+}
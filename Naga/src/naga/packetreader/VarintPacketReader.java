@@ -0,0 +1,132 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.packetreader;
+
+import naga.BufferPacketReader;
+import naga.LengthPrefixedPacketReader;
+import naga.NIOUtils;
+import naga.exception.ProtocolViolationException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads packets prefixed by their length encoded as a base 128 varint, as used for
+ * length delimited protobuf messages:
+ * <p>
+ * <code>
+ * [header 1-5 bytes] => content size, 7 bits per byte, least significant group first,
+ * high bit set on all bytes but the last
+ * <br>
+ * [content]
+ * </code>
+ * <p>
+ * The header is decoded in place, so a header split across reads is simply decoded again
+ * once the rest of it has arrived.
+ *
+ * @author Christoffer Lerno
+ */
+public class VarintPacketReader implements LengthPrefixedPacketReader, BufferPacketReader
+{
+    private final static int MAX_HEADER_SIZE = 5;
+
+    private final int m_maxPacketSize;
+
+    /**
+     * Creates a varint packet reader for packets fitting in the buffer of the NIOService.
+     */
+    public VarintPacketReader()
+    {
+        m_maxPacketSize = -1;
+    }
+
+    /**
+     * Creates a varint packet reader with a limit on the packet size.
+     * <p>
+     * Packets larger than the buffer of the NIOService, up to this size, are read directly
+     * into a byte array of the right size.
+     *
+     * @param maxPacketSize the largest content size accepted, larger packets cause a ProtocolViolationException.
+     */
+    public VarintPacketReader(final int maxPacketSize)
+    {
+        if (maxPacketSize < 0) throw new IllegalArgumentException("Max packet size may not be negative.");
+        m_maxPacketSize = maxPacketSize;
+    }
+
+    @Override
+    public byte[] nextPacket(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        final int start = byteBuffer.position();
+        final int length = readHeader(byteBuffer);
+        if (length >= 0 && byteBuffer.remaining() >= length)
+        {
+            final byte[] packet = new byte[length];
+            byteBuffer.get(packet);
+            return packet;
+        }
+        byteBuffer.position(start);
+        return null;
+    }
+
+    @Override
+    public ByteBuffer nextPacketBuffer(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        final int start = byteBuffer.position();
+        final int length = readHeader(byteBuffer);
+        if (length >= 0 && byteBuffer.remaining() >= length)
+        {
+            return NIOUtils.slice(byteBuffer, length);
+        }
+        byteBuffer.position(start);
+        return null;
+    }
+
+    @Override
+    public int readHeader(final ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        final int start = byteBuffer.position();
+        final int end = byteBuffer.limit();
+        long length = 0;
+        for (int i = 0; i < MAX_HEADER_SIZE; i++)
+        {
+            if (start + i >= end) return -1;
+            final int b = byteBuffer.get(start + i);
+            length |= (long) (b & 0x7F) << (7 * i);
+            if (b >= 0)
+            {
+                if (length > Integer.MAX_VALUE || m_maxPacketSize >= 0 && length > m_maxPacketSize)
+                {
+                    throw new ProtocolViolationException("Packet size out of range: " + length);
+                }
+                byteBuffer.position(start + i + 1);
+                return (int) length;
+            }
+        }
+        throw new ProtocolViolationException("Varint header longer than " + MAX_HEADER_SIZE + " bytes.");
+    }
+
+    @Override
+    public int getMaxPacketSize()
+    {
+        return m_maxPacketSize;
+    }
+}
@@ -21,6 +21,9 @@ SOFTWARE.
 */
 package naga.packetwriter;
 
+import naga.CompositeBuffer;
+import naga.CompositePacketWriter;
+import naga.NIOUtils;
 import naga.PacketWriter;
 
 import javax.crypto.Cipher;
@@ -31,7 +34,7 @@ import java.nio.ByteBuffer;
  *
  * @author Christoffer Lerno
  */
-public class CipherPacketWriter implements PacketWriter
+public class CipherPacketWriter implements CompositePacketWriter
 {
     private final Cipher m_cipher;
     private PacketWriter m_packetWriter;
@@ -53,31 +56,40 @@ public class CipherPacketWriter implements PacketWriter
     }
 
     @Override
-    public ByteBuffer[] write(ByteBuffer[] byteBuffer)
+    public void write(final CompositeBuffer packet)
     {
-        byteBuffer = m_packetWriter.write(byteBuffer);
-        final ByteBuffer[] resultBuffer = new ByteBuffer[byteBuffer.length];
+        NIOUtils.writePacket(m_packetWriter, packet);
+        final int size = packet.size();
         try
         {
-            for (int i = 0; i < byteBuffer.length; i++)
+            for (int i = 0; i < size; i++)
             {
-                resultBuffer[i] = ByteBuffer.allocate(m_cipher.getOutputSize(byteBuffer[i].remaining()));
-                if (i == byteBuffer.length - 1)
+                final ByteBuffer buffer = packet.get(i);
+                final ByteBuffer result = ByteBuffer.allocate(m_cipher.getOutputSize(buffer.remaining()));
+                if (i == size - 1)
                 {
-                    m_cipher.doFinal(byteBuffer[i], resultBuffer[i]);
+                    m_cipher.doFinal(buffer, result);
                 }
                 else
                 {
-                    m_cipher.update(byteBuffer[i], resultBuffer[i]);
+                    m_cipher.update(buffer, result);
                 }
-                assert byteBuffer[i].remaining() == 0;
-                resultBuffer[i].flip();
+                assert buffer.remaining() == 0;
+                result.flip();
+                packet.set(i, result);
             }
         }
         catch (Exception e)
         {
             throw new RuntimeException(e);
         }
-        return resultBuffer;
+    }
+
+    @Override
+    public ByteBuffer[] write(final ByteBuffer[] byteBuffers)
+    {
+        final CompositeBuffer packet = CompositeBuffer.wrap(byteBuffers);
+        write(packet);
+        return packet.toArray();
     }
 }
@@ -21,8 +21,8 @@ SOFTWARE.
 */
 package naga.packetwriter;
 
-import naga.NIOUtils;
-import naga.PacketWriter;
+import naga.CompositeBuffer;
+import naga.CompositePacketWriter;
 
 import java.nio.ByteBuffer;
 
@@ -31,7 +31,7 @@ import java.nio.ByteBuffer;
  *
  * @author Christoffer Lerno
  */
-public class DelimiterPacketWriter implements PacketWriter
+public class DelimiterPacketWriter implements CompositePacketWriter
 {
     private final ByteBuffer m_endByte;
 
@@ -41,9 +41,17 @@ public class DelimiterPacketWriter implements PacketWriter
     }
 
     @Override
-    public ByteBuffer[] write(final ByteBuffer[] byteBuffer)
+    public void write(final CompositeBuffer packet)
     {
-        m_endByte.rewind();
-        return NIOUtils.concat(byteBuffer, m_endByte);
+        // Use a duplicate, since several packets may be queued before being written.
+        packet.append(m_endByte.duplicate());
+    }
+
+    @Override
+    public ByteBuffer[] write(final ByteBuffer[] byteBuffers)
+    {
+        final CompositeBuffer packet = CompositeBuffer.wrap(byteBuffers);
+        write(packet);
+        return packet.toArray();
     }
 }
@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.packetwriter;
+
+import naga.CompositeBuffer;
+import naga.CompositePacketWriter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes packets prefixed by a length field, of the format
+ * <p>
+ * <code>
+ * [length field, 1/2/3/4/8 bytes] => length
+ * <br>
+ * [content]
+ * </code>
+ * <p>
+ * The length is the size of the content, optionally including the length field itself.
+ * Packets written with this writer can be read by a
+ * {@link naga.packetreader.LengthFieldPacketReader} with offset 0 and a length adjustment of 0,
+ * or <code>-lengthFieldLength</code> if the length includes the length field.
+ *
+ * @author Christoffer Lerno
+ */
+public class LengthFieldPacketWriter implements CompositePacketWriter
+{
+    private final ByteOrder m_byteOrder;
+    private final int m_lengthFieldLength;
+    private final boolean m_lengthIncludesLengthField;
+
+    /**
+     * Creates a writer where the length only counts the content.
+     *
+     * @param byteOrder the byte order of the length field.
+     * @param lengthFieldLength the length field size, 1, 2, 3, 4 or 8 bytes.
+     */
+    public LengthFieldPacketWriter(final ByteOrder byteOrder, final int lengthFieldLength)
+    {
+        this(byteOrder, lengthFieldLength, false);
+    }
+
+    /**
+     * Creates a new length field packet writer.
+     *
+     * @param byteOrder the byte order of the length field.
+     * @param lengthFieldLength the length field size, 1, 2, 3, 4 or 8 bytes.
+     * @param lengthIncludesLengthField true if the length should include the size of the length field.
+     * @throws IllegalArgumentException if the length field size is invalid.
+     */
+    public LengthFieldPacketWriter(final ByteOrder byteOrder, final int lengthFieldLength, final boolean lengthIncludesLengthField)
+    {
+        if (byteOrder == null) throw new NullPointerException();
+        if (lengthFieldLength < 1 || lengthFieldLength > 4 && lengthFieldLength != 8)
+        {
+            throw new IllegalArgumentException("Length field must be 1, 2, 3, 4 or 8 bytes long, was: " + lengthFieldLength);
+        }
+        m_byteOrder = byteOrder;
+        m_lengthFieldLength = lengthFieldLength;
+        m_lengthIncludesLengthField = lengthIncludesLengthField;
+    }
+
+    /**
+     * Adds the length field to the packet.
+     *
+     * @param packet the packet content, to which the length field is prepended.
+     * @throws IllegalArgumentException if the length cannot be encoded in the length field.
+     */
+    @Override
+    public void write(final CompositeBuffer packet)
+    {
+        final long length = packet.remaining() + (m_lengthIncludesLengthField ? m_lengthFieldLength : 0);
+        if (m_lengthFieldLength < 8 && length >> (m_lengthFieldLength * 8) != 0)
+        {
+            throw new IllegalArgumentException("Payload size cannot be encoded into " + m_lengthFieldLength + " byte(s).");
+        }
+        final ByteBuffer header = ByteBuffer.allocate(m_lengthFieldLength).order(m_byteOrder);
+        switch (m_lengthFieldLength)
+        {
+            case 1:
+                header.put((byte) length);
+                break;
+            case 2:
+                header.putShort((short) length);
+                break;
+            case 3:
+                if (m_byteOrder == ByteOrder.BIG_ENDIAN)
+                {
+                    header.putShort((short) (length >> 8)).put((byte) length);
+                }
+                else
+                {
+                    header.put((byte) length).putShort((short) (length >> 8));
+                }
+                break;
+            case 4:
+                header.putInt((int) length);
+                break;
+            default:
+                header.putLong(length);
+        }
+        header.flip();
+        packet.prepend(header);
+    }
+
+    @Override
+    public ByteBuffer[] write(final ByteBuffer[] byteBuffers)
+    {
+        final CompositeBuffer packet = CompositeBuffer.wrap(byteBuffers);
+        write(packet);
+        return packet.toArray();
+    }
+}
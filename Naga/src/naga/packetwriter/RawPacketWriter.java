@@ -21,7 +21,8 @@ SOFTWARE.
 */
 package naga.packetwriter;
 
-import naga.PacketWriter;
+import naga.CompositeBuffer;
+import naga.CompositePacketWriter;
 
 import java.nio.ByteBuffer;
 
@@ -33,7 +34,7 @@ import java.nio.ByteBuffer;
  *
  * @author Christoffer Lerno
  */
-public class RawPacketWriter implements PacketWriter
+public class RawPacketWriter implements CompositePacketWriter
 {
     public static RawPacketWriter INSTANCE = new RawPacketWriter();
 
@@ -46,4 +47,9 @@ public class RawPacketWriter implements PacketWriter
     {
         return byteBuffers;
     }
+
+    @Override
+    public void write(final CompositeBuffer packet)
+    {
+    }
 }
@@ -21,8 +21,9 @@ SOFTWARE.
 */
 package naga.packetwriter;
 
+import naga.CompositeBuffer;
+import naga.CompositePacketWriter;
 import naga.NIOUtils;
-import naga.PacketWriter;
 
 import java.nio.ByteBuffer;
 
@@ -44,10 +45,10 @@ import java.nio.ByteBuffer;
  *
  * @author Christoffer Lerno
  */
-public class RegularPacketWriter implements PacketWriter
+public class RegularPacketWriter implements CompositePacketWriter
 {
 	private final boolean m_bigEndian;
-    private final ByteBuffer m_header;
+    private final int m_headerSize;
 
 	/**
 	 * Creates a regular packet writer with the given header size.
@@ -59,17 +60,26 @@ public class RegularPacketWriter implements PacketWriter
 	{
 		if (headerSize < 1 || headerSize > 4) throw new IllegalArgumentException("Header must be between 1 and 4 bytes long.");
 		m_bigEndian = bigEndian;
-        m_header = ByteBuffer.allocate(headerSize);
+        m_headerSize = headerSize;
 	}
 
+    @Override
+    public void write(final CompositeBuffer packet)
+    {
+        // Each packet needs its own header, since several packets may be queued before being written.
+        final ByteBuffer header = ByteBuffer.allocate(m_headerSize);
+        NIOUtils.setPacketSizeInByteBuffer(header, m_headerSize,
+                                           (int)packet.remaining(), m_bigEndian);
+        header.flip();
+        packet.prepend(header);
+    }
+
     @Override
     public ByteBuffer[] write(final ByteBuffer[] byteBuffers)
     {
-        m_header.clear();
-        NIOUtils.setPacketSizeInByteBuffer(m_header, m_header.capacity(),
-                                           (int)NIOUtils.remaining(byteBuffers), m_bigEndian);
-        m_header.flip();
-        return NIOUtils.concat(m_header, byteBuffers);
+        final CompositeBuffer packet = CompositeBuffer.wrap(byteBuffers);
+        write(packet);
+        return packet.toArray();
     }
 
 }
@@ -0,0 +1,65 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.packetwriter;
+
+import naga.CompositeBuffer;
+import naga.CompositePacketWriter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Class to write a byte stream delimited by a sequence of bytes marking the end of a packet,
+ * such as "\r\n".
+ *
+ * @author Christoffer Lerno
+ */
+public class SequenceDelimiterPacketWriter implements CompositePacketWriter
+{
+    private final ByteBuffer m_delimiter;
+
+    /**
+     * Creates a new writer appending the given delimiter to each packet.
+     *
+     * @param delimiter the delimiter sequence to use.
+     * @throws IllegalArgumentException if the delimiter is empty.
+     */
+    public SequenceDelimiterPacketWriter(final byte[] delimiter)
+    {
+        if (delimiter.length == 0) throw new IllegalArgumentException("The delimiter must contain at least 1 byte.");
+        m_delimiter = ByteBuffer.wrap(delimiter.clone());
+    }
+
+    @Override
+    public void write(final CompositeBuffer packet)
+    {
+        // Writing the packet moves the position of the buffer, so each packet gets its own view of the delimiter.
+        packet.append(m_delimiter.duplicate());
+    }
+
+    @Override
+    public ByteBuffer[] write(final ByteBuffer[] byteBuffers)
+    {
+        final CompositeBuffer packet = CompositeBuffer.wrap(byteBuffers);
+        write(packet);
+        return packet.toArray();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.packetwriter;
+
+import naga.CompositeBuffer;
+import naga.CompositePacketWriter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes packets prefixed by their length encoded as a base 128 varint, as used for
+ * length delimited protobuf messages.
+ * <p>
+ * Headers are cut from a larger slab buffer rather than allocated one by one. A header is only
+ * read when its packet is written, so the parts handed out never overlap,
+ * and a new slab is allocated when the current one is used up.
+ *
+ * @see naga.packetreader.VarintPacketReader
+ * @author Christoffer Lerno
+ */
+public class VarintPacketWriter implements CompositePacketWriter
+{
+    private final static int SLAB_SIZE = 4096;
+    private final static int MAX_HEADER_SIZE = 5;
+
+    private ByteBuffer m_slab;
+
+    public VarintPacketWriter()
+    {
+        m_slab = ByteBuffer.allocate(SLAB_SIZE);
+    }
+
+    @Override
+    public void write(final CompositeBuffer packet)
+    {
+        packet.prepend(header((int) packet.remaining()));
+    }
+
+    @Override
+    public ByteBuffer[] write(final ByteBuffer[] byteBuffers)
+    {
+        final CompositeBuffer packet = CompositeBuffer.wrap(byteBuffers);
+        write(packet);
+        return packet.toArray();
+    }
+
+    /**
+     * Encodes a length in the next free part of the slab.
+     *
+     * @param length the length to encode.
+     * @return a buffer containing the encoded length.
+     */
+    private synchronized ByteBuffer header(final int length)
+    {
+        if (m_slab.remaining() < MAX_HEADER_SIZE) m_slab = ByteBuffer.allocate(SLAB_SIZE);
+        final int start = m_slab.position();
+        int value = length;
+        while ((value & ~0x7F) != 0)
+        {
+            m_slab.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        m_slab.put((byte) value);
+        final ByteBuffer header = m_slab.duplicate();
+        header.position(start);
+        header.limit(m_slab.position());
+        return header;
+    }
+}
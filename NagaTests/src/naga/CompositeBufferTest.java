@@ -0,0 +1,125 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+import naga.packetwriter.CipherPacketWriter;
+import naga.packetwriter.DelimiterPacketWriter;
+import naga.packetwriter.RegularPacketWriter;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+
+public class CompositeBufferTest extends TestCase
+{
+	private static ByteBuffer buffer(String text)
+	{
+		return ByteBuffer.wrap(text.getBytes());
+	}
+
+	private static String toString(CompositeBuffer buffer)
+	{
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < buffer.size(); i++)
+		{
+			ByteBuffer part = buffer.get(i).duplicate();
+			while (part.hasRemaining())
+			{
+				builder.append((char) part.get());
+			}
+		}
+		return builder.toString();
+	}
+
+	public void testAppendAndPrepend()
+	{
+		CompositeBuffer buffer = new CompositeBuffer(1);
+		assertEquals(true, buffer.isEmpty());
+		buffer.append(buffer("c")).append((ByteBuffer) null).append(new ByteBuffer[] { buffer("d"), null, buffer("e") });
+		buffer.prepend(buffer("b")).prepend(buffer("a"));
+		// Grows at the start beyond the headroom.
+		buffer.prepend(buffer("0"));
+		assertEquals(6, buffer.size());
+		assertEquals(6, buffer.remaining());
+		assertEquals("0abcde", toString(buffer));
+		assertEquals(6, buffer.toArray().length);
+
+		CompositeBuffer other = new CompositeBuffer();
+		other.append(buffer("x")).append(buffer("y"));
+		buffer.prepend(other).append(other);
+		assertEquals("xy0abcdexy", toString(buffer));
+
+		buffer.removeFirst(3);
+		assertEquals("abcdexy", toString(buffer));
+		buffer.clear();
+		assertEquals(0, buffer.size());
+		assertEquals(false, buffer.hasRemaining());
+	}
+
+	public void testGatheringView()
+	{
+		CompositeBuffer buffer = new CompositeBuffer();
+		buffer.append(buffer("bar")).prepend(buffer("foo"));
+		ByteBuffer[] array = buffer.array();
+		assertEquals("foo", new String(array[buffer.arrayOffset()].array()));
+		assertEquals("bar", new String(array[buffer.arrayOffset() + buffer.size() - 1].array()));
+		try
+		{
+			buffer.get(2);
+			fail();
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+		}
+	}
+
+	public void testWrappedArrayNotModified()
+	{
+		ByteBuffer[] array = new ByteBuffer[] { buffer("a"), buffer("b") };
+		CompositeBuffer buffer = CompositeBuffer.wrap(array);
+		assertSame(array, buffer.toArray());
+		buffer.set(0, buffer("c"));
+		buffer.removeFirst(1);
+		buffer.append(buffer("d"));
+		assertEquals("bd", toString(buffer));
+		assertEquals("a", new String(array[0].array()));
+		assertEquals(2, array.length);
+		assertEquals(0, CompositeBuffer.wrap((ByteBuffer[]) null).size());
+	}
+
+	public void testWriterChain() throws Exception
+	{
+		CompositeBuffer packet = new CompositeBuffer();
+		packet.append(buffer("Hello"));
+		NIOUtils.writePacket(new RegularPacketWriter(1, true), packet);
+		NIOUtils.writePacket(new DelimiterPacketWriter((byte) '!'), packet);
+		assertEquals(3, packet.size());
+		assertEquals("\u0005Hello!", toString(packet));
+
+		// A plain PacketWriter is called through its array signature.
+		NIOUtils.writePacket(new PacketWriter()
+		{
+			public ByteBuffer[] write(ByteBuffer[] byteBuffers)
+			{
+				return NIOUtils.concat(byteBuffers, buffer("?"));
+			}
+		}, packet);
+		assertEquals("\u0005Hello!?", toString(packet));
+	}
+
+	public void testCipherPacketWriter() throws Exception
+	{
+		Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[16], "AES"));
+		CipherPacketWriter writer = new CipherPacketWriter(cipher, new RegularPacketWriter(1, true));
+		ByteBuffer[] input = new ByteBuffer[] { buffer("Hello") };
+		ByteBuffer[] result = writer.write(input);
+		// The header and content are encrypted into one block each, the first update being too short for output.
+		assertEquals(2, result.length);
+		assertEquals(0, result[0].remaining());
+		assertEquals(16, result[1].remaining());
+		assertEquals(1, input.length);
+	}
+}
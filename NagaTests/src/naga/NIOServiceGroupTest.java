@@ -0,0 +1,74 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+
+import java.net.InetSocketAddress;
+
+public class NIOServiceGroupTest extends TestCase
+{
+	NIOServiceGroup m_group;
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		if (m_group != null) m_group.close();
+	}
+
+	public void testNIOServiceGroup() throws Exception
+	{
+		try
+		{
+			new NIOServiceGroup(0);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("A service group needs at least 1 service, was: 0", e.getMessage());
+		}
+	}
+
+	public void testRoundRobin() throws Exception
+	{
+		m_group = new NIOServiceGroup(3);
+		final NIOService[] services = m_group.getServices();
+		assertEquals(3, services.length);
+		for (int i = 0; i < 6; i++)
+		{
+			assertSame(services[i % 3], m_group.nextService());
+		}
+	}
+
+	public void testLeastConnections() throws Exception
+	{
+		m_group = new NIOServiceGroup(2, NIOServiceGroup.LoadBalancing.LEAST_CONNECTIONS);
+		final NIOService[] services = m_group.getServices();
+		assertSame(services[0], m_group.nextService());
+		m_group.openSocket("localhost", 3135);
+		assertEquals(1, services[0].getSocketCount());
+		assertSame(services[1], m_group.nextService());
+		m_group.openSocket("localhost", 3135);
+		assertEquals(1, services[1].getSocketCount());
+		assertSame(services[0], m_group.nextService());
+	}
+
+	public void testAcceptOnChildService() throws Exception
+	{
+		m_group = new NIOServiceGroup(2);
+		final NIOService[] services = m_group.getServices();
+		final NIOServerSocket serverSocket = m_group.openServerSocket(new InetSocketAddress(3136), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter());
+		final NIOService client = new NIOService();
+		client.openSocket("localhost", 3136);
+		while (serverSocket.getTotalAcceptedConnections() == 0)
+		{
+			client.selectNonBlocking();
+			m_group.getAcceptor().selectBlocking(10);
+		}
+		assertEquals(0, m_group.getAcceptor().getSocketCount());
+		assertEquals(1, services[0].getSocketCount() + services[1].getSocketCount());
+		client.close();
+	}
+}
@@ -4,13 +4,54 @@ package naga;
  */
 
 import junit.framework.TestCase;
+import naga.eventmachine.DelayedEvent;
+import naga.exception.ProtocolViolationException;
+import naga.packetreader.RegularPacketReader;
+import naga.packetwriter.RegularPacketWriter;
 import org.easymock.classextension.EasyMock;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class NIOServiceTest extends TestCase
 {
+	/**
+	 * A PKCS12 key store with a self-signed certificate for localhost, password "naganaga".
+	 */
+	private final static String TEST_KEY_STORE =
+		"308203ec0201033082039606092a864886f70d010701a0820387048203833082037f3082012606092a864886f70d010701a0820117048201133082010f308201" +
+		"0b060b2a864886f70d010c0a0102a081bd3081ba306606092a864886f70d01050d3059303806092a864886f70d01050c302b0414f99b89739d67ede532cd8d2d" +
+		"350cfc586f1212fd02022710020120300c06082a864886f70d02090500301d060960864801650304012a0410d8a2b1fb1f926780d02b9d4d92c934060450a0e1" +
+		"473d4065d83f16c740cccd0474444e41fc665c7aad42be8c02bf795c15736f92a388138d2f6e5c09507c3506b0b55b36d24229cb5766cec14c71d983eda637c5" +
+		"eb9c8519f75ed39f0ce01b7337c1313c301706092a864886f70d010914310a1e08006e006100670061302106092a864886f70d0109153114041254696d652031" +
+		"3739323237373533393530333082025106092a864886f70d010706a08202423082023e0201003082023706092a864886f70d010701306606092a864886f70d01" +
+		"050d3059303806092a864886f70d01050c302b04143a9b329e44ee2af899cb8e9799322f1e32d6ce6602022710020120300c06082a864886f70d02090500301d" +
+		"060960864801650304012a04106374f09fe42acef72e9c475f5757eae1808201c065df57c507ba840212ae2495a9492b843b0b747637fa44c36ca79ad8aeb7e5" +
+		"b8b85502e6b97ba1f29d8a60ca12f280d20683d7b994591a67ada11e673906ba059fc0883b4fbf69bf3f34abe9c77909e81b8aff2c5cee6ee2cd88434d95ff36" +
+		"4e4cad1d6ab58d43433ae1f49960ab99c135e16fc18cbd439f6d29fa70395d979ec87a198cd643a41a010cf81a28523437934b0bd54b6667a8427f7d9091a7c4" +
+		"9bda01254aa7f1dfaf3ba2b9f7ada00b8903150658d3382bc58bf071675f03d750193e2a0a79b579f7adab875cb4e110c9e409988175ba809456f80d7e6a21a7" +
+		"efdccf31f2200da8dd0e6ee8d96b4c4e47caa07b1a78199d22320e7b37ad5e83f48fc5fdfadc5fa20e2f77fe23c711812c7d6a2c1557c9e5688ad7a2325fcfda" +
+		"1ac80a628934b88e9a29189c345b10bf799f70e76b0ad8bdbe697b0d67183733949f3c8390f6a34e8cfe8c936aba954776d02668fda603b771ee014262968023" +
+		"5cf7f993040af4e70ae64ff2a65b219c14b6f67f66558573a159247e6c7b257a750e0d9eafca1d4df8eee75ed287b9ccaa2660eb624f2bc1685f4ad5b17b802b" +
+		"8969a81b4ff2271e49ff0b34c5c7fe073052afa8d6a2726ec6cfedae2309f99c84304d3031300d0609608648016503040201050004208a30fc6d57e7156594fa" +
+		"c9797a30dbe55443c332f5b3159946aa9d0cb533a8ec04144afd260ccdccb7f630be4617d55181f29101217502022710";
+
 	NIOService m_service;
 
 	@Override
@@ -98,4 +139,755 @@ public class NIOServiceTest extends TestCase
 		assertEquals(1, serverSocket.getTotalConnections());
 		assertEquals(1, serverSocket.getTotalRefusedConnections());
 	}
+
+	public void testExecuteLater() throws Exception
+	{
+		final List<String> calls = new ArrayList<String>();
+		m_service.executeLater(new Runnable()
+		{
+			public void run()
+			{
+				calls.add("later");
+			}
+		}, 50);
+		m_service.executeLater(new Runnable()
+		{
+			public void run()
+			{
+				calls.add("now");
+			}
+		}, 0);
+		final DelayedEvent cancelled = m_service.executeLater(new Runnable()
+		{
+			public void run()
+			{
+				calls.add("cancelled");
+			}
+		}, 20);
+		cancelled.cancel();
+		final long start = System.currentTimeMillis();
+		while (calls.size() < 2)
+		{
+			// Without any sockets, the select should only wake up for the delayed event.
+			m_service.selectBlocking();
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals("[now, later]", calls.toString());
+	}
+
+	public void testExecuteLaterFromOtherThread() throws Exception
+	{
+		final List<String> calls = new ArrayList<String>();
+		m_service.selectNonBlocking();
+		final Thread thread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				m_service.executeLater(new Runnable()
+				{
+					public void run()
+					{
+						calls.add("run");
+					}
+				}, 10).cancel();
+				m_service.executeAt(new Runnable()
+				{
+					public void run()
+					{
+						calls.add("at");
+					}
+				}, System.currentTimeMillis() + 10);
+			}
+		};
+		thread.start();
+		thread.join();
+		while (calls.isEmpty())
+		{
+			m_service.selectBlocking(1000);
+		}
+		assertEquals("[at]", calls.toString());
+	}
+
+	public void testIdleTimeouts() throws Exception
+	{
+		final List<String> events = new ArrayList<String>();
+		final NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(3137), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				nioSocket.listen(SocketObserver.NULL);
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final NIOSocket socket = m_service.openSocket("localhost", 3137);
+		socket.setIdleTimeouts(50, 0, 120);
+		socket.listen(new SocketObserverAdapter()
+		{
+			@Override
+			public void socketIdle(final NIOSocket nioSocket, final IdleState state)
+			{
+				events.add(state.toString());
+				if (state == IdleState.ALL_IDLE) nioSocket.close();
+			}
+		});
+		final long start = System.currentTimeMillis();
+		while (socket.isOpen() && System.currentTimeMillis() - start < 2000)
+		{
+			m_service.selectBlocking(100);
+		}
+		assertFalse(socket.isOpen());
+		assertTrue(System.currentTimeMillis() - start >= 120);
+		// Reader idle fires at 50 and 100 ms, then all idle closes the socket at 120 ms.
+		assertEquals("[READER_IDLE, READER_IDLE, ALL_IDLE]", events.toString());
+		serverSocket.close();
+	}
+
+	public void testPacketLargerThanBuffer() throws Exception
+	{
+		final List<byte[]> packets = new ArrayList<byte[]>();
+		m_service.setBufferSize(1024);
+		final NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(3138), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				nioSocket.setPacketReader(new RegularPacketReader(4, true, 1024 * 1024));
+				nioSocket.listen(new SocketObserverAdapter()
+				{
+					@Override
+					public void packetReceived(final NIOSocket socket, final byte[] packet)
+					{
+						packets.add(packet);
+					}
+				});
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final NIOSocket socket = m_service.openSocket("localhost", 3138);
+		socket.setPacketWriter(new RegularPacketWriter(4, true));
+		socket.listen(SocketObserver.NULL);
+		final byte[] large = new byte[200000];
+		for (int i = 0; i < large.length; i++)
+		{
+			large[i] = (byte) i;
+		}
+		socket.write("small".getBytes());
+		socket.write(large);
+		socket.write("after".getBytes());
+		final long start = System.currentTimeMillis();
+		while (packets.size() < 3 && System.currentTimeMillis() - start < 5000)
+		{
+			m_service.selectBlocking(100);
+		}
+		assertEquals(3, packets.size());
+		assertEquals("small", new String(packets.get(0)));
+		assertTrue(Arrays.equals(large, packets.get(1)));
+		assertEquals("after", new String(packets.get(2)));
+		socket.close();
+		serverSocket.close();
+	}
+
+	public void testPacketLargerThanBufferWithoutMax() throws Exception
+	{
+		final List<Exception> exceptions = new ArrayList<Exception>();
+		m_service.setBufferSize(1024);
+		final NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(3147), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				nioSocket.setPacketReader(new RegularPacketReader(4, true));
+				nioSocket.listen(new SocketObserverAdapter()
+				{
+					@Override
+					public void connectionBroken(final NIOSocket nioSocket, final Exception exception)
+					{
+						exceptions.add(exception);
+					}
+				});
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final NIOSocket socket = m_service.openSocket("localhost", 3147);
+		socket.listen(SocketObserver.NULL);
+
+		// A header announcing 256 MB must not be allocated when the reader has no max packet size.
+		socket.write(new byte[] { 0x10, 0, 0, 0, 1, 2, 3 });
+		selectUntil(exceptions, 1);
+		assertTrue(exceptions.get(0) instanceof ProtocolViolationException);
+		socket.close();
+		serverSocket.close();
+	}
+
+	public void testBufferSocketObserver() throws Exception
+	{
+		final List<String> packets = new ArrayList<String>();
+		final NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(3139), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				nioSocket.setPacketReader(new RegularPacketReader(1, true));
+				nioSocket.listen(new BufferSocketObserverAdapter()
+				{
+					@Override
+					public void packetReceived(final NIOSocket socket, final ByteBuffer packet)
+					{
+						assertTrue(packet.isReadOnly());
+						packets.add(new String(NIOUtils.copy(packet).array()));
+					}
+				});
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final NIOSocket socket = m_service.openSocket("localhost", 3139);
+		socket.setPacketWriter(new RegularPacketWriter(1, true));
+		socket.listen(SocketObserver.NULL);
+		socket.write("one".getBytes());
+		socket.write("two".getBytes());
+		final long start = System.currentTimeMillis();
+		while (packets.size() < 2 && System.currentTimeMillis() - start < 5000)
+		{
+			m_service.selectBlocking(100);
+		}
+		assertEquals("[one, two]", packets.toString());
+		socket.close();
+		serverSocket.close();
+	}
+
+	public void testInboundWatermarks() throws Exception
+	{
+		final List<String> packets = new ArrayList<String>();
+		final List<NIOSocket> serverSockets = new ArrayList<NIOSocket>();
+		final NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(3140), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				serverSockets.add(nioSocket);
+				nioSocket.setPacketReader(new RegularPacketReader(1, true));
+				nioSocket.setInboundWatermarks(0, 1);
+				nioSocket.listen(new SocketObserverAdapter()
+				{
+					@Override
+					public void packetReceived(final NIOSocket socket, final byte[] packet)
+					{
+						packets.add(new String(packet));
+					}
+				});
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final NIOSocket socket = m_service.openSocket("localhost", 3140);
+		socket.setPacketWriter(new RegularPacketWriter(1, true));
+		socket.listen(SocketObserver.NULL);
+		socket.write("A".getBytes());
+		selectUntil(packets, 1);
+		socket.write("BB".getBytes());
+		selectUntil(packets, 2);
+		final NIOSocket serverSide = serverSockets.get(0);
+		assertEquals(3, serverSide.getInboundBytes());
+
+		// Reading is now suspended, so the next packet stays in the OS buffers.
+		socket.write("C".getBytes());
+		for (int i = 0; i < 5; i++)
+		{
+			m_service.selectBlocking(20);
+		}
+		assertEquals("[A, BB]", packets.toString());
+
+		serverSide.releaseInboundBytes(3);
+		selectUntil(packets, 3);
+		assertEquals("[A, BB, C]", packets.toString());
+
+		// Manual suspension works the same way.
+		serverSide.suspendReading();
+		m_service.selectNonBlocking();
+		socket.write("D".getBytes());
+		for (int i = 0; i < 5; i++)
+		{
+			m_service.selectBlocking(20);
+		}
+		assertEquals(3, packets.size());
+		serverSide.resumeReading();
+		selectUntil(packets, 4);
+		socket.close();
+		serverSocket.close();
+	}
+
+	public void testSuspendReadingFromObserver() throws Exception
+	{
+		final List<String> packets = new ArrayList<String>();
+		final List<NIOSocket> serverSockets = new ArrayList<NIOSocket>();
+		final NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(3151), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				serverSockets.add(nioSocket);
+				nioSocket.setPacketReader(new RegularPacketReader(1, true));
+				nioSocket.listen(new SocketObserverAdapter()
+				{
+					@Override
+					public void packetReceived(final NIOSocket socket, final byte[] packet)
+					{
+						packets.add(new String(packet));
+						if (packets.size() == 1) socket.suspendReading();
+					}
+				});
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final NIOSocket socket = m_service.openSocket("localhost", 3151);
+		socket.listen(SocketObserver.NULL);
+
+		// All three packets arrive in a single read, but only the first is delivered.
+		socket.write(new byte[] { 1, 'A', 1, 'B', 1, 'C' });
+		selectUntil(packets, 1);
+		for (int i = 0; i < 5; i++)
+		{
+			m_service.selectBlocking(20);
+		}
+		assertEquals("[A]", packets.toString());
+
+		// Resuming delivers the packets already read.
+		serverSockets.get(0).resumeReading();
+		selectUntil(packets, 3);
+		assertEquals("[A, B, C]", packets.toString());
+		socket.close();
+		serverSocket.close();
+	}
+
+	public void testReadBudget() throws Exception
+	{
+		final List<byte[]> packets = new ArrayList<byte[]>();
+		final NIOService clientService = new NIOService();
+		m_service.setBufferSize(256);
+		final NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(3141), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				nioSocket.setPacketReader(new RegularPacketReader(1, true));
+				nioSocket.listen(new SocketObserverAdapter()
+				{
+					@Override
+					public void packetReceived(final NIOSocket socket, final byte[] packet)
+					{
+						packets.add(packet);
+					}
+				});
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final NIOSocket socket = clientService.openSocket("localhost", 3141);
+		socket.setPacketWriter(new RegularPacketWriter(1, true));
+		socket.listen(SocketObserver.NULL);
+		while (serverSocket.getTotalConnections() == 0)
+		{
+			clientService.selectNonBlocking();
+			m_service.selectBlocking(10);
+		}
+		m_service.selectNonBlocking();
+
+		// Put three packets in the OS buffers before the server reads anything.
+		m_service.setReadBudget(0, 1);
+		for (int i = 0; i < 3; i++)
+		{
+			socket.write(new byte[200]);
+		}
+		while (socket.getBytesWritten() < 603)
+		{
+			clientService.selectBlocking(10);
+		}
+		Thread.sleep(50);
+
+		// Each turn reads at most 256 bytes, one turn for the key and one after the selected keys.
+		m_service.selectNonBlocking();
+		assertEquals(2, packets.size());
+		m_service.selectNonBlocking();
+		assertEquals(3, packets.size());
+		socket.close();
+		clientService.selectNonBlocking();
+		clientService.close();
+		serverSocket.close();
+	}
+
+	public void testReadBudgetFairness() throws Exception
+	{
+		final List<NIOSocket> serverSockets = new ArrayList<NIOSocket>();
+		final NIOService clientService = new NIOService();
+		m_service.setBufferSize(256);
+		final NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(3148), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				serverSockets.add(nioSocket);
+				nioSocket.setPacketReader(new RegularPacketReader(1, true));
+				nioSocket.listen(SocketObserver.NULL);
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final NIOSocket socket = clientService.openSocket("localhost", 3148);
+		socket.setPacketWriter(new RegularPacketWriter(1, true));
+		socket.listen(SocketObserver.NULL);
+		while (serverSocket.getTotalConnections() == 0)
+		{
+			clientService.selectNonBlocking();
+			m_service.selectBlocking(10);
+		}
+		m_service.selectNonBlocking();
+
+		// Keep the sender ahead of the reader for all the select cycles below.
+		m_service.setReadBudget(0, 1);
+		for (int i = 0; i < 100; i++)
+		{
+			socket.write(new byte[200]);
+		}
+		while (socket.getBytesWritten() < 20100)
+		{
+			clientService.selectBlocking(10);
+		}
+		Thread.sleep(50);
+
+		// A socket gets one turn for its key and one after the selected keys, every cycle.
+		final NIOSocket serverSide = serverSockets.get(0);
+		for (int i = 0; i < 20; i++)
+		{
+			final long before = serverSide.getBytesRead();
+			m_service.selectNonBlocking();
+			assertTrue(serverSide.getBytesRead() - before <= 512);
+		}
+		assertTrue(serverSide.getBytesRead() >= 20 * 256);
+		socket.close();
+		clientService.selectNonBlocking();
+		clientService.close();
+		serverSocket.close();
+	}
+
+	public void testWriteWatermarks() throws Exception
+	{
+		final List<Boolean> events = new ArrayList<Boolean>();
+		final NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(3142), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				nioSocket.listen(SocketObserver.NULL);
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final NIOSocket socket = m_service.openSocket("localhost", 3142);
+		socket.setWriteWatermarks(100, 1000);
+		socket.listen(new SocketObserverAdapter()
+		{
+			@Override
+			public void writabilityChanged(final NIOSocket nioSocket, final boolean writable)
+			{
+				events.add(writable);
+			}
+		});
+
+		// The socket is not connected yet, so everything is queued.
+		for (int i = 0; i < 3; i++)
+		{
+			assertTrue(socket.write(new byte[300]));
+			assertTrue(socket.isWritable());
+		}
+		assertTrue(socket.write(new byte[300]));
+		assertFalse(socket.isWritable());
+
+		selectUntil(events, 2);
+		assertEquals(Arrays.asList(false, true), events);
+		assertTrue(socket.isWritable());
+		assertEquals(0, socket.getWriteQueueSize());
+		socket.close();
+		serverSocket.close();
+	}
+
+	public void testTransferFile() throws Exception
+	{
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		final List<Object> sent = new ArrayList<Object>();
+		final byte[] content = new byte[300000];
+		for (int i = 0; i < content.length; i++)
+		{
+			content[i] = (byte) (i * 7);
+		}
+		final File file = File.createTempFile("naga", ".bin");
+		file.deleteOnExit();
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.write(content);
+		final NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(3143), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				nioSocket.listen(new SocketObserverAdapter()
+				{
+					@Override
+					public void packetReceived(final NIOSocket socket, final byte[] packet)
+					{
+						received.write(packet, 0, packet.length);
+					}
+				});
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final NIOSocket socket = m_service.openSocket("localhost", 3143);
+		socket.listen(new SocketObserverAdapter()
+		{
+			@Override
+			public void packetSent(final NIOSocket nioSocket, final Object tag)
+			{
+				sent.add(tag);
+			}
+		});
+		socket.write("head".getBytes(), "head");
+		socket.transferFile(randomAccessFile.getChannel(), 10, content.length - 20, "file");
+		socket.write("tail".getBytes(), "tail");
+		final long start = System.currentTimeMillis();
+		while (received.size() < content.length - 12 && System.currentTimeMillis() - start < 5000)
+		{
+			m_service.selectBlocking(100);
+		}
+		assertEquals(Arrays.<Object>asList("head", "file", "tail"), sent);
+		final byte[] expected = new byte[content.length - 12];
+		System.arraycopy("head".getBytes(), 0, expected, 0, 4);
+		System.arraycopy(content, 10, expected, 4, content.length - 20);
+		System.arraycopy("tail".getBytes(), 0, expected, expected.length - 4, 4);
+		assertTrue(Arrays.equals(expected, received.toByteArray()));
+		assertEquals(expected.length, socket.getBytesWritten());
+		socket.close();
+		serverSocket.close();
+		randomAccessFile.close();
+	}
+
+	public void testTransferFileWithPacketWriter() throws Exception
+	{
+		final List<byte[]> packets = new ArrayList<byte[]>();
+		final File file = File.createTempFile("naga", ".bin");
+		file.deleteOnExit();
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.write("0123456789".getBytes());
+		final NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(3144), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				nioSocket.setPacketReader(new RegularPacketReader(4, true));
+				nioSocket.listen(new SocketObserverAdapter()
+				{
+					@Override
+					public void packetReceived(final NIOSocket socket, final byte[] packet)
+					{
+						packets.add(packet);
+					}
+				});
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final NIOSocket socket = m_service.openSocket("localhost", 3144);
+		socket.setPacketWriter(new RegularPacketWriter(4, true));
+		socket.listen(SocketObserver.NULL);
+
+		// The file is framed as a single packet.
+		socket.transferFile(randomAccessFile.getChannel(), 2, 5, null);
+		socket.write("after".getBytes());
+		final long start = System.currentTimeMillis();
+		while (packets.size() < 2 && System.currentTimeMillis() - start < 5000)
+		{
+			m_service.selectBlocking(100);
+		}
+		assertEquals(2, packets.size());
+		assertEquals("23456", new String(packets.get(0)));
+		assertEquals("after", new String(packets.get(1)));
+		socket.close();
+		serverSocket.close();
+		randomAccessFile.close();
+	}
+
+	public void testReceiveFile() throws Exception
+	{
+		final List<String> events = new ArrayList<String>();
+		final long[] sizes = { 10, 200000 };
+		final File file = File.createTempFile("naga", ".bin");
+		file.deleteOnExit();
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		final NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(3145), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				nioSocket.setPacketReader(new RegularPacketReader(4, true));
+				nioSocket.listen(new SocketObserverAdapter()
+				{
+					long m_position = 0;
+
+					@Override
+					public void packetReceived(final NIOSocket socket, final byte[] packet)
+					{
+						events.add(new String(packet));
+						if (!"FILE".equals(new String(packet))) return;
+						final long size = sizes[events.size() / 2];
+						socket.receiveFile(randomAccessFile.getChannel(), m_position, size, new FileReceiveObserver()
+						{
+							public void fileReceived(final NIOSocket socket, final FileChannel file)
+							{
+								events.add("received " + size);
+							}
+						});
+						m_position += size;
+					}
+				});
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final NIOSocket socket = m_service.openSocket("localhost", 3145);
+		socket.listen(SocketObserver.NULL);
+		final byte[] small = "0123456789".getBytes();
+		final byte[] large = new byte[200000];
+		for (int i = 0; i < large.length; i++)
+		{
+			large[i] = (byte) (i * 3);
+		}
+		final byte[] header = new byte[] { 0, 0, 0, 4, 'F', 'I', 'L', 'E' };
+		socket.write(header);
+		socket.write(small);
+		socket.write(header);
+		socket.write(large);
+		socket.write(new byte[] { 0, 0, 0, 4, 'd', 'o', 'n', 'e' });
+		selectUntil(events, 5);
+		assertEquals(Arrays.asList("FILE", "received 10", "FILE", "received 200000", "done"), events);
+		final byte[] content = new byte[200010];
+		randomAccessFile.seek(0);
+		randomAccessFile.readFully(content);
+		assertEquals("0123456789", new String(content, 0, 10));
+		assertTrue(Arrays.equals(large, Arrays.copyOfRange(content, 10, 200010)));
+		socket.close();
+		serverSocket.close();
+		randomAccessFile.close();
+	}
+
+	public void testSSLRoundTrip() throws Exception
+	{
+		final char[] password = "naganaga".toCharArray();
+		final byte[] keyStoreBytes = new byte[TEST_KEY_STORE.length() / 2];
+		for (int i = 0; i < keyStoreBytes.length; i++)
+		{
+			keyStoreBytes[i] = (byte) Integer.parseInt(TEST_KEY_STORE.substring(i * 2, i * 2 + 2), 16);
+		}
+		final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		keyStore.load(new ByteArrayInputStream(keyStoreBytes), password);
+		final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, password);
+		final SSLContext serverContext = SSLContext.getInstance("TLSv1.2");
+		serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+		final SSLContext clientContext = SSLContext.getInstance("TLSv1.2");
+		clientContext.init(null, new TrustManager[] { new X509TrustManager()
+		{
+			public void checkClientTrusted(final X509Certificate[] chain, final String authType)
+			{
+			}
+
+			public void checkServerTrusted(final X509Certificate[] chain, final String authType)
+			{
+			}
+
+			public X509Certificate[] getAcceptedIssuers()
+			{
+				return new X509Certificate[0];
+			}
+		} }, null);
+
+		final List<String> packets = new ArrayList<String>();
+		final NIOServerSocketSSL serverSocket = m_service.openSSLServerSocket(serverContext, new InetSocketAddress(3150), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				nioSocket.setPacketReader(new RegularPacketReader(1, true));
+				nioSocket.setPacketWriter(new RegularPacketWriter(1, true));
+				nioSocket.listen(new SocketObserverAdapter()
+				{
+					@Override
+					public void connectionOpened(final NIOSocket socket)
+					{
+						try
+						{
+							((NIOSocketSSL) socket).beginHandshake();
+						}
+						catch (Exception e)
+						{
+							throw new RuntimeException(e);
+						}
+					}
+
+					@Override
+					public void packetReceived(final NIOSocket socket, final byte[] packet)
+					{
+						socket.write(("echo " + new String(packet)).getBytes());
+					}
+				});
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final NIOSocketSSL socket = m_service.openSSLSocket(clientContext.createSSLEngine(), InetAddress.getByName("localhost"), 3150);
+		socket.setPacketReader(new RegularPacketReader(1, true));
+		socket.setPacketWriter(new RegularPacketWriter(1, true));
+		socket.listen(new SocketObserverAdapter()
+		{
+			@Override
+			public void connectionOpened(final NIOSocket nioSocket)
+			{
+				try
+				{
+					socket.beginHandshake();
+				}
+				catch (Exception e)
+				{
+					throw new RuntimeException(e);
+				}
+				// Written while handshaking, so it is sent once the handshake completes.
+				socket.write("hello".getBytes());
+			}
+
+			@Override
+			public void packetReceived(final NIOSocket nioSocket, final byte[] packet)
+			{
+				packets.add(new String(packet));
+				if (packets.size() == 1) socket.write("again".getBytes());
+			}
+		});
+		selectUntil(packets, 2);
+		assertEquals("[echo hello, echo again]", packets.toString());
+		socket.close();
+		serverSocket.close();
+	}
+
+	private void selectUntil(final List<?> list, final int size) throws IOException
+	{
+		final long start = System.currentTimeMillis();
+		while (list.size() < size && System.currentTimeMillis() - start < 5000)
+		{
+			m_service.selectBlocking(100);
+		}
+		assertEquals(size, list.size());
+	}
 }
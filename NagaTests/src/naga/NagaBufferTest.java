@@ -0,0 +1,122 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+import naga.exception.BufferLeakException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class NagaBufferTest extends TestCase
+{
+	@Override
+	protected void tearDown() throws Exception
+	{
+		NagaBuffer.setLeakDetection(0, null);
+	}
+
+	public void testRetainAndRelease()
+	{
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false);
+		NagaBuffer buffer = NagaBuffer.allocate(allocator, 100);
+		assertEquals(128, buffer.getBuffer().capacity());
+		assertEquals(1, buffer.getReferenceCount());
+		assertSame(buffer, buffer.retain());
+		assertEquals(2, buffer.getReferenceCount());
+		assertEquals(false, buffer.release());
+		assertEquals(true, buffer.release());
+		assertEquals(0, buffer.getReferenceCount());
+
+		// The released buffer went back to the pool.
+		assertEquals(1, allocator.getMisses());
+		NagaBuffer.allocate(allocator, 128);
+		assertEquals(1, allocator.getHits());
+
+		try
+		{
+			buffer.getBuffer();
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+		}
+		try
+		{
+			buffer.retain();
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+		}
+		try
+		{
+			buffer.release();
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+		}
+	}
+
+	public void testCopyOf()
+	{
+		ByteBuffer source = ByteBuffer.wrap("hello".getBytes());
+		NagaBuffer copy = NagaBuffer.copyOf(source, HeapBufferAllocator.INSTANCE);
+		assertEquals(0, source.remaining());
+		assertEquals(5, copy.getBuffer().remaining());
+		assertEquals('h', copy.getBuffer().get(0));
+	}
+
+	public void testLeakDetection() throws Exception
+	{
+		final List<Throwable> leaks = new ArrayList<Throwable>();
+		NagaBuffer.setLeakDetection(1, new ExceptionObserver()
+		{
+			public void notifyExceptionThrown(Throwable e)
+			{
+				leaks.add(e);
+			}
+		});
+		assertEquals(1, NagaBuffer.getLeakDetectionSampleRate());
+
+		NagaBuffer.wrap(ByteBuffer.allocate(10)).release();
+		createLeak();
+		for (int i = 0; i < 50 && leaks.isEmpty(); i++)
+		{
+			System.gc();
+			Thread.sleep(10);
+			NagaBuffer.reportLeaks();
+		}
+
+		// Only the buffer that was not released is reported, with its creation site.
+		assertEquals(1, leaks.size());
+		assertTrue(leaks.get(0) instanceof BufferLeakException);
+		boolean foundSite = false;
+		for (StackTraceElement element : leaks.get(0).getStackTrace())
+		{
+			if (element.getMethodName().equals("createLeak")) foundSite = true;
+		}
+		assertTrue(foundSite);
+	}
+
+	private void createLeak()
+	{
+		NagaBuffer.wrap(ByteBuffer.allocate(10));
+	}
+
+	public void testLeakDetectionSampleRate()
+	{
+		try
+		{
+			NagaBuffer.setLeakDetection(-1, null);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		assertEquals(0, NagaBuffer.getLeakDetectionSampleRate());
+	}
+}
@@ -0,0 +1,104 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class PooledBufferAllocatorTest extends TestCase
+{
+	public void testSizeClasses()
+	{
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false, 1000, 4, 4);
+		assertEquals(1024, allocator.getMaxPooledSize());
+		assertEquals(64, allocator.allocate(1).capacity());
+		assertEquals(64, allocator.allocate(64).capacity());
+		assertEquals(128, allocator.allocate(65).capacity());
+		assertEquals(1024, allocator.allocate(1024).capacity());
+		assertEquals(1025, allocator.allocate(1025).capacity());
+		assertEquals(5, allocator.getMisses());
+		assertEquals(0, allocator.getHits());
+	}
+
+	public void testReuse()
+	{
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false, 1024, 4, 4);
+		ByteBuffer buffer = allocator.allocate(100);
+		buffer.put((byte) 1).order(ByteOrder.LITTLE_ENDIAN);
+		allocator.release(buffer);
+		ByteBuffer reused = allocator.allocate(128);
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(128, reused.limit());
+		assertEquals(ByteOrder.BIG_ENDIAN, reused.order());
+		assertEquals(1, allocator.getHits());
+		assertEquals(1, allocator.getMisses());
+
+		// A different size class does not get the buffer.
+		allocator.release(reused);
+		assertNotSame(buffer, allocator.allocate(64));
+	}
+
+	public void testDiscardsForeignBuffers()
+	{
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false, 1024, 4, 4);
+		allocator.release(null);
+		allocator.release(ByteBuffer.allocate(100));
+		allocator.release(ByteBuffer.allocate(2048));
+		allocator.release(ByteBuffer.allocateDirect(128));
+		allocator.release(ByteBuffer.allocate(128).asReadOnlyBuffer());
+		assertEquals(4, allocator.getDiscards());
+		allocator.release(ByteBuffer.allocate(128));
+		assertEquals(4, allocator.getDiscards());
+		assertEquals(0, allocator.getSharedPoolSize());
+	}
+
+	public void testSharedPool() throws Exception
+	{
+		final PooledBufferAllocator allocator = new PooledBufferAllocator(true, 1024, 1, 2);
+		assertTrue(allocator.isDirect());
+		assertTrue(allocator.allocate(10).isDirect());
+		// The thread cache takes the first buffer, the shared pool the next two.
+		for (int i = 0; i < 4; i++)
+		{
+			allocator.release(ByteBuffer.allocateDirect(256));
+		}
+		assertEquals(2, allocator.getSharedPoolSize());
+		assertEquals(1, allocator.getDiscards());
+
+		// Another thread only sees the shared pool.
+		final ByteBuffer[] buffers = new ByteBuffer[3];
+		Thread thread = new Thread()
+		{
+			public void run()
+			{
+				for (int i = 0; i < buffers.length; i++)
+				{
+					buffers[i] = allocator.allocate(256);
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		assertEquals(0, allocator.getSharedPoolSize());
+		assertEquals(2, allocator.getHits());
+		assertEquals(256, buffers[2].capacity());
+
+		// While this thread still has its cached buffer.
+		allocator.allocate(200);
+		assertEquals(3, allocator.getHits());
+	}
+
+	public void testNIOUtilsCopyFromAllocator()
+	{
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false);
+		ByteBuffer copy = NIOUtils.copy(ByteBuffer.wrap("hello".getBytes()), allocator);
+		assertEquals(64, copy.capacity());
+		assertEquals(5, copy.remaining());
+		ByteBuffer joined = NIOUtils.join(copy, ByteBuffer.wrap(" world".getBytes()), allocator);
+		assertEquals("hello world", new String(joined.array(), 0, joined.limit()));
+	}
+}
@@ -0,0 +1,146 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+import org.easymock.classextension.EasyMock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class SSLTaskExecutorTest extends TestCase
+{
+	private static class ManualExecutor implements Executor
+	{
+		final List<Runnable> m_tasks = new ArrayList<Runnable>();
+
+		public void execute(Runnable command)
+		{
+			m_tasks.add(command);
+		}
+	}
+
+	public void testMetrics() throws Exception
+	{
+		ManualExecutor manualExecutor = new ManualExecutor();
+		SSLTaskExecutor executor = new SSLTaskExecutor(manualExecutor);
+		final int[] runs = new int[1];
+		Runnable task = new Runnable()
+		{
+			public void run()
+			{
+				runs[0]++;
+			}
+		};
+		executor.execute(task);
+		executor.execute(task);
+		assertEquals(2, executor.getQueuedTasks());
+		assertEquals(0, executor.getCompletedTasks());
+
+		Thread.sleep(5);
+		manualExecutor.m_tasks.get(0).run();
+		assertEquals(1, executor.getQueuedTasks());
+		assertEquals(1, executor.getCompletedTasks());
+		assertTrue(executor.getMaxQueueTime() >= TimeUnit.MILLISECONDS.toNanos(5));
+		assertEquals(executor.getMaxQueueTime(), executor.getTotalQueueTime());
+
+		manualExecutor.m_tasks.get(1).run();
+		assertEquals(0, executor.getQueuedTasks());
+		assertEquals(2, executor.getCompletedTasks());
+		assertEquals(2, runs[0]);
+		assertTrue(executor.getTotalQueueTime() > executor.getMaxQueueTime());
+	}
+
+	public void testThreadPool() throws Exception
+	{
+		SSLTaskExecutor executor = new SSLTaskExecutor(2);
+		try
+		{
+			// Both tasks must run at the same time for either to finish.
+			final CountDownLatch latch = new CountDownLatch(2);
+			final CountDownLatch done = new CountDownLatch(2);
+			for (int i = 0; i < 2; i++)
+			{
+				executor.execute(new Runnable()
+				{
+					public void run()
+					{
+						latch.countDown();
+						try
+						{
+							if (latch.await(5, TimeUnit.SECONDS)) done.countDown();
+						}
+						catch (InterruptedException e)
+						{
+						}
+					}
+				});
+			}
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		try
+		{
+			new SSLTaskExecutor(0);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	public void testHandshakeResumedAfterLastTask() throws Exception
+	{
+		SSLEngine engine = EasyMock.createMock(SSLEngine.class);
+		NIOSocket socket = org.easymock.EasyMock.createMock(NIOSocket.class);
+		engine.beginHandshake();
+		EasyMock.expectLastCall().once();
+		EasyMock.expect(engine.getHandshakeStatus()).andReturn(SSLEngineResult.HandshakeStatus.NEED_TASK).once();
+		EasyMock.expect(engine.getDelegatedTask()).andReturn(new Runnable() { public void run() {} }).times(2);
+		EasyMock.expect(engine.getDelegatedTask()).andReturn(null).once();
+		EasyMock.replay(engine);
+		org.easymock.EasyMock.replay(socket);
+
+		ManualExecutor executor = new ManualExecutor();
+		SSLPacketHandler handler = new SSLPacketHandler(engine, socket, null, executor);
+		handler.begin();
+		assertEquals(2, executor.m_tasks.size());
+
+		// The tasks may complete in any order, but only the last one queues the handshake.
+		executor.m_tasks.get(1).run();
+		org.easymock.EasyMock.verify(socket);
+		org.easymock.EasyMock.reset(socket);
+		socket.queue(EasyMock.isA(Runnable.class));
+		org.easymock.EasyMock.expectLastCall().once();
+		org.easymock.EasyMock.replay(socket);
+		executor.m_tasks.get(0).run();
+		org.easymock.EasyMock.verify(socket);
+		EasyMock.verify(engine);
+	}
+
+	public void testServiceExecutor() throws Exception
+	{
+		NIOService service = new NIOService();
+		try
+		{
+			assertSame(SSLTaskExecutor.getDefault(), service.getSSLTaskExecutor());
+			SSLTaskExecutor executor = new SSLTaskExecutor(1);
+			service.setSSLTaskExecutor(executor);
+			assertSame(executor, service.getSSLTaskExecutor());
+			executor.shutdown();
+		}
+		finally
+		{
+			service.close();
+		}
+	}
+}
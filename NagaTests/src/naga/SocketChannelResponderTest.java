@@ -4,14 +4,22 @@ package naga;
  */
 
 import junit.framework.TestCase;
+import naga.packetwriter.RegularPacketWriter;
 import org.easymock.IAnswer;
 import org.easymock.classextension.EasyMock;
 
+import javax.net.ssl.SSLEngine;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 @SuppressWarnings({"StaticMethodReferencedViaSubclass"})
 public class SocketChannelResponderTest extends TestCase
@@ -56,6 +64,283 @@ public class SocketChannelResponderTest extends TestCase
 		assertEquals(false, m_socketChannelResponder.write("OO".getBytes()));
 	}
 
+	public void testWriteCoalescesWriteEvents()
+	{
+		EasyMock.expect(m_channel.isConnected()).andReturn(true).once();
+		EasyMock.expect(m_key.interestOps()).andReturn(0).atLeastOnce();
+		EasyMock.expect(m_key.interestOps(0)).andReturn(m_key).once();
+		replay();
+		m_socketChannelResponder = new SocketChannelResponder(m_nioService, m_channel, new InetSocketAddress("localhost", 123));
+		m_socketChannelResponder.setKey(m_key);
+		verify();
+		reset();
+
+		// Only the first write should queue an event on the service.
+		m_nioService.queue((Runnable)EasyMock.anyObject());
+		EasyMock.expectLastCall().once();
+		replay();
+		assertEquals(true, m_socketChannelResponder.write("F!".getBytes()));
+		assertEquals(true, m_socketChannelResponder.write("OO".getBytes(), "Tag"));
+		assertEquals(true, m_socketChannelResponder.write("!".getBytes()));
+		assertEquals(5, m_socketChannelResponder.getWriteQueueSize());
+		verify();
+	}
+
+	public void testDirectWriteOnServiceThread() throws Exception
+	{
+		final NIOService nioService = new NIOService();
+		EasyMock.expect(m_channel.isConnected()).andReturn(true).atLeastOnce();
+		EasyMock.expect(m_key.interestOps()).andReturn(0).atLeastOnce();
+		EasyMock.expect(m_key.interestOps(0)).andReturn(m_key).once();
+		EasyMock.expect(m_channel.write(writeBuffers(), EasyMock.eq(0), EasyMock.eq(1))).andAnswer(new IAnswer<Long>()
+		{
+			public Long answer()
+			{
+				((ByteBuffer[]) EasyMock.getCurrentArguments()[0])[0].position(4);
+				return 4L;
+			}
+		}).once();
+		replay();
+		m_socketChannelResponder = new SocketChannelResponder(nioService, m_channel, new InetSocketAddress("localhost", 123));
+		m_socketChannelResponder.setKey(m_key);
+		assertEquals(false, nioService.inEventLoop());
+
+		// Writing from the service thread sends the packet without queuing it.
+		nioService.queue(new Runnable()
+		{
+			public void run()
+			{
+				m_socketChannelResponder.write("FOO!".getBytes());
+			}
+		});
+		nioService.selectNonBlocking();
+		assertEquals(true, nioService.inEventLoop());
+		assertEquals(4, m_socketChannelResponder.getBytesWritten());
+		assertEquals(0, m_socketChannelResponder.getWriteQueueSize());
+		verify();
+		nioService.close();
+	}
+
+	public void testWriteFromPacketSent() throws Exception
+	{
+		final NIOService nioService = new NIOService();
+		EasyMock.expect(m_channel.isConnected()).andReturn(true).anyTimes();
+		EasyMock.expect(m_key.interestOps()).andReturn(0).anyTimes();
+		EasyMock.expect(m_key.interestOps(EasyMock.anyInt())).andReturn(m_key).anyTimes();
+		EasyMock.expect(m_channel.write(writeBuffers(), EasyMock.anyInt(), EasyMock.anyInt())).andAnswer(acceptAllWrites()).anyTimes();
+		replay();
+		m_socketChannelResponder = new SocketChannelResponder(nioService, m_channel, new InetSocketAddress("localhost", 123));
+		m_socketChannelResponder.setKey(m_key);
+		final int packets = 100000;
+		final int[] sent = new int[1];
+		m_socketChannelResponder.listen(new SocketObserverAdapter()
+		{
+			@Override
+			public void packetSent(NIOSocket socket, Object tag)
+			{
+				// Writing the next packet from the callback must not recurse into the write loop.
+				if (++sent[0] < packets) socket.write(new byte[8]);
+			}
+		});
+		nioService.queue(new Runnable()
+		{
+			public void run()
+			{
+				m_socketChannelResponder.write(new byte[8]);
+			}
+		});
+		nioService.selectNonBlocking();
+		assertEquals(packets, sent[0]);
+		assertEquals(packets * 8L, m_socketChannelResponder.getBytesWritten());
+		assertEquals(0, m_socketChannelResponder.getWriteQueueSize());
+		nioService.close();
+	}
+
+	public void testTransferFileInChunksThroughSSL() throws Exception
+	{
+		final NIOService nioService = new NIOService();
+		EasyMock.expect(m_channel.isConnected()).andReturn(true).anyTimes();
+		EasyMock.expect(m_key.interestOps()).andReturn(0).anyTimes();
+		EasyMock.expect(m_key.interestOps(EasyMock.anyInt())).andReturn(m_key).anyTimes();
+		EasyMock.expect(m_channel.write(writeBuffers(), EasyMock.anyInt(), EasyMock.anyInt())).andAnswer(acceptAllWrites()).anyTimes();
+		replay();
+		m_socketChannelResponder = new SocketChannelResponder(nioService, m_channel, new InetSocketAddress("localhost", 123));
+		m_socketChannelResponder.setKey(m_key);
+		final List<Object> tags = new ArrayList<Object>();
+		m_socketChannelResponder.listen(new SocketObserverAdapter()
+		{
+			@Override
+			public void packetSent(NIOSocket socket, Object tag)
+			{
+				tags.add(tag);
+			}
+		});
+		// Before the handshake, the SSL handler passes the plain bytes through.
+		final SSLEngine engine = EasyMock.createMock(SSLEngine.class);
+		EasyMock.replay(engine);
+		m_socketChannelResponder.setPacketWriter(new SSLPacketHandler(engine, m_socketChannelResponder, null));
+
+		final File file = File.createTempFile("naga", ".bin");
+		file.deleteOnExit();
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(1000 * 1000);
+		m_socketChannelResponder.transferFile(randomAccessFile.getChannel(), 100, 999900, "file");
+		nioService.selectNonBlocking();
+		m_socketChannelResponder.socketReadyForWrite();
+
+		// The file is sent in several parts, but reported once.
+		assertEquals(999900, m_socketChannelResponder.getBytesWritten());
+		assertEquals(Arrays.<Object>asList("file"), tags);
+
+		// Other writers get the region as one packet, which cannot exceed an int.
+		m_socketChannelResponder.setPacketWriter(new RegularPacketWriter(4, true));
+		nioService.selectNonBlocking();
+		m_socketChannelResponder.socketReadyForWrite();
+		try
+		{
+			m_socketChannelResponder.transferFile(randomAccessFile.getChannel(), 0, 3L << 30, null);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		randomAccessFile.close();
+		nioService.close();
+	}
+
+	public void testWriteByteBuffers() throws Exception
+	{
+		final NIOService nioService = new NIOService();
+		final ByteBuffer header = ByteBuffer.wrap("FOO".getBytes());
+		final ByteBuffer body = ByteBuffer.allocateDirect(4);
+		body.put("BAR!".getBytes()).flip();
+		EasyMock.expect(m_channel.isConnected()).andReturn(true).atLeastOnce();
+		EasyMock.expect(m_key.interestOps()).andReturn(0).atLeastOnce();
+		EasyMock.expect(m_key.interestOps(0)).andReturn(m_key).once();
+		EasyMock.expect(m_channel.write(writeBuffers(), EasyMock.eq(0), EasyMock.eq(2))).andAnswer(new IAnswer<Long>()
+		{
+			public Long answer()
+			{
+				// The buffers are written as they are, without being copied.
+				final ByteBuffer[] buffers = (ByteBuffer[]) EasyMock.getCurrentArguments()[0];
+				assertSame(header, buffers[0]);
+				assertSame(body, buffers[1]);
+				header.position(3);
+				body.position(4);
+				return 7L;
+			}
+		}).once();
+		replay();
+		m_socketChannelResponder = new SocketChannelResponder(nioService, m_channel, new InetSocketAddress("localhost", 123));
+		m_socketChannelResponder.setKey(m_key);
+		nioService.queue(new Runnable()
+		{
+			public void run()
+			{
+				m_socketChannelResponder.write(header, body);
+			}
+		});
+		nioService.selectNonBlocking();
+		assertEquals(7, m_socketChannelResponder.getBytesWritten());
+		assertEquals(0, m_socketChannelResponder.getWriteQueueSize());
+		verify();
+		nioService.close();
+	}
+
+	public void testWriteByteBufferQueueSize()
+	{
+		EasyMock.expect(m_channel.isConnected()).andReturn(true).once();
+		EasyMock.expect(m_key.interestOps()).andReturn(0).atLeastOnce();
+		EasyMock.expect(m_key.interestOps(0)).andReturn(m_key).once();
+		replay();
+		m_socketChannelResponder = new SocketChannelResponder(m_nioService, m_channel, new InetSocketAddress("localhost", 123));
+		m_socketChannelResponder.setKey(m_key);
+		m_socketChannelResponder.setMaxQueueSize(6);
+		verify();
+		reset();
+
+		m_nioService.queue((Runnable)EasyMock.anyObject());
+		EasyMock.expectLastCall().once();
+		replay();
+		assertEquals(true, m_socketChannelResponder.write(ByteBuffer.wrap("FOO".getBytes())));
+		assertEquals(true, m_socketChannelResponder.write(new ByteBuffer[] { ByteBuffer.wrap("BA".getBytes()) }, "Tag"));
+		assertEquals(5, m_socketChannelResponder.getWriteQueueSize());
+		assertEquals(false, m_socketChannelResponder.write(ByteBuffer.wrap("BAR".getBytes()), ByteBuffer.allocate(0)));
+		assertEquals(5, m_socketChannelResponder.getWriteQueueSize());
+		verify();
+	}
+
+	public void testWriteNagaBufferQueueSize()
+	{
+		EasyMock.expect(m_channel.isConnected()).andReturn(true).once();
+		EasyMock.expect(m_key.interestOps()).andReturn(0).atLeastOnce();
+		EasyMock.expect(m_key.interestOps(0)).andReturn(m_key).once();
+		replay();
+		m_socketChannelResponder = new SocketChannelResponder(m_nioService, m_channel, new InetSocketAddress("localhost", 123));
+		m_socketChannelResponder.setKey(m_key);
+		m_socketChannelResponder.setMaxQueueSize(4);
+		verify();
+		reset();
+
+		m_nioService.queue((Runnable)EasyMock.anyObject());
+		EasyMock.expectLastCall().once();
+		replay();
+		NagaBuffer queued = NagaBuffer.wrap(ByteBuffer.wrap("FOO".getBytes()));
+		NagaBuffer rejected = NagaBuffer.wrap(ByteBuffer.wrap("BAR".getBytes()));
+		assertEquals(true, m_socketChannelResponder.write(queued));
+		assertEquals(3, m_socketChannelResponder.getWriteQueueSize());
+		// The socket holds the reference until the packet is sent, without touching the original buffer.
+		assertEquals(1, queued.getReferenceCount());
+		assertEquals(3, queued.getBuffer().remaining());
+		assertEquals(false, m_socketChannelResponder.write(rejected, "Tag"));
+		assertEquals(0, rejected.getReferenceCount());
+		assertEquals(3, m_socketChannelResponder.getWriteQueueSize());
+		verify();
+	}
+
+	public void testWriteNagaBufferRacingClose() throws Exception
+	{
+		final NIOService nioService = new NIOService();
+		for (int round = 0; round < 200; round++)
+		{
+			final NIOSocket socket = nioService.registerSocketChannel(SocketChannel.open(), new InetSocketAddress("localhost", 123));
+			final List<NagaBuffer> buffers = new ArrayList<NagaBuffer>();
+			for (int i = 0; i < 2000; i++)
+			{
+				buffers.add(NagaBuffer.wrap(ByteBuffer.allocate(1)));
+			}
+			final CountDownLatch started = new CountDownLatch(1);
+			final Thread writer = new Thread()
+			{
+				public void run()
+				{
+					for (NagaBuffer buffer : buffers)
+					{
+						socket.write(buffer);
+						started.countDown();
+					}
+				}
+			};
+			writer.start();
+			started.await();
+			// Close while the other thread is still writing.
+			socket.close();
+			while (writer.isAlive())
+			{
+				nioService.selectNonBlocking();
+			}
+			writer.join();
+			nioService.selectNonBlocking();
+
+			// Whether queued, rejected or written while closing, every buffer is released.
+			for (NagaBuffer buffer : buffers)
+			{
+				assertEquals(0, buffer.getReferenceCount());
+			}
+		}
+		nioService.close();
+	}
+
 	public void testWrite() throws Exception
 	{
 
@@ -89,8 +374,7 @@ public class SocketChannelResponderTest extends TestCase
         EasyMock.verify(writer);
         EasyMock.reset(writer);
 
-	    m_nioService.queue((Runnable)EasyMock.anyObject());
-        EasyMock.expectLastCall();
+		// The write event queued by setPacketWriter is still pending, so no new event is queued.
 		replay();
 
 		// Add a packet
@@ -109,7 +393,7 @@ public class SocketChannelResponderTest extends TestCase
 		EasyMock.expect(m_key.interestOps(0)).andReturn(m_key).once();
 		EasyMock.expect(m_key.interestOps()).andReturn(0).atLeastOnce();
 		EasyMock.expect(m_key.interestOps(SelectionKey.OP_WRITE)).andReturn(m_key).once();
-		EasyMock.expect(m_channel.write(bufferArray)).andReturn(0L).once();
+		EasyMock.expect(m_channel.write(writeBuffers(), EasyMock.eq(0), EasyMock.eq(1))).andReturn(0L).once();
         EasyMock.expect(writer.write((ByteBuffer[])EasyMock.anyObject())).andReturn(bufferArray).once();
 
 		replay();
@@ -129,14 +413,14 @@ public class SocketChannelResponderTest extends TestCase
 		EasyMock.expect(m_key.interestOps(0)).andReturn(m_key).once();
 		EasyMock.expect(m_key.interestOps(SelectionKey.OP_WRITE)).andReturn(m_key).once();
 		EasyMock.expect(m_key.interestOps()).andReturn(0).atLeastOnce();
-		EasyMock.expect(m_channel.write(bufferArray, 0, 1)).andAnswer(new IAnswer<Long>()
+		EasyMock.expect(m_channel.write(writeBuffers(), EasyMock.eq(0), EasyMock.eq(1))).andAnswer(new IAnswer<Long>()
         {
             public Long answer() {
                 buffer.position(3);
                 return 3L;
             }
         }).once();
-		EasyMock.expect(m_channel.write(bufferArray, 0, 1)).andReturn(0L).once();
+		EasyMock.expect(m_channel.write(writeBuffers(), EasyMock.eq(0), EasyMock.eq(1))).andReturn(0L).once();
 		replay();
 		EasyMock.replay(writer);
 
@@ -153,7 +437,7 @@ public class SocketChannelResponderTest extends TestCase
 
 		// Finish writing the packet.
 		EasyMock.expect(m_key.interestOps(0)).andReturn(m_key).once();
-		EasyMock.expect(m_channel.write(bufferArray, 0, 1)).andAnswer(new IAnswer<Long>()
+		EasyMock.expect(m_channel.write(writeBuffers(), EasyMock.eq(0), EasyMock.eq(1))).andAnswer(new IAnswer<Long>()
         {
             public Long answer() {
                 buffer.position(4);
@@ -188,6 +472,40 @@ public class SocketChannelResponderTest extends TestCase
 
 	}
 
+	/**
+	 * The socket writer gathers the buffers of queued packets in its own array,
+	 * so match any array and check offset and length instead.
+	 *
+	 * @return null, after registering the matcher.
+	 */
+	/**
+	 * @return an answer for gathering writes of a channel that accepts everything.
+	 */
+	private static IAnswer<Long> acceptAllWrites()
+	{
+		return new IAnswer<Long>()
+		{
+			public Long answer()
+			{
+				final ByteBuffer[] buffers = (ByteBuffer[]) EasyMock.getCurrentArguments()[0];
+				final int offset = (Integer) EasyMock.getCurrentArguments()[1];
+				final int length = (Integer) EasyMock.getCurrentArguments()[2];
+				long written = 0;
+				for (int i = offset; i < offset + length; i++)
+				{
+					written += buffers[i].remaining();
+					buffers[i].position(buffers[i].limit());
+				}
+				return written;
+			}
+		};
+	}
+
+	private static ByteBuffer[] writeBuffers()
+	{
+		return (ByteBuffer[]) EasyMock.anyObject();
+	}
+
 	private void reset()
 	{
         EasyMock.reset(m_nioService);
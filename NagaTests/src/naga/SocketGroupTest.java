@@ -0,0 +1,168 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+import naga.packetreader.RegularPacketReader;
+import naga.packetwriter.RegularPacketWriter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SocketGroupTest extends TestCase
+{
+	NIOService m_service;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		m_service = new NIOService();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		m_service.close();
+	}
+
+	public void testBroadcast() throws Exception
+	{
+		final SocketGroup group = new SocketGroup(new RegularPacketWriter(1, true));
+		final List<NIOSocket> accepted = new ArrayList<NIOSocket>();
+		final NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(3146), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			@Override
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				nioSocket.listen(SocketObserver.NULL);
+				group.add(nioSocket);
+				accepted.add(nioSocket);
+			}
+		});
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		final List<String> received = new ArrayList<String>();
+		for (int i = 0; i < 3; i++)
+		{
+			final NIOSocket socket = m_service.openSocket("localhost", 3146);
+			socket.setPacketReader(new RegularPacketReader(1, true));
+			final String name = "client" + i;
+			socket.listen(new SocketObserverAdapter()
+			{
+				@Override
+				public void packetReceived(final NIOSocket socket, final byte[] packet)
+				{
+					received.add(name + ":" + new String(packet));
+				}
+			});
+		}
+		final long start = System.currentTimeMillis();
+		while (accepted.size() < 3 && System.currentTimeMillis() - start < 5000)
+		{
+			m_service.selectBlocking(100);
+		}
+		assertEquals(3, group.size());
+
+		// Everyone but the excluded member receives a single framed packet.
+		group.broadcast("Hello".getBytes(), accepted.get(1));
+		while (received.size() < 2 && System.currentTimeMillis() - start < 5000)
+		{
+			m_service.selectBlocking(100);
+		}
+		m_service.selectNonBlocking();
+		assertEquals(2, received.size());
+		assertFalse(received.contains("client1:Hello"));
+		for (final String packet : received)
+		{
+			assertTrue(packet.endsWith(":Hello"));
+		}
+
+		// Closed members are removed by the next broadcast.
+		accepted.get(0).close();
+		m_service.selectNonBlocking();
+		group.broadcast("Bye".getBytes());
+		m_service.selectNonBlocking();
+		assertEquals(2, group.size());
+		assertTrue(group.remove(accepted.get(2)));
+		assertEquals(1, group.size());
+		serverSocket.close();
+	}
+
+	public void testSlowMemberPolicies() throws Exception
+	{
+		final SocketChannelResponder skipped = createResponder();
+		final SocketChannelResponder dropping = createResponder();
+		final SocketChannelResponder disconnected = createResponder();
+		final SocketGroup skipGroup = new SocketGroup(new RegularPacketWriter(1, true));
+		skipGroup.setSlowMemberPolicy(SocketGroup.SlowMemberPolicy.SKIP, 8);
+		skipGroup.add(skipped);
+		final SocketGroup dropGroup = new SocketGroup(new RegularPacketWriter(1, true));
+		dropGroup.setSlowMemberPolicy(SocketGroup.SlowMemberPolicy.DROP_OLDEST, 8);
+		dropGroup.add(dropping);
+		final SocketGroup disconnectGroup = new SocketGroup(new RegularPacketWriter(1, true));
+		disconnectGroup.setSlowMemberPolicy(SocketGroup.SlowMemberPolicy.DISCONNECT, 8);
+		disconnectGroup.add(disconnected);
+
+		// The sockets are not connected, so each broadcast of 4 bytes stays in the queue.
+		for (final String message : new String[] { "FOO", "BAR", "BAZ" })
+		{
+			skipGroup.broadcast(message.getBytes());
+			dropGroup.broadcast(message.getBytes());
+			disconnectGroup.broadcast(message.getBytes());
+			m_service.selectNonBlocking();
+		}
+		assertEquals(8, skipped.getWriteQueueSize());
+		assertEquals(1, skipGroup.size());
+		assertEquals(8, dropping.getWriteQueueSize());
+		assertEquals(1, dropGroup.size());
+		assertEquals(false, disconnected.isOpen());
+		assertEquals(0, disconnectGroup.size());
+		skipped.getChannel().close();
+		dropping.getChannel().close();
+	}
+
+	public void testBroadcastNagaBuffer() throws Exception
+	{
+		final SocketChannelResponder closed = createResponder();
+		final SocketChannelResponder dropping = createResponder();
+		final SocketGroup group = new SocketGroup(new RegularPacketWriter(1, true));
+		group.setSlowMemberPolicy(SocketGroup.SlowMemberPolicy.DROP_OLDEST, 8);
+		group.add(closed);
+		group.add(dropping);
+
+		// Each member holds a reference while the broadcast is queued.
+		final NagaBuffer first = NagaBuffer.wrap(ByteBuffer.wrap("FOO".getBytes()));
+		group.broadcast(first);
+		m_service.selectNonBlocking();
+		assertEquals(2, first.getReferenceCount());
+		closed.close();
+		m_service.selectNonBlocking();
+		assertEquals(1, first.getReferenceCount());
+
+		// Dropping the oldest packet releases it.
+		final NagaBuffer second = NagaBuffer.wrap(ByteBuffer.wrap("BAR".getBytes()));
+		final NagaBuffer third = NagaBuffer.wrap(ByteBuffer.wrap("BAZ".getBytes()));
+		group.broadcast(second);
+		group.broadcast(third);
+		m_service.selectNonBlocking();
+		assertEquals(0, first.getReferenceCount());
+		assertEquals(1, second.getReferenceCount());
+		assertEquals(1, third.getReferenceCount());
+		assertEquals(8, dropping.getWriteQueueSize());
+
+		dropping.close();
+		m_service.selectNonBlocking();
+		assertEquals(0, second.getReferenceCount());
+		assertEquals(0, third.getReferenceCount());
+	}
+
+	private SocketChannelResponder createResponder() throws IOException
+	{
+		return new SocketChannelResponder(m_service, SocketChannel.open(), new InetSocketAddress("localhost", 123));
+	}
+}
@@ -0,0 +1,115 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+import org.easymock.IAnswer;
+import org.easymock.classextension.EasyMock;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+public class SocketReaderTest extends TestCase
+{
+	NIOService m_service;
+	SocketReader m_socketReader;
+	SocketChannel m_channel;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		m_service = new NIOService();
+		m_service.setReadBufferPooling(true);
+		m_socketReader = new SocketReader(m_service);
+		m_channel = EasyMock.createMock(SocketChannel.class);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		m_service.close();
+	}
+
+	private void expectRead(final byte[] data)
+	{
+		try
+		{
+			EasyMock.expect(m_channel.read((ByteBuffer) EasyMock.anyObject())).andAnswer(new IAnswer<Integer>()
+			{
+				public Integer answer()
+				{
+					((ByteBuffer) EasyMock.getCurrentArguments()[0]).put(data);
+					return data.length;
+				}
+			}).once();
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testCumulationBuffer() throws Exception
+	{
+		expectRead("ABCDEF".getBytes());
+		expectRead("GH".getBytes());
+		EasyMock.replay(m_channel);
+
+		assertEquals(6, m_socketReader.read(m_channel));
+		assertSame(m_service.getSharedBuffer(), m_socketReader.getBuffer());
+		m_socketReader.getBuffer().position(4);
+		m_socketReader.compact();
+
+		// The partial packet is kept in a leased buffer, which is read into directly.
+		assertEquals(2, m_socketReader.read(m_channel));
+		final ByteBuffer buffer = m_socketReader.getBuffer();
+		assertNotSame(m_service.getSharedBuffer(), buffer);
+		assertEquals("EFGH", new String(NIOUtils.copy(buffer).array()));
+		buffer.position(buffer.limit());
+		m_socketReader.compact();
+
+		// When drained, the buffer goes back to the pool.
+		assertEquals(1, m_service.getReadBufferPool().getPooledBuffers());
+		assertSame(m_service.getSharedBuffer(), m_socketReader.getBuffer());
+		assertEquals(8, m_socketReader.getBytesRead());
+		EasyMock.verify(m_channel);
+	}
+
+	public void testCumulationBufferGrows() throws Exception
+	{
+		expectRead(new byte[3000]);
+		expectRead(new byte[ReadBufferPool.DEFAULT_INITIAL_SIZE - 3000]);
+		expectRead(new byte[100]);
+		EasyMock.replay(m_channel);
+
+		m_socketReader.read(m_channel);
+		m_socketReader.compact();
+		m_socketReader.read(m_channel);
+		assertEquals(ReadBufferPool.DEFAULT_INITIAL_SIZE, m_socketReader.getBuffer().capacity());
+		m_socketReader.compact();
+		m_socketReader.read(m_channel);
+		assertEquals(ReadBufferPool.DEFAULT_INITIAL_SIZE * 2, m_socketReader.getBuffer().capacity());
+		assertEquals(ReadBufferPool.DEFAULT_INITIAL_SIZE + 100, m_socketReader.getBuffer().remaining());
+		m_socketReader.close();
+		// Only buffers of the initial size are pooled.
+		assertEquals(1, m_service.getReadBufferPool().getPooledBuffers());
+		EasyMock.verify(m_channel);
+	}
+
+	public void testCopyWithoutPooling() throws Exception
+	{
+		m_service.setReadBufferPooling(false);
+		expectRead("ABCDEF".getBytes());
+		expectRead("GH".getBytes());
+		EasyMock.replay(m_channel);
+
+		m_socketReader.read(m_channel);
+		m_socketReader.getBuffer().position(4);
+		m_socketReader.compact();
+		m_socketReader.read(m_channel);
+		assertSame(m_service.getSharedBuffer(), m_socketReader.getBuffer());
+		assertEquals("EFGH", new String(NIOUtils.copy(m_socketReader.getBuffer()).array()));
+		EasyMock.verify(m_channel);
+	}
+}
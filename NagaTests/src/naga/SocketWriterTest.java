@@ -0,0 +1,159 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+import org.easymock.IAnswer;
+import org.easymock.classextension.EasyMock;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+public class SocketWriterTest extends TestCase
+{
+	SocketWriter m_socketWriter;
+	SocketChannel m_channel;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		m_socketWriter = new SocketWriter();
+		m_channel = EasyMock.createMock(SocketChannel.class);
+	}
+
+	public void testBatchLimits() throws Exception
+	{
+		assertEquals(true, m_socketWriter.isEmpty());
+		assertEquals(false, m_socketWriter.isFull());
+		m_socketWriter.setBatchLimits(4, 10);
+		m_socketWriter.addPacket("FOO".getBytes(), null);
+		assertEquals(false, m_socketWriter.isEmpty());
+		assertEquals(false, m_socketWriter.isFull());
+		m_socketWriter.addPacket("BAR".getBytes(), null);
+		assertEquals(true, m_socketWriter.isFull());
+		m_socketWriter = new SocketWriter();
+		m_socketWriter.setBatchLimits(100, 2);
+		m_socketWriter.addPacket("FOO".getBytes(), null);
+		m_socketWriter.addPacket("BAR".getBytes(), null);
+		assertEquals(true, m_socketWriter.isFull());
+	}
+
+	public void testGatheringWrite() throws Exception
+	{
+		m_socketWriter.addPacket("FOO".getBytes(), "A");
+		m_socketWriter.addPacket("BAR".getBytes(), "B");
+		m_socketWriter.addPacket(new byte[0], "C");
+
+		// Write the first packet and a part of the second in one call.
+		EasyMock.expect(m_channel.write((ByteBuffer[]) EasyMock.anyObject(), EasyMock.eq(0), EasyMock.eq(3))).andAnswer(new IAnswer<Long>()
+		{
+			public Long answer()
+			{
+				final ByteBuffer[] buffers = (ByteBuffer[]) EasyMock.getCurrentArguments()[0];
+				buffers[0].position(3);
+				buffers[1].position(1);
+				return 4L;
+			}
+		}).once();
+		// Write the rest of the second packet.
+		EasyMock.expect(m_channel.write((ByteBuffer[]) EasyMock.anyObject(), EasyMock.eq(1), EasyMock.eq(2))).andAnswer(new IAnswer<Long>()
+		{
+			public Long answer()
+			{
+				final ByteBuffer[] buffers = (ByteBuffer[]) EasyMock.getCurrentArguments()[0];
+				buffers[1].position(3);
+				return 2L;
+			}
+		}).once();
+		EasyMock.replay(m_channel);
+
+		assertEquals(true, m_socketWriter.write(m_channel));
+		assertEquals(4, m_socketWriter.getBytesWritten());
+		assertEquals(true, m_socketWriter.hasSentPacket());
+		assertEquals("A", m_socketWriter.removeSentPacket());
+		assertEquals(false, m_socketWriter.hasSentPacket());
+
+		assertEquals(true, m_socketWriter.write(m_channel));
+		assertEquals(6, m_socketWriter.getBytesWritten());
+		assertEquals("B", m_socketWriter.removeSentPacket());
+		assertEquals("C", m_socketWriter.removeSentPacket());
+		assertEquals(true, m_socketWriter.isEmpty());
+		EasyMock.verify(m_channel);
+	}
+
+	public void testOwnersReleased() throws Exception
+	{
+		NagaBuffer sent = NagaBuffer.wrap(ByteBuffer.wrap("FOO".getBytes()));
+		NagaBuffer unsent = NagaBuffer.wrap(ByteBuffer.wrap("BAR".getBytes()));
+		m_socketWriter.addPacket(new ByteBuffer[] { sent.getBuffer() }, "A", sent);
+		m_socketWriter.addPacket(new ByteBuffer[] { unsent.getBuffer() }, "B", unsent);
+
+		// Write only the first packet.
+		EasyMock.expect(m_channel.write((ByteBuffer[]) EasyMock.anyObject(), EasyMock.eq(0), EasyMock.eq(2))).andAnswer(new IAnswer<Long>()
+		{
+			public Long answer()
+			{
+				final ByteBuffer[] buffers = (ByteBuffer[]) EasyMock.getCurrentArguments()[0];
+				buffers[0].position(3);
+				return 3L;
+			}
+		}).once();
+		EasyMock.replay(m_channel);
+
+		assertEquals(true, m_socketWriter.write(m_channel));
+		assertEquals(1, sent.getReferenceCount());
+		assertEquals("A", m_socketWriter.removeSentPacket());
+		assertEquals(0, sent.getReferenceCount());
+		assertEquals(1, unsent.getReferenceCount());
+
+		// Closing releases the packet that was never sent.
+		m_socketWriter.close();
+		assertEquals(0, unsent.getReferenceCount());
+		assertEquals(true, m_socketWriter.isEmpty());
+		EasyMock.verify(m_channel);
+	}
+
+	public void testPacketWriterAddingPacket() throws Exception
+	{
+		// A packet writer that adds another packet while converting one, like the SSL packet handler.
+		m_socketWriter.setPacketWriter(new CompositePacketWriter()
+		{
+			public void write(final CompositeBuffer packet)
+			{
+				if (packet.get(0).get(0) == 'F') m_socketWriter.addPacket("BAR".getBytes(), "B");
+				packet.append(ByteBuffer.wrap("!".getBytes()));
+			}
+
+			public ByteBuffer[] write(final ByteBuffer[] byteBuffers)
+			{
+				throw new UnsupportedOperationException();
+			}
+		});
+		m_socketWriter.addPacket("FOO".getBytes(), "A");
+
+		final StringBuilder written = new StringBuilder();
+		EasyMock.expect(m_channel.write((ByteBuffer[]) EasyMock.anyObject(), EasyMock.eq(0), EasyMock.eq(4))).andAnswer(new IAnswer<Long>()
+		{
+			public Long answer()
+			{
+				final ByteBuffer[] buffers = (ByteBuffer[]) EasyMock.getCurrentArguments()[0];
+				long bytes = 0;
+				for (int i = 0; i < 4; i++)
+				{
+					bytes += buffers[i].remaining();
+					while (buffers[i].hasRemaining()) written.append((char) buffers[i].get());
+				}
+				return bytes;
+			}
+		}).once();
+		EasyMock.replay(m_channel);
+
+		assertEquals(true, m_socketWriter.write(m_channel));
+		assertEquals("BAR!FOO!", written.toString());
+		assertEquals("B", m_socketWriter.removeSentPacket());
+		assertEquals("A", m_socketWriter.removeSentPacket());
+		assertEquals(true, m_socketWriter.isEmpty());
+		EasyMock.verify(m_channel);
+	}
+}
@@ -0,0 +1,135 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimerWheelTest extends TestCase
+{
+	TimerWheel m_wheel;
+	List<String> m_calls;
+
+	@Override
+	public void setUp() throws IOException
+	{
+		m_wheel = new TimerWheel(new NIOService(), 10, 4);
+		m_calls = new ArrayList<String>();
+	}
+
+	private TimerWheel.Timeout schedule(final String name, final long time)
+	{
+		final TimerWheel.Timeout timeout = m_wheel.newTimeout(new Runnable()
+		{
+			public void run()
+			{
+				m_calls.add(name);
+			}
+		}, time);
+		m_wheel.schedule(timeout);
+		return timeout;
+	}
+
+	public void testEmptyWheel()
+	{
+		assertEquals(-1, m_wheel.timeToNextTick(System.currentTimeMillis()));
+		m_wheel.expire(System.currentTimeMillis());
+		assertEquals(0, m_wheel.size());
+	}
+
+	public void testExpireInOrderAcrossRounds()
+	{
+		final long now = System.currentTimeMillis();
+		// The wheel spans 40 ms, so these events need several rounds.
+		schedule("c", now + 105);
+		schedule("a", now + 15);
+		schedule("b", now + 55);
+		assertEquals(3, m_wheel.size());
+		final long next = m_wheel.timeToNextTick(now);
+		assertTrue(next >= 0 && next <= 40);
+
+		m_wheel.expire(now + 10);
+		assertEquals("[]", m_calls.toString());
+		m_wheel.expire(now + 30);
+		assertEquals("[a]", m_calls.toString());
+		m_wheel.expire(now + 50);
+		assertEquals("[a]", m_calls.toString());
+		m_wheel.expire(now + 70);
+		assertEquals("[a, b]", m_calls.toString());
+		m_wheel.expire(now + 120);
+		assertEquals("[a, b, c]", m_calls.toString());
+		assertEquals(0, m_wheel.size());
+	}
+
+	public void testNeverEarly()
+	{
+		final long now = System.currentTimeMillis();
+		schedule("a", now + 25);
+		m_wheel.expire(now + 24);
+		assertEquals("[]", m_calls.toString());
+		m_wheel.expire(now + 35);
+		assertEquals("[a]", m_calls.toString());
+	}
+
+	public void testCancel()
+	{
+		final long now = System.currentTimeMillis();
+		final TimerWheel.Timeout a = schedule("a", now + 15);
+		schedule("b", now + 15);
+		a.cancel();
+		m_wheel.remove(a);
+		assertEquals(1, m_wheel.size());
+		m_wheel.expire(now + 50);
+		assertEquals("[b]", m_calls.toString());
+
+		// Cancelled off the service thread, the event is only dropped when its tick is reached.
+		final TimerWheel.Timeout c = schedule("c", now + 75);
+		c.cancel();
+		assertEquals(1, m_wheel.size());
+		m_wheel.expire(now + 100);
+		assertEquals("[b]", m_calls.toString());
+		assertEquals(0, m_wheel.size());
+	}
+
+	public void testPastEventRunsOnNextExpire()
+	{
+		final long now = System.currentTimeMillis();
+		schedule("a", now - 1000);
+		assertEquals(0, m_wheel.timeToNextTick(now + 10));
+		m_wheel.expire(now);
+		assertEquals("[a]", m_calls.toString());
+	}
+
+	public void testCallCancelsSiblingInSameBucket() throws IOException
+	{
+		// Cancelling on the service thread unlinks the event at once.
+		final NIOService service = new NIOService();
+		service.selectNonBlocking();
+		m_wheel = new TimerWheel(service, 10, 4);
+		final long now = System.currentTimeMillis();
+		final TimerWheel.Timeout[] sibling = new TimerWheel.Timeout[1];
+		m_wheel.schedule(m_wheel.newTimeout(new Runnable()
+		{
+			public void run()
+			{
+				m_calls.add("a");
+				sibling[0].cancel();
+				schedule("c", now);
+			}
+		}, now + 15));
+		sibling[0] = schedule("b", now + 15);
+		schedule("d", now + 15);
+		m_wheel.expire(now + 30);
+		assertEquals("[a, d]", m_calls.subList(0, 2).toString());
+
+		// An event scheduled by a call as already due runs on a later tick.
+		m_wheel.expire(now + 50);
+		assertEquals("[a, d, c]", m_calls.toString());
+		assertEquals(0, m_wheel.size());
+		service.close();
+	}
+}
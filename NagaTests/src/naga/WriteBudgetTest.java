@@ -0,0 +1,362 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class WriteBudgetTest extends TestCase
+{
+	NIOService m_service;
+	ServerSocketChannel m_server;
+	List<SocketChannel> m_channels;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		m_service = new NIOService();
+		m_server = null;
+		m_channels = new ArrayList<SocketChannel>();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		m_service.close();
+		if (m_server != null) m_server.close();
+		for (SocketChannel channel : m_channels)
+		{
+			channel.close();
+		}
+	}
+
+	private NIOSocket createSocket() throws IOException
+	{
+		// The socket never connects, so everything written stays in the queue.
+		return m_service.registerSocketChannel(SocketChannel.open(), new InetSocketAddress("localhost", 123));
+	}
+
+	/**
+	 * Creates a socket whose connection stays pending, since the backlog of the server
+	 * is full, so that everything written stays in the queue and selecting does not close it.
+	 */
+	private NIOSocket createPendingSocket(NIOService service) throws Exception
+	{
+		if (m_server == null)
+		{
+			m_server = ServerSocketChannel.open();
+			m_server.socket().bind(new InetSocketAddress("localhost", 3149), 1);
+		}
+		InetSocketAddress address = (InetSocketAddress) m_server.socket().getLocalSocketAddress();
+		while (true)
+		{
+			SocketChannel channel = SocketChannel.open();
+			m_channels.add(channel);
+			channel.configureBlocking(false);
+			// Connections that complete fill the backlog.
+			if (channel.connect(address)) continue;
+			Thread.sleep(50);
+			if (!channel.finishConnect()) return service.registerSocketChannel(channel, address);
+		}
+	}
+
+	/**
+	 * Runs the service queue and returns the queue sizes as seen after the
+	 * queued events, the events they queued in turn and any closes they caused,
+	 * before the select closes the unconnected sockets.
+	 */
+	private long[] queueSizes(final WriteBudget budget, final NIOSocket... sockets) throws IOException
+	{
+		final long[] sizes = new long[sockets.length + 1];
+		m_service.queue(new Runnable()
+		{
+			int m_hops = 4;
+
+			public void run()
+			{
+				if (m_hops-- > 0)
+				{
+					m_service.queue(this);
+					return;
+				}
+				for (int i = 0; i < sockets.length; i++)
+				{
+					sizes[i] = sockets[i].isOpen() ? sockets[i].getWriteQueueSize() : -1;
+				}
+				sizes[sockets.length] = budget.getQueuedBytes();
+			}
+		});
+		m_service.selectNonBlocking();
+		return sizes;
+	}
+
+	public void testReject() throws Exception
+	{
+		WriteBudget budget = new WriteBudget(10, WriteBudget.Policy.REJECT);
+		m_service.setWriteBudget(budget);
+		assertSame(budget, m_service.getWriteBudget());
+		NIOSocket socket1 = createSocket();
+		NIOSocket socket2 = createSocket();
+
+		assertEquals(true, socket1.write("FOOBAR".getBytes()));
+		assertEquals(false, socket2.write("FOOBAR".getBytes()));
+		assertEquals(true, socket2.write("FOOB".getBytes()));
+		assertEquals(10, budget.getQueuedBytes());
+		assertEquals(1, budget.getRejectedWrites());
+
+		// Closing a socket returns its queue to the budget.
+		socket1.close();
+		long[] sizes = queueSizes(budget, socket1, socket2);
+		assertEquals(-1, sizes[0]);
+		assertEquals(4, sizes[1]);
+		assertEquals(4, sizes[2]);
+
+		// Writes to a closed socket are refused without touching the budget.
+		socket2.close();
+		m_service.selectNonBlocking();
+		assertEquals(false, socket1.write("FOO".getBytes()));
+		assertEquals(0, socket1.getWriteQueueSize());
+		assertEquals(0, budget.getQueuedBytes());
+		assertEquals(1, budget.getRejectedWrites());
+	}
+
+	public void testShedLargest() throws Exception
+	{
+		WriteBudget budget = new WriteBudget(10, WriteBudget.Policy.SHED_LARGEST);
+		m_service.setWriteBudget(budget);
+		NIOSocket large = createSocket();
+		NIOSocket small = createSocket();
+
+		large.write("FOO1".getBytes());
+		large.write("FOO2".getBytes());
+		assertEquals(true, small.write("BAR1".getBytes()));
+		assertEquals(12, budget.getQueuedBytes());
+
+		// The oldest packet of the largest queue is dropped on the service thread.
+		long[] sizes = queueSizes(budget, large, small);
+		assertEquals(4, sizes[0]);
+		assertEquals(4, sizes[1]);
+		assertEquals(8, sizes[2]);
+		assertEquals(4, budget.getShedBytes());
+		assertEquals(0, budget.getClosedSockets());
+	}
+
+	public void testCloseSlowest() throws Exception
+	{
+		WriteBudget budget = new WriteBudget(10, WriteBudget.Policy.CLOSE_SLOWEST);
+		m_service.setWriteBudget(budget);
+		NIOSocket large = createSocket();
+		NIOSocket small = createSocket();
+
+		large.write("FOO1".getBytes());
+		large.write("FOO2".getBytes());
+		small.write("BAR1".getBytes());
+
+		// Neither socket has written anything, so the one with the largest queue is closed.
+		long[] sizes = queueSizes(budget, large, small);
+		assertEquals(-1, sizes[0]);
+		assertEquals(4, sizes[1]);
+		assertEquals(4, sizes[2]);
+		assertEquals(1, budget.getClosedSockets());
+		assertEquals(0, budget.getShedBytes());
+	}
+
+	public void testShedLargestAcrossServices() throws Exception
+	{
+		NIOService other = new NIOService();
+		try
+		{
+			WriteBudget budget = new WriteBudget(12, WriteBudget.Policy.SHED_LARGEST);
+			m_service.setWriteBudget(budget);
+			other.setWriteBudget(budget);
+			NIOSocket small = createPendingSocket(m_service);
+			NIOSocket large = createPendingSocket(other);
+
+			small.write("FO1".getBytes());
+			small.write("FO2".getBytes());
+			large.write("BAR1".getBytes());
+			large.write("BAR2".getBytes());
+			assertEquals(14, budget.getQueuedBytes());
+
+			// The excess is shed once, from the largest queue of either service,
+			// even though the first service runs its part of the round first.
+			for (int i = 0; i < 3; i++)
+			{
+				m_service.selectNonBlocking();
+				other.selectNonBlocking();
+			}
+			assertEquals(6, small.getWriteQueueSize());
+			assertEquals(4, large.getWriteQueueSize());
+			assertEquals(10, budget.getQueuedBytes());
+			assertEquals(4, budget.getShedBytes());
+		}
+		finally
+		{
+			other.close();
+		}
+	}
+
+	public void testCloseSlowestAcrossServices() throws Exception
+	{
+		NIOService other = new NIOService();
+		try
+		{
+			WriteBudget budget = new WriteBudget(10, WriteBudget.Policy.CLOSE_SLOWEST);
+			m_service.setWriteBudget(budget);
+			other.setWriteBudget(budget);
+			NIOSocket socket1 = createPendingSocket(m_service);
+			NIOSocket socket2 = createPendingSocket(other);
+			NIOSocket socket3 = createPendingSocket(other);
+
+			socket1.write("FOO1".getBytes());
+			socket2.write("BAR1".getBytes());
+			socket3.write("BAZ1".getBytes());
+			socket3.write("BAZ2".getBytes());
+			assertEquals(16, budget.getQueuedBytes());
+
+			// Only the largest queue of either service is closed, even though the
+			// first service runs its part of the round before the other has seen
+			// that socket, and writes made during the round do not start another.
+			m_service.selectNonBlocking();
+			socket1.write("FO".getBytes());
+			other.selectNonBlocking();
+			for (int i = 0; i < 3; i++)
+			{
+				m_service.selectNonBlocking();
+				other.selectNonBlocking();
+			}
+			assertEquals(true, socket1.isOpen());
+			assertEquals(true, socket2.isOpen());
+			assertEquals(false, socket3.isOpen());
+			assertEquals(10, budget.getQueuedBytes());
+			assertEquals(1, budget.getClosedSockets());
+
+			// Once the round is over, the budget is enforced again.
+			socket2.write("BAR2".getBytes());
+			for (int i = 0; i < 3; i++)
+			{
+				m_service.selectNonBlocking();
+				other.selectNonBlocking();
+			}
+			assertEquals(2, budget.getClosedSockets());
+			assertTrue(budget.getQueuedBytes() <= 10);
+		}
+		finally
+		{
+			other.close();
+		}
+	}
+
+	public void testServiceClosedDuringRound() throws Exception
+	{
+		NIOService other = new NIOService();
+		WriteBudget budget = new WriteBudget(10, WriteBudget.Policy.SHED_LARGEST);
+		m_service.setWriteBudget(budget);
+		other.setWriteBudget(budget);
+		NIOSocket socket1 = createPendingSocket(m_service);
+		NIOSocket socket2 = createPendingSocket(other);
+
+		// The other service closes before it collects its sockets for the round.
+		other.close();
+		socket1.write("FOO1".getBytes());
+		socket1.write("FOO2".getBytes());
+		socket1.write("FOO3".getBytes());
+		socket2.write("BAR1".getBytes());
+		assertEquals(16, budget.getQueuedBytes());
+		try
+		{
+			other.selectNonBlocking();
+			fail();
+		}
+		catch (ClosedSelectorException e)
+		{
+		}
+		assertEquals(false, socket2.isOpen());
+
+		// The round goes on without it.
+		m_service.selectNonBlocking();
+		assertEquals(8, socket1.getWriteQueueSize());
+		assertEquals(8, budget.getQueuedBytes());
+		assertEquals(4, budget.getShedBytes());
+
+		// And the next round only waits for the remaining service.
+		socket1.write("FOO4".getBytes());
+		socket1.write("FOO5".getBytes());
+		socket1.write("FOO6".getBytes());
+		m_service.selectNonBlocking();
+		assertEquals(8, socket1.getWriteQueueSize());
+		assertEquals(16, budget.getShedBytes());
+	}
+
+	public void testServiceStoppedSelecting() throws Exception
+	{
+		NIOService other = new NIOService();
+		try
+		{
+			WriteBudget budget = new WriteBudget(10, WriteBudget.Policy.SHED_LARGEST);
+			m_service.setWriteBudget(budget);
+			other.setWriteBudget(budget);
+			NIOSocket socket1 = createPendingSocket(m_service);
+			NIOSocket socket2 = createPendingSocket(other);
+
+			// The other service never selects, so the round waits for it.
+			socket1.write("FOO1".getBytes());
+			socket1.write("FOO2".getBytes());
+			socket1.write("FOO3".getBytes());
+			socket2.write("BAR1".getBytes());
+			m_service.selectNonBlocking();
+			assertEquals(0, budget.getShedBytes());
+
+			// Once the round has waited long enough, the next write exceeding the budget
+			// chooses among the sockets collected so far.
+			Thread.sleep(1100);
+			socket1.write("X".getBytes());
+			m_service.selectNonBlocking();
+			assertEquals(8, budget.getShedBytes());
+			assertEquals(5, socket1.getWriteQueueSize());
+			assertEquals(9, budget.getQueuedBytes());
+		}
+		finally
+		{
+			other.close();
+		}
+	}
+
+	public void testSharedByGroup() throws Exception
+	{
+		NIOServiceGroup group = new NIOServiceGroup(2);
+		try
+		{
+			WriteBudget budget = new WriteBudget(100, WriteBudget.Policy.REJECT);
+			group.setWriteBudget(budget);
+			for (NIOService service : group.getServices())
+			{
+				assertSame(budget, service.getWriteBudget());
+			}
+		}
+		finally
+		{
+			group.close();
+		}
+	}
+
+	public void testInvalidBudget()
+	{
+		try
+		{
+			new WriteBudget(0, WriteBudget.Policy.REJECT);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+}
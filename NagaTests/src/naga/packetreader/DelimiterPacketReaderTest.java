@@ -4,6 +4,12 @@ package naga.packetreader;
  */
 
 import junit.framework.TestCase;
+import naga.NIOUtils;
+import naga.exception.ProtocolViolationException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
 
 public class DelimiterPacketReaderTest extends TestCase
 {
@@ -25,4 +31,76 @@ public class DelimiterPacketReaderTest extends TestCase
 		m_delimiterPacketReader.setMaxPacketSize(19);
 		assertEquals(19, m_delimiterPacketReader.getMaxPacketSize());
 	}
-}
\ No newline at end of file
+
+	public void testNextPacketBuffer() throws Exception
+	{
+		m_delimiterPacketReader = new DelimiterPacketReader((byte) '.', 5);
+		final ByteBuffer byteBuffer = ByteBuffer.wrap("AB.CDE.FG".getBytes());
+		ByteBuffer packet = m_delimiterPacketReader.nextPacketBuffer(byteBuffer);
+		assertEquals(true, packet.isReadOnly());
+		assertEquals("AB", new String(NIOUtils.copy(packet).array()));
+		assertEquals("CDE", new String(m_delimiterPacketReader.nextPacket(byteBuffer)));
+		assertEquals(null, m_delimiterPacketReader.nextPacketBuffer(byteBuffer));
+		assertEquals(2, byteBuffer.remaining());
+		try
+		{
+			m_delimiterPacketReader.nextPacket(ByteBuffer.wrap("ABCDEF".getBytes()));
+			fail();
+		}
+		catch (ProtocolViolationException e)
+		{
+			assertEquals("Packet exceeds max 5", e.getMessage());
+		}
+	}
+
+	public void testIncrementalScan() throws Exception
+	{
+		m_delimiterPacketReader = new DelimiterPacketReader((byte) '\n', 30);
+		assertEquals(null, m_delimiterPacketReader.nextPacket(ByteBuffer.wrap("0123456789ABCDEFGHIJ".getBytes())));
+		// The same bytes followed by more data, as they would be presented after the next read.
+		final ByteBuffer byteBuffer = ByteBuffer.wrap("0123456789ABCDEFGHIJKLM\nX".getBytes());
+		assertEquals("0123456789ABCDEFGHIJKLM", new String(m_delimiterPacketReader.nextPacket(byteBuffer)));
+		assertEquals(1, byteBuffer.remaining());
+		// The scan starts over for the next packet.
+		assertEquals(null, m_delimiterPacketReader.nextPacket(byteBuffer));
+		assertEquals("XY", new String(m_delimiterPacketReader.nextPacket(ByteBuffer.wrap("XY\n".getBytes()))));
+		// The limit is enforced over all parts of the packet.
+		assertEquals(null, m_delimiterPacketReader.nextPacket(ByteBuffer.wrap(new byte[20])));
+		try
+		{
+			m_delimiterPacketReader.nextPacket(ByteBuffer.wrap(new byte[31]));
+			fail();
+		}
+		catch (ProtocolViolationException e)
+		{
+			assertEquals("Packet exceeds max 30", e.getMessage());
+		}
+	}
+
+	public void testWordScanMatchesByteScan() throws Exception
+	{
+		final Random random = new Random(4711);
+		for (int i = 0; i < 1000; i++)
+		{
+			final byte[] data = new byte[random.nextInt(40)];
+			for (int j = 0; j < data.length; j++)
+			{
+				// Use few distinct values so that the delimiter and its neighbours appear often.
+				data[j] = (byte) (random.nextInt(4) - 1);
+			}
+			int expected = -1;
+			for (int j = 0; j < data.length; j++)
+			{
+				if (data[j] == 0)
+				{
+					expected = j;
+					break;
+				}
+			}
+			final ByteBuffer byteBuffer = ByteBuffer.wrap(data);
+			if (i % 2 == 0) byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			final byte[] packet = new DelimiterPacketReader((byte) 0).nextPacket(byteBuffer);
+			assertEquals(expected, packet == null ? -1 : packet.length);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package naga.packetreader;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+import naga.NIOUtils;
+import naga.exception.ProtocolViolationException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class LengthFieldPacketReaderTest extends TestCase
+{
+	LengthFieldPacketReader m_reader;
+
+	public void testLengthFieldPacketReader() throws Exception
+	{
+		try
+		{
+			new LengthFieldPacketReader(ByteOrder.BIG_ENDIAN, 5, 100);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Length field must be 1, 2, 3, 4 or 8 bytes long, was: 5", e.getMessage());
+		}
+		m_reader = new LengthFieldPacketReader(ByteOrder.BIG_ENDIAN, 3, 100);
+		ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[] { 0, 0, 3, 65, 66 });
+		assertEquals(null, m_reader.nextPacket(byteBuffer));
+		assertEquals(0, byteBuffer.position());
+		byteBuffer = ByteBuffer.wrap(new byte[] { 0, 0, 3, 65, 66, 67, 68 });
+		assertEquals("ABC", new String(m_reader.nextPacket(byteBuffer)));
+		assertEquals(1, byteBuffer.remaining());
+	}
+
+	public void testOffsetAdjustmentAndHeader() throws Exception
+	{
+		// A 1 byte type, then a little endian 2 byte length counting the whole frame.
+		m_reader = new LengthFieldPacketReader(ByteOrder.LITTLE_ENDIAN, 1, 2, -3, false, 100);
+		final ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[] { 9, 5, 0, 65, 66, 9, 3, 0 });
+		assertEquals(-1, m_reader.readHeader(byteBuffer));
+		final ByteBuffer packet = m_reader.nextPacketBuffer(byteBuffer);
+		assertEquals(true, packet.isReadOnly());
+		assertEquals(5, packet.remaining());
+		assertEquals(9, packet.get(packet.position()));
+		assertEquals(0, m_reader.nextPacket(byteBuffer).length - 3);
+		assertEquals(0, byteBuffer.remaining());
+	}
+
+	public void testWideLengthFields() throws Exception
+	{
+		final ByteBuffer header = ByteBuffer.allocate(11).order(ByteOrder.LITTLE_ENDIAN);
+		header.putLong(3).put("XYZ".getBytes()).flip();
+		m_reader = new LengthFieldPacketReader(ByteOrder.LITTLE_ENDIAN, 8, 100);
+		assertEquals("XYZ", new String(m_reader.nextPacket(header)));
+
+		m_reader = new LengthFieldPacketReader(ByteOrder.LITTLE_ENDIAN, 3, 100000);
+		assertEquals(0x10203, m_reader.readHeader(ByteBuffer.wrap(new byte[] { 3, 2, 1 })));
+	}
+
+	public void testMaxFrameLength() throws Exception
+	{
+		m_reader = new LengthFieldPacketReader(ByteOrder.BIG_ENDIAN, 4, 1000);
+		try
+		{
+			// Fails on the header alone.
+			m_reader.nextPacket(ByteBuffer.wrap(new byte[] { 0x7F, -1, -1, -1 }));
+			fail();
+		}
+		catch (ProtocolViolationException e)
+		{
+			assertEquals("Frame length 2147483651 exceeds max 1000", e.getMessage());
+		}
+		m_reader = new LengthFieldPacketReader(ByteOrder.BIG_ENDIAN, 0, 1, -2, true, 1000);
+		try
+		{
+			m_reader.nextPacket(ByteBuffer.wrap(new byte[] { 1 }));
+			fail();
+		}
+		catch (ProtocolViolationException e)
+		{
+			assertEquals("Frame length 0 is less than the header size 1", e.getMessage());
+		}
+		assertEquals("A", new String(NIOUtils.copy(m_reader.nextPacketBuffer(ByteBuffer.wrap(new byte[] { 3, 65 }))).array()));
+	}
+}
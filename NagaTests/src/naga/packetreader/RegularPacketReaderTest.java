@@ -4,6 +4,7 @@ package naga.packetreader;
  */
 
 import junit.framework.TestCase;
+import naga.exception.ProtocolViolationException;
 
 import java.nio.ByteBuffer;
 
@@ -25,4 +26,27 @@ public class RegularPacketReaderTest extends TestCase
         assertEquals("", new String(m_regularPacketReader.nextPacket(byteBuffer)));
 
 	}
-}
\ No newline at end of file
+
+	public void testReadHeader() throws Exception
+	{
+		m_regularPacketReader = new RegularPacketReader(2, false, 1000);
+		ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[] { 3 });
+		assertEquals(-1, m_regularPacketReader.readHeader(byteBuffer));
+		assertEquals(0, byteBuffer.position());
+		byteBuffer = ByteBuffer.wrap(new byte[] { 0, 2, 65 });
+		assertEquals(512, m_regularPacketReader.readHeader(byteBuffer));
+		assertEquals(2, byteBuffer.position());
+		try
+		{
+			m_regularPacketReader.nextPacket(ByteBuffer.wrap(new byte[] { 0, 4 }));
+			fail();
+		}
+		catch (ProtocolViolationException e)
+		{
+			assertEquals("Packet size out of range: 1024", e.getMessage());
+		}
+		assertEquals(1000, m_regularPacketReader.getMaxPacketSize());
+		// Without a max, packets must fit the buffer of the service and are never read directly.
+		assertEquals(-1, new RegularPacketReader(2, false).getMaxPacketSize());
+	}
+}
@@ -0,0 +1,76 @@
+package naga.packetreader;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+import naga.exception.ProtocolViolationException;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class SequenceDelimiterPacketReaderTest extends TestCase
+{
+	SequenceDelimiterPacketReader m_reader;
+
+	public void testSequenceDelimiterPacketReader() throws Exception
+	{
+		try
+		{
+			new SequenceDelimiterPacketReader(new byte[0]);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("The delimiter must contain at least 1 byte.", e.getMessage());
+		}
+		m_reader = new SequenceDelimiterPacketReader("\r\n".getBytes());
+		final ByteBuffer byteBuffer = ByteBuffer.wrap("GET /\r\n\r\nHost: x\rz\r\n\r".getBytes());
+		assertEquals("GET /", new String(m_reader.nextPacket(byteBuffer)));
+		assertEquals("", new String(m_reader.nextPacket(byteBuffer)));
+		assertEquals("Host: x\rz", new String(m_reader.nextPacket(byteBuffer)));
+		assertEquals(null, m_reader.nextPacket(byteBuffer));
+		assertEquals(1, byteBuffer.remaining());
+	}
+
+	public void testResumeAcrossReads() throws Exception
+	{
+		m_reader = new SequenceDelimiterPacketReader(new byte[] { 1, 2, 3, 4 }, 20);
+		assertEquals(null, m_reader.nextPacket(ByteBuffer.wrap(new byte[] { 9, 9, 9, 9, 9, 1, 2 })));
+		// The same bytes followed by the rest of the delimiter, as presented after the next read.
+		final ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[] { 9, 9, 9, 9, 9, 1, 2, 3, 4, 7 });
+		assertEquals(5, m_reader.nextPacket(byteBuffer).length);
+		assertEquals(1, byteBuffer.remaining());
+		assertEquals(null, m_reader.nextPacket(ByteBuffer.wrap(new byte[20])));
+		try
+		{
+			m_reader.nextPacket(ByteBuffer.wrap(new byte[30]));
+			fail();
+		}
+		catch (ProtocolViolationException e)
+		{
+			assertEquals("Packet exceeds max 20", e.getMessage());
+		}
+	}
+
+	public void testSearchMatchesNaiveSearch() throws Exception
+	{
+		final Random random = new Random(4711);
+		final byte[] delimiter = { 0, 1, 0 };
+		for (int i = 0; i < 1000; i++)
+		{
+			final byte[] data = new byte[random.nextInt(30)];
+			for (int j = 0; j < data.length; j++)
+			{
+				data[j] = (byte) random.nextInt(3);
+			}
+			int expected = -1;
+			for (int j = 0; j + delimiter.length <= data.length && expected < 0; j++)
+			{
+				if (data[j] == 0 && data[j + 1] == 1 && data[j + 2] == 0) expected = j;
+			}
+			final byte[] packet = new SequenceDelimiterPacketReader(delimiter).nextPacket(ByteBuffer.wrap(data));
+			assertEquals(expected, packet == null ? -1 : packet.length);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package naga.packetreader;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+import naga.exception.ProtocolViolationException;
+
+import java.nio.ByteBuffer;
+
+public class VarintPacketReaderTest extends TestCase
+{
+	VarintPacketReader m_reader;
+
+	public void testVarintPacketReader() throws Exception
+	{
+		m_reader = new VarintPacketReader();
+		ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[] { 3, 65, 66, 67, 0, 1 });
+		assertEquals("ABC", new String(m_reader.nextPacket(byteBuffer)));
+		assertEquals("", new String(m_reader.nextPacket(byteBuffer)));
+		assertEquals(null, m_reader.nextPacket(byteBuffer));
+		assertEquals(1, byteBuffer.remaining());
+
+		// A header split across reads is left untouched until complete.
+		byteBuffer = ByteBuffer.wrap(new byte[] { (byte) 0xAC });
+		assertEquals(-1, m_reader.readHeader(byteBuffer));
+		assertEquals(0, byteBuffer.position());
+		byteBuffer = ByteBuffer.wrap(new byte[] { (byte) 0xAC, 0x02 });
+		assertEquals(300, m_reader.readHeader(byteBuffer));
+		assertEquals(2, byteBuffer.position());
+	}
+
+	public void testInvalidHeaders() throws Exception
+	{
+		m_reader = new VarintPacketReader(299);
+		try
+		{
+			m_reader.nextPacket(ByteBuffer.wrap(new byte[] { (byte) 0xAC, 0x02 }));
+			fail();
+		}
+		catch (ProtocolViolationException e)
+		{
+			assertEquals("Packet size out of range: 300", e.getMessage());
+		}
+		try
+		{
+			m_reader.nextPacket(ByteBuffer.wrap(new byte[] { -1, -1, -1, -1, -1, 1 }));
+			fail();
+		}
+		catch (ProtocolViolationException e)
+		{
+			assertEquals("Varint header longer than 5 bytes.", e.getMessage());
+		}
+		// Lengths beyond an int are rejected even without a max packet size.
+		m_reader = new VarintPacketReader();
+		assertEquals(-1, m_reader.getMaxPacketSize());
+		try
+		{
+			m_reader.nextPacket(ByteBuffer.wrap(new byte[] { -1, -1, -1, -1, 0x0F }));
+			fail();
+		}
+		catch (ProtocolViolationException e)
+		{
+			assertEquals("Packet size out of range: 4294967295", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package naga.packetwriter;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+import naga.packetreader.LengthFieldPacketReader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class LengthFieldPacketWriterTest extends TestCase
+{
+	private static ByteBuffer join(final ByteBuffer[] buffers)
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate(100);
+		for (final ByteBuffer b : buffers)
+		{
+			buffer.put(b);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	public void testLengthFieldPacketWriter() throws Exception
+	{
+		final ByteBuffer buffer = join(new LengthFieldPacketWriter(ByteOrder.BIG_ENDIAN, 3, true)
+				.write(new ByteBuffer[] { ByteBuffer.wrap("FOO".getBytes()) }));
+		assertEquals(6, buffer.remaining());
+		assertEquals(0, buffer.get(0));
+		assertEquals(0, buffer.get(1));
+		assertEquals(6, buffer.get(2));
+		try
+		{
+			new LengthFieldPacketWriter(ByteOrder.BIG_ENDIAN, 1).write(new ByteBuffer[] { ByteBuffer.allocate(256) });
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Payload size cannot be encoded into 1 byte(s).", e.getMessage());
+		}
+	}
+
+	public void testRoundTrip() throws Exception
+	{
+		for (final ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN })
+		{
+			for (final int length : new int[] { 1, 2, 3, 4, 8 })
+			{
+				final LengthFieldPacketWriter writer = new LengthFieldPacketWriter(order, length);
+				final LengthFieldPacketReader reader = new LengthFieldPacketReader(order, length, 100);
+				final ByteBuffer buffer = join(writer.write(new ByteBuffer[] { ByteBuffer.wrap("FOO".getBytes()),
+				                                                              ByteBuffer.wrap("bar".getBytes()) }));
+				assertEquals("FOObar", new String(reader.nextPacket(buffer)));
+				assertEquals(0, buffer.remaining());
+			}
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package naga.packetwriter;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class SequenceDelimiterPacketWriterTest extends TestCase
+{
+    public void testSequenceDelimiterPacketWriter() throws Exception
+    {
+        final SequenceDelimiterPacketWriter writer = new SequenceDelimiterPacketWriter("\r\n".getBytes());
+        for (int i = 0; i < 2; i++)
+        {
+            final ByteBuffer[] result = writer.write(new ByteBuffer[] { ByteBuffer.wrap("FOO".getBytes()) });
+            final ByteBuffer buffer = ByteBuffer.allocate(100);
+            for (final ByteBuffer b : result)
+            {
+                buffer.put(b);
+            }
+            buffer.flip();
+            final byte[] resultByte = new byte[buffer.limit()];
+            buffer.get(resultByte);
+            assertEquals("FOO\r\n", new String(resultByte));
+        }
+    }
+}
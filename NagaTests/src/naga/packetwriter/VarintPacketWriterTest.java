@@ -0,0 +1,41 @@
+package naga.packetwriter;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+import naga.packetreader.VarintPacketReader;
+
+import java.nio.ByteBuffer;
+
+public class VarintPacketWriterTest extends TestCase
+{
+	public void testVarintPacketWriter() throws Exception
+	{
+		final VarintPacketWriter writer = new VarintPacketWriter();
+		final VarintPacketReader reader = new VarintPacketReader();
+		final ByteBuffer buffer = ByteBuffer.allocate(200000);
+		// Enough packets to use up more than one slab.
+		for (int i = 0; i < 1000; i++)
+		{
+			for (final ByteBuffer b : writer.write(new ByteBuffer[] { ByteBuffer.allocate(i * 7 % 300) }))
+			{
+				buffer.put(b);
+			}
+		}
+		buffer.flip();
+		for (int i = 0; i < 1000; i++)
+		{
+			assertEquals(i * 7 % 300, reader.nextPacket(buffer).length);
+		}
+		assertEquals(0, buffer.remaining());
+	}
+
+	public void testHeaderEncoding() throws Exception
+	{
+		final ByteBuffer[] result = new VarintPacketWriter().write(new ByteBuffer[] { ByteBuffer.allocate(300) });
+		assertEquals(2, result[0].remaining());
+		assertEquals((byte) 0xAC, result[0].get(result[0].position()));
+		assertEquals(0x02, result[0].get(result[0].position() + 1));
+	}
+}